@@ -0,0 +1,50 @@
+package com.ctrie;
+
+/**
+ * The number of children a compressed node of a trie can hold, which fixes how many hash bits
+ * each level of the trie consumes.
+ *
+ * <p>A wider fan-out makes the trie shallower, so a lookup follows fewer indirection nodes, but
+ * every write copies a compressed node that may hold up to twice as many slots, and renewing a
+ * node after a snapshot copies up to twice as many indirection nodes. Read-mostly tries benefit
+ * from {@link #FANOUT_64}, write-heavy tries should keep the default.</p>
+ */
+public enum BranchingFactor {
+    /**
+     * 32 children per node, 5 hash bits per level. This is the layout described in the Ctrie
+     * paper and the default.
+     */
+    FANOUT_32(5),
+    /**
+     * 64 children per node, 6 hash bits per level.
+     */
+    FANOUT_64(6);
+
+    private final int bits;
+    private final int mask;
+
+    BranchingFactor(int bits) {
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+    }
+
+    /** Returns the number of hash bits consumed per level. */
+    public int bits() {
+        return bits;
+    }
+
+    /**
+     * Returns the first level at which a hash of the given width is consumed. Keys whose hashes
+     * are equal end up together in a list node at this level.
+     *
+     * @param hashBits the number of hash bits, 32 or 64
+     */
+    public int maxLevel(int hashBits) {
+        return (hashBits + bits - 1) / bits * bits;
+    }
+
+    /** Returns the position of the hash in a compressed node at the given level. */
+    public int index(long hash, int level) {
+        return (int) (hash >>> level) & mask;
+    }
+}
@@ -0,0 +1,79 @@
+package com.ctrie;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters collected while compacting a {@link ConcurrentTrie}.
+ *
+ * <p>A compaction pass contracts compressed nodes that hold a single entry below the root
+ * into tombs, and resurrects tombed children back into their parent. Every resurrected tomb
+ * frees one {@code IndirectionNode} and one {@code TombNode}, and removes one level from
+ * the lookup path of the keys below it.</p>
+ */
+public final class CompactionStats {
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder tombsResurrected = new LongAdder();
+    private final LongAdder nodesContracted = new LongAdder();
+    private final LongAdder failedAttempts = new LongAdder();
+    private final LongAdder failedPasses = new LongAdder();
+
+    void recordPass() {
+        passes.increment();
+    }
+
+    void recordFailedPass() {
+        failedPasses.increment();
+    }
+
+    LongAdder tombsResurrectedCounter() {
+        return tombsResurrected;
+    }
+
+    LongAdder nodesContractedCounter() {
+        return nodesContracted;
+    }
+
+    LongAdder failedAttemptsCounter() {
+        return failedAttempts;
+    }
+
+    /** Returns the number of compaction passes run so far. */
+    public long getPasses() {
+        return passes.sum();
+    }
+
+    /** Returns the number of tombs that were resurrected into their parent node. */
+    public long getTombsResurrected() {
+        return tombsResurrected.sum();
+    }
+
+    /** Returns the number of single-entry compressed nodes that were contracted into tombs. */
+    public long getNodesContracted() {
+        return nodesContracted.sum();
+    }
+
+    /** Returns the number of compaction steps that lost their GCAS to a concurrent writer. */
+    public long getFailedAttempts() {
+        return failedAttempts.sum();
+    }
+
+    /** Returns the number of compaction passes that were cut short by an exception. */
+    public long getFailedPasses() {
+        return failedPasses.sum();
+    }
+
+    /** Returns the number of trie nodes freed so far: an indirection node and a tomb per resurrection. */
+    public long getReclaimedNodes() {
+        return 2 * getTombsResurrected();
+    }
+
+    @Override
+    public String toString() {
+        return "CompactionStats(passes: " + getPasses()
+                + ", resurrected: " + getTombsResurrected()
+                + ", contracted: " + getNodesContracted()
+                + ", failed: " + getFailedAttempts()
+                + ", failed passes: " + getFailedPasses()
+                + ", reclaimed: " + getReclaimedNodes() + ")";
+    }
+}
@@ -1,31 +1,134 @@
 package com.ctrie;
 
+import com.ctrie.node.CompressedNode;
 import com.ctrie.node.Generation;
 import com.ctrie.node.IndirectionNode;
 import com.ctrie.node.MainNode;
 import com.ctrie.node.util.INodeUtil;
+import com.ctrie.node.util.StructuralMerge;
 import com.ctrie.rdcss.RDCSS_Descriptor;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> implements AutoCloseable {
+    private static final VarHandle ROOT;
+
+    static {
+        try {
+            ROOT = MethodHandles.lookup().findVarHandle(ConcurrentTrie.class, "root", Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
-public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> {
-    private AtomicReferenceFieldUpdater<ConcurrentTrie, Object> rootUpdater =
-            AtomicReferenceFieldUpdater.newUpdater(ConcurrentTrie.class, Object.class, "root");
+    /** Number of levels renewed in the background after a snapshot, unless configured otherwise. */
+    public static final int DEFAULT_RENEWAL_DEPTH = 2;
+    /** Number of ring buffers of a mutation feed, unless configured otherwise. */
+    public static final int DEFAULT_FEED_STRIPES = 16;
+    /** Number of mutations per ring buffer of a mutation feed, unless configured otherwise. */
+    public static final int DEFAULT_FEED_CAPACITY = 4096;
+    // Failed attempts after which an insert is handed to a write combiner.
+    private static final int COMBINING_THRESHOLD = 2;
+    private static final int COMBINERS = 16;
+    // Compressed nodes that sharedSnapshot compares against its snapshot before it takes a new one.
+    private static final int SHARED_COMPARISON_BUDGET = 64;
 
     private volatile Object root;
+    private final boolean readOnly;
+    private final SnapshotRenewal renewal;
+    private final int renewalDepth;
+    private final BranchingFactor branching;
+    private final HashStrategy<? super K> hashing;
+    private final int maxLevel;
+    private final Queue<SnapshotInfo<K, V>> snapshots = new ConcurrentLinkedQueue<>();
+    private volatile SnapshotInfo<K, V> registration;
+    private volatile SharedSnapshot<K, V> shared;
+    private volatile long snapshotStalenessNanos;
+    private volatile MutationFeed<K, V> feed;
+    private volatile WriteCombiner<K, V>[] combiners;
 
     public ConcurrentTrie() {
+        this(SnapshotRenewal.FULL);
+    }
+
+    public ConcurrentTrie(SnapshotRenewal renewal) {
+        this(renewal, DEFAULT_RENEWAL_DEPTH);
+    }
+
+    public ConcurrentTrie(BranchingFactor branching) {
+        this(SnapshotRenewal.FULL, DEFAULT_RENEWAL_DEPTH, branching);
+    }
+
+    public ConcurrentTrie(HashStrategy<? super K> hashing) {
+        this(SnapshotRenewal.FULL, DEFAULT_RENEWAL_DEPTH, BranchingFactor.FANOUT_32, hashing);
+    }
+
+    public ConcurrentTrie(SnapshotRenewal renewal, int renewalDepth) {
+        this(renewal, renewalDepth, BranchingFactor.FANOUT_32);
+    }
+
+    public ConcurrentTrie(SnapshotRenewal renewal, int renewalDepth, BranchingFactor branching) {
+        this(renewal, renewalDepth, branching, HashStrategy.standard());
+    }
+
+    /**
+     * Creates an empty trie.
+     *
+     * @param renewal      how nodes are renewed after a snapshot
+     * @param renewalDepth the number of levels renewed right after a snapshot in
+     *                     {@link SnapshotRenewal#BACKGROUND} mode
+     * @param branching    the number of children per compressed node
+     * @param hashing      the hashes of the keys; a 64-bit strategy keeps large tries free of
+     *                     list nodes
+     */
+    public ConcurrentTrie(SnapshotRenewal renewal, int renewalDepth, BranchingFactor branching, HashStrategy<? super K> hashing) {
+        if (renewalDepth < 1)
+            throw new IllegalArgumentException("renewalDepth must be positive: " + renewalDepth);
+        if (hashing.bits() != Integer.SIZE && hashing.bits() != Long.SIZE)
+            throw new IllegalArgumentException("hash width must be 32 or 64 bits: " + hashing.bits());
         this.root = INodeUtil.createNewRootNode();
+        this.readOnly = false;
+        this.renewal = renewal;
+        this.renewalDepth = renewalDepth;
+        this.branching = branching;
+        this.hashing = hashing;
+        this.maxLevel = branching.maxLevel(hashing.bits());
     }
 
-    private ConcurrentTrie(IndirectionNode<K, V> r, AtomicReferenceFieldUpdater<ConcurrentTrie, Object> rtupd) {
+    private ConcurrentTrie(IndirectionNode<K, V> r, boolean readOnly, SnapshotRenewal renewal, int renewalDepth, BranchingFactor branching, HashStrategy<? super K> hashing) {
         this.root = r;
-        this.rootUpdater = rtupd;
+        this.readOnly = readOnly;
+        this.renewal = renewal;
+        this.renewalDepth = renewalDepth;
+        this.branching = branching;
+        this.hashing = hashing;
+        this.maxLevel = branching.maxLevel(hashing.bits());
+    }
+
+    /**
+     * Creates a writable trie with the same settings as this one over the given root.
+     */
+    final ConcurrentTrie<K, V> withRoot(IndirectionNode<K, V> r) {
+        return new ConcurrentTrie<>(r, false, renewal, renewalDepth, branching, hashing);
     }
 
     /* internal methods */
@@ -33,7 +136,7 @@ public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> {
     private final boolean CAS_ROOT(Object ov, Object nv) {
         if (isReadOnly())
             throw new IllegalStateException("Attempted to modify a read-only snapshot");
-        return rootUpdater.compareAndSet(this, ov, nv);
+        return ROOT.compareAndSet(this, ov, nv);
     }
 
     public final IndirectionNode<K, V> RDCSS_READ_ROOT(boolean abort) {
@@ -48,7 +151,9 @@ public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> {
     private IndirectionNode<K, V> RDCSS_Complete(boolean abort) {
         while (true) {
             Object v = root;
-            if (v instanceof IndirectionNode) {
+            if (v == null) {
+                throw new IllegalStateException("Attempted to access a closed trie");
+            } else if (v instanceof IndirectionNode) {
                 return (IndirectionNode<K, V>) v;
             } else {
                 RDCSS_Descriptor<K, V> desc = (RDCSS_Descriptor<K, V>) v;
@@ -82,40 +187,145 @@ public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> {
         }
     }
 
-    private void inserthc(K k, int hc, V v) {
-        while (true) {
+    private void inserthc(K k, long hc, V v) {
+        for (int failures = 0; ; ) {
             IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
-            if (!r.recInsert(k, v, hc, 0, null, r.getGen(), this)) continue;
+            // Read the feed after the root; see mutationFeed.
+            MutationFeed<K, V> f = feed;
+            if (f != null) {
+                recordedInsertIf(f, k, hc, v, null);
+                return;
+            }
+            if (failures == COMBINING_THRESHOLD) {
+                combiner(hc).insert(k, hc, v, null);
+                return;
+            }
+            if (!r.recInsert(k, v, hc, 0, null, r.getGen(), this)) {
+                if (lostRace(r)) failures++;
+                continue;
+            }
             return;
         }
     }
 
-    private Optional<V> insertifhc(K k, int hc, V v, Object cond) {
+    private Optional<V> insertifhc(K k, long hc, V v, Object cond) {
+        for (int failures = 0; ; ) {
+            IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+            MutationFeed<K, V> f = feed;
+            if (f != null) return recordedInsertIf(f, k, hc, v, cond);
+            if (failures == COMBINING_THRESHOLD) return combiner(hc).insert(k, hc, v, cond);
+            Optional<V> ret = r.recInsertIf(k, v, hc, cond, 0, null, r.getGen(), this);
+            if (ret == null) {
+                if (lostRace(r)) failures++;
+                continue;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Returns whether an attempt from the root that failed lost a compare-and-set to another
+     * writer, rather than restarting because a snapshot renewed the generation of the root.
+     * Only the former counts towards handing an insert to a write combiner.
+     */
+    private boolean lostRace(IndirectionNode<K, V> r) {
+        return RDCSS_READ_ROOT(false).getGen() == r.getGen();
+    }
+
+    /** Inserts on behalf of a write combiner, retrying until the insert succeeds or is refused. */
+    final Optional<V> combinedInsertIf(K k, long hc, V v, Object cond) {
         while (true) {
             IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+            MutationFeed<K, V> f = feed;
+            if (f != null) return recordedInsertIf(f, k, hc, v, cond);
             Optional<V> ret = r.recInsertIf(k, v, hc, cond, 0, null, r.getGen(), this);
             if (ret == null) continue;
             return ret;
         }
     }
 
-    private Object lookuphc(K k, int hc) {
+    /**
+     * Returns the write combiner of the hash. The combiners are only created once an insert
+     * fails repeatedly, so that tries without contention do not pay for them.
+     */
+    private WriteCombiner<K, V> combiner(long hc) {
+        WriteCombiner<K, V>[] cs = combiners;
+        if (cs == null) {
+            synchronized (this) {
+                cs = combiners;
+                if (cs == null) {
+                    cs = newCombiners(COMBINERS);
+                    for (int i = 0; i < COMBINERS; i++) {
+                        cs[i] = new WriteCombiner<>(this);
+                    }
+                    combiners = cs;
+                }
+            }
+        }
+        return cs[(int) HashStrategies.mix(hc) & (COMBINERS - 1)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> WriteCombiner<K, V>[] newCombiners(int length) {
+        return (WriteCombiner<K, V>[]) new WriteCombiner<?, ?>[length];
+    }
+
+    private Optional<V> recordedInsertIf(MutationFeed<K, V> f, K k, long hc, V v, Object cond) {
+        MutationFeed.Stripe<K, V> stripe = f.lock(hc);
+        Optional<V> ret;
+        try {
+            do {
+                IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+                ret = r.recInsertIf(k, v, hc, cond, 0, null, r.getGen(), this);
+            } while (ret == null);
+            boolean written = cond == null || (cond == INodeUtil.KEY_ABSENT ? ret.isEmpty() : ret.isPresent());
+            if (written) stripe.append(TrieMutation.Type.PUT, k, ret.orElse(null), v);
+        } finally {
+            stripe.unlock();
+        }
+        f.signal();
+        return ret;
+    }
+
+    private Object lookuphc(K k, long hc) {
+        // Read-only tries are never renewed or cleaned and have a stable root.
+        if (readOnly) return IndirectionNode.readOnlyLookup(RDCSS_READ_ROOT(false), k, hc, this);
         while (true) {
-            IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+            // Lookups take part in no handshake with the root, so an acquire read will do.
+            Object o = ROOT.getAcquire(this);
+            IndirectionNode<K, V> r = o instanceof IndirectionNode ? (IndirectionNode<K, V>) o : RDCSS_READ_ROOT(false);
             Object res = r.recLookup(k, hc, 0, null, r.getGen(), this);
             if (res == IndirectionNode.RESTART) continue;
             return res;
         }
     }
 
-    private Optional<V> removehc(K k, V v, int hc) {
+    private Optional<V> removehc(K k, V v, long hc) {
         while (true) {
             IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+            MutationFeed<K, V> f = feed;
+            if (f != null) return recordedRemove(f, k, v, hc);
             Optional<V> res = r.recRemove(k, v, hc, 0, null, r.getGen(), this);
             if (res != null) return res;
         }
     }
 
+    private Optional<V> recordedRemove(MutationFeed<K, V> f, K k, V v, long hc) {
+        MutationFeed.Stripe<K, V> stripe = f.lock(hc);
+        Optional<V> res;
+        try {
+            do {
+                IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+                res = r.recRemove(k, v, hc, 0, null, r.getGen(), this);
+            } while (res == null);
+            if (res.isPresent()) stripe.append(TrieMutation.Type.REMOVE, k, res.get(), null);
+        } finally {
+            stripe.unlock();
+        }
+        f.signal();
+        return res;
+    }
+
     public String string() {
         return RDCSS_READ_ROOT(false).string(0);
     }
@@ -123,11 +333,33 @@ public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> {
     /* public methods */
 
     public final boolean isReadOnly() {
-        return rootUpdater == null;
+        return readOnly;
     }
 
     public final boolean nonReadOnly() {
-        return rootUpdater != null;
+        return !readOnly;
+    }
+
+    public final SnapshotRenewal getSnapshotRenewal() {
+        return renewal;
+    }
+
+    public final BranchingFactor getBranchingFactor() {
+        return branching;
+    }
+
+    public final HashStrategy<? super K> getHashStrategy() {
+        return hashing;
+    }
+
+    /** Returns the level of the list nodes, at which all bits of the hash are consumed. */
+    public final int maxLevel() {
+        return maxLevel;
+    }
+
+    /** Returns the hash of the key under the strategy of this trie. */
+    public final long hash(K k) {
+        return hashing.hash(k);
     }
 
     public final ConcurrentTrie<K, V> snapshot() {
@@ -135,7 +367,8 @@ public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> {
             IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
             MainNode<K, V> expmain = r.readCommittedMainNode(this);
             if (RDCSS_ROOT(r, expmain, r.copyToGen(new Generation(), this))) {
-                return new ConcurrentTrie<>(r.copyToGen(new Generation(), this), rootUpdater);
+                renewInBackground();
+                return track(new ConcurrentTrie<>(r.copyToGen(new Generation(), this), false, renewal, renewalDepth, branching, hashing));
             }
         }
     }
@@ -147,55 +380,456 @@ public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> {
             IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
             MainNode<K, V> expmain = r.readCommittedMainNode(this);
             if (RDCSS_ROOT(r, expmain, r.copyToGen(new Generation(), this))) {
-                return new ConcurrentTrie<>(r, null);
+                renewInBackground();
+                return track(new ConcurrentTrie<>(r, true, renewal, renewalDepth, branching, hashing));
+            }
+        }
+    }
+
+    /**
+     * Returns a read-only snapshot shared by all readers of this trie, and by its iterators.
+     * The last shared snapshot is returned again as long as this trie still holds the same
+     * entries, or as long as it is younger than the {@linkplain #setSnapshotStaleness staleness
+     * bound}; otherwise a new one is taken. Readers therefore only make writers renew nodes once
+     * per batch of writes, however many of them there are.
+     *
+     * <p>The snapshot must not be closed, as other readers may still use it. It stays reachable
+     * from this trie until it is replaced.</p>
+     */
+    public final ConcurrentTrie<K, V> sharedSnapshot() {
+        if (isReadOnly())
+            return this;
+        long now = System.nanoTime();
+        SharedSnapshot<K, V> s = shared;
+        if (s != null) {
+            if (now - s.takenAt < snapshotStalenessNanos) return s.snapshot;
+            // A write after the snapshot had to renew the path from the root, or write the root
+            // itself, so it replaced the main node of the root. Lookups renew paths too, so where
+            // the nodes differ they are compared up to a budget: the snapshot outlives lookups
+            // that renewed a few paths, but not a write.
+            MainNode<K, V> m = RDCSS_READ_ROOT(false).readCommittedMainNode(this);
+            if (m == s.main || compareEntries(s.main, m, SHARED_COMPARISON_BUDGET) >= 0) return s.snapshot;
+        }
+        ConcurrentTrie<K, V> snapshot = readOnlySnapshot();
+        shared = new SharedSnapshot<>(snapshot, snapshot.RDCSS_READ_ROOT(false).readCommittedMainNode(this), now);
+        return snapshot;
+    }
+
+    /**
+     * Compares the entries of two main nodes. Renewal after a snapshot copies compressed nodes,
+     * along with their indirection nodes, but keeps their entries and the main nodes below, so
+     * the comparison only descends where the nodes differ. Entries are compared by identity.
+     *
+     * @return the budget left, or -1 if the nodes differ or the budget ran out first
+     */
+    private int compareEntries(MainNode<K, V> a, MainNode<K, V> b, int budget) {
+        if (a == b) return budget;
+        if (budget == 0 || !(a instanceof CompressedNode) || !(b instanceof CompressedNode)) return -1;
+        budget--;
+        CompressedNode<K, V> ca = (CompressedNode<K, V>) a;
+        CompressedNode<K, V> cb = (CompressedNode<K, V>) b;
+        if (ca.dataMap != cb.dataMap || ca.nodeMap != cb.nodeMap) return -1;
+        for (int i = 0; i < ca.dataArity(); i++) {
+            if (ca.keyAt(i) != cb.keyAt(i) || ca.valueAt(i) != cb.valueAt(i)) return -1;
+        }
+        for (int i = 0; i < ca.nodeArity(); i++) {
+            IndirectionNode<K, V> ia = ca.nodeAt(i);
+            IndirectionNode<K, V> ib = cb.nodeAt(i);
+            if (ia != ib) {
+                budget = compareEntries(ia.readCommittedMainNode(this), ib.readCommittedMainNode(this), budget);
+                if (budget < 0) return -1;
             }
         }
+        return budget;
+    }
+
+    /**
+     * Lets {@link #sharedSnapshot()} and iterators return a snapshot that misses the latest
+     * writes, as long as it is younger than the given bound. The default of zero only shares a
+     * snapshot while it is current.
+     */
+    public final void setSnapshotStaleness(Duration staleness) {
+        if (staleness.isNegative())
+            throw new IllegalArgumentException("staleness must not be negative: " + staleness);
+        snapshotStalenessNanos = staleness.toNanos();
+    }
+
+    public final Duration getSnapshotStaleness() {
+        return Duration.ofNanos(snapshotStalenessNanos);
+    }
+
+    /**
+     * Returns a digest of the content of the {@linkplain #sharedSnapshot() shared snapshot}.
+     * Tries with the same hash strategy and equal entries have equal digests, whatever their
+     * history and branching factor. Digests are cached in the compressed nodes, so after the
+     * first call only the nodes written since the previous snapshot are hashed again.
+     */
+    public final long contentDigest() {
+        return TrieDigests.digest(sharedSnapshot());
+    }
+
+    /**
+     * Returns true if this trie and the other hold the same entries, judged by their content
+     * digests. Different contents compare equal only if their 64-bit digests collide. Tries
+     * with different hash strategies have incomparable digests, so their entries are compared
+     * one by one instead.
+     */
+    public final boolean contentEquals(ConcurrentTrie<K, V> other) {
+        if (hashing != other.hashing) return TrieDigests.sameEntries(sharedSnapshot(), other.sharedSnapshot());
+        return contentDigest() == other.contentDigest();
+    }
+
+    /**
+     * Returns the keys that are mapped to different values in this trie and the other, or that
+     * only one of them holds, comparing their shared snapshots. Subtrees with equal digests are
+     * skipped, so the cost grows with the divergence rather than the size of the tries.
+     *
+     * @throws IllegalArgumentException if the tries have different branching factors or hash
+     *                                  strategies
+     */
+    public final Set<K> divergentKeys(ConcurrentTrie<K, V> other) {
+        Set<K> keys = new HashSet<>();
+        TrieDigests.diff(sharedSnapshot(), other.sharedSnapshot(), keys);
+        return keys;
+    }
+
+    /**
+     * Summarizes the values of the {@linkplain #sharedSnapshot() shared snapshot} with the
+     * monoid, e.g. {@code trie.summarize(TrieMonoid.max())}. Summaries of subtrees are cached in
+     * the compressed nodes, so after the first call the cost grows with the number of nodes
+     * written since the previous snapshot rather than with the size of the trie.
+     */
+    public final <S> S summarize(TrieMonoid<? super V, S> monoid) {
+        return TrieSummaries.summarize(sharedSnapshot(), monoid);
+    }
+
+    /**
+     * Compiles a read-only snapshot of this trie into an immutable {@link FrozenTrie}, which
+     * answers lookups without indirection nodes or volatile reads. Takes time linear in the size
+     * of the trie; later writes to this trie are not visible in the result.
+     */
+    public final FrozenTrie<K, V> freeze() {
+        ConcurrentTrie<K, V> snapshot = readOnlySnapshot();
+        try {
+            return FrozenTrie.compile(snapshot);
+        } finally {
+            if (snapshot != this) snapshot.close();
+        }
+    }
+
+    /**
+     * Returns a new writable trie holding the entries of both tries, e.g. to combine shards
+     * built in parallel. The tries are merged structurally from read-only snapshots: a subtree
+     * only one side has at a position is linked into the result instead of re-inserting its
+     * keys, and the positions of the root are merged in parallel, so the cost grows with the
+     * overlap of the tries rather than their size. The inputs are not modified.
+     *
+     * @param a        the first trie, whose settings the result takes
+     * @param b        the second trie
+     * @param resolver computes the value of a key both tries hold from its value in {@code a}
+     *                 and its value in {@code b}, or drops the key by returning null
+     * @throws IllegalArgumentException if the tries have different branching factors or hash
+     *                                  strategies
+     */
+    public static <K, V> ConcurrentTrie<K, V> merge(ConcurrentTrie<K, V> a, ConcurrentTrie<K, V> b, BiFunction<? super V, ? super V, ? extends V> resolver) {
+        ConcurrentTrie<K, V> left = a.readOnlySnapshot();
+        ConcurrentTrie<K, V> right = b.readOnlySnapshot();
+        try {
+            Generation gen = new Generation();
+            CompressedNode<K, V> root = StructuralMerge.combine(left, right, StructuralMerge.Operation.UNION, resolver, true, gen);
+            return a.withRoot(new IndirectionNode<>(root, gen));
+        } finally {
+            // The result links in nodes of both snapshots, not the snapshots themselves.
+            if (left != a) left.close();
+            if (right != b) right.close();
+        }
+    }
+
+    /**
+     * Begins an optimistic transaction on a writable snapshot of this trie.
+     *
+     * @see TrieTransaction
+     */
+    public final TrieTransaction<K, V> beginTransaction() {
+        if (isReadOnly())
+            throw new IllegalStateException("Attempted to modify a read-only snapshot");
+        while (true) {
+            IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+            MainNode<K, V> expmain = r.readCommittedMainNode(this);
+            IndirectionNode<K, V> nr = r.copyToGen(new Generation(), this);
+            if (RDCSS_ROOT(r, expmain, nr)) {
+                ConcurrentTrie<K, V> view = new ConcurrentTrie<>(r.copyToGen(new Generation(), this), false, renewal, renewalDepth, branching, hashing);
+                return new TrieTransaction<>(this, nr, expmain, view);
+            }
+        }
+    }
+
+    final boolean commitTransaction(IndirectionNode<K, V> expectedRoot, MainNode<K, V> expectedMain, ConcurrentTrie<K, V> view, List<TrieMutation<K, V>> writes) {
+        // Install a copy in a fresh generation, so that the nodes the transaction wrote are
+        // renewed before this trie writes below them.
+        IndirectionNode<K, V> nr = view.RDCSS_READ_ROOT(false).copyToGen(new Generation(), view);
+        MutationFeed<K, V> f = feed;
+        if (f == null) {
+            return RDCSS_ROOT(expectedRoot, expectedMain, nr);
+        }
+        f.lockAll();
+        try {
+            if (!RDCSS_ROOT(expectedRoot, expectedMain, nr)) return false;
+            f.appendAll(writes);
+        } finally {
+            f.unlockAll();
+        }
+        f.signal();
+        return true;
+    }
+
+    /**
+     * Runs the body in a transaction and commits it, starting over from a fresh snapshot until
+     * a commit succeeds. The body may therefore run several times and should only touch the
+     * trie through the transaction it is given.
+     *
+     * <pre>
+     *     trie.transact(tx -&gt; {
+     *         V x = tx.remove(a);
+     *         return x == null ? null : tx.put(b, x);
+     *     });
+     * </pre>
+     *
+     * @param body the reads and writes to apply atomically
+     * @return the result of the body in the attempt that committed
+     */
+    public final <R> R transact(Function<TrieTransaction<K, V>, R> body) {
+        while (true) {
+            TrieTransaction<K, V> tx = beginTransaction();
+            R result = body.apply(tx);
+            if (!tx.isOpen() || tx.commit()) return result;
+        }
+    }
+
+    /**
+     * Returns the mutation feed of this trie, attaching one with {@value #DEFAULT_FEED_STRIPES}
+     * stripes of {@value #DEFAULT_FEED_CAPACITY} mutations, delivered on the common pool, if
+     * there is none.
+     */
+    public final MutationFeed<K, V> mutationFeed() {
+        return mutationFeed(DEFAULT_FEED_STRIPES, DEFAULT_FEED_CAPACITY, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Returns the mutation feed of this trie, attaching one with the given settings if there is
+     * none. While a feed is attached, every write locks a stripe of the feed.
+     *
+     * @param stripes  the number of ring buffers, a power of two
+     * @param capacity the number of mutations per ring buffer, a power of two
+     * @param executor runs the deliveries to subscribers
+     */
+    public final synchronized MutationFeed<K, V> mutationFeed(int stripes, int capacity, Executor executor) {
+        if (isReadOnly())
+            throw new IllegalStateException("Attempted to modify a read-only snapshot");
+        MutationFeed<K, V> f = feed;
+        if (f != null) return f;
+        f = new MutationFeed<>(this, stripes, capacity, executor);
+        feed = f;
+        // Move the root to a new generation. A writer that read the old root, and possibly no
+        // feed, then fails its GCAS and starts over, reading the feed.
+        while (true) {
+            IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+            if (RDCSS_ROOT(r, r.readCommittedMainNode(this), r.copyToGen(new Generation(), this))) return f;
+        }
+    }
+
+    final synchronized void detachFeed(MutationFeed<K, V> f) {
+        if (feed == f) feed = null;
+    }
+
+    private ConcurrentTrie<K, V> track(ConcurrentTrie<K, V> snapshot) {
+        SnapshotInfo<K, V> info = new SnapshotInfo<>(snapshot, this, snapshot.RDCSS_READ_ROOT(false).getGen());
+        snapshot.registration = info;
+        snapshots.removeIf(i -> !i.isLive());
+        snapshots.add(info);
+        return snapshot;
+    }
+
+    /**
+     * Returns the snapshots taken from this trie that are neither closed nor garbage collected,
+     * oldest first. Long-lived entries point at readers that pin old generations in memory.
+     */
+    public final List<SnapshotInfo<K, V>> liveSnapshots() {
+        snapshots.removeIf(i -> !i.isLive());
+        List<SnapshotInfo<K, V>> live = new ArrayList<>();
+        for (SnapshotInfo<K, V> info : snapshots) {
+            if (info.isLive()) live.add(info);
+        }
+        return live;
+    }
+
+    /** Returns the generation of the current root of this trie. */
+    public final Generation getGeneration() {
+        return RDCSS_READ_ROOT(false).getGen();
+    }
+
+    /**
+     * Releases the root of this trie, so that the nodes only this trie references can be garbage
+     * collected even while the trie object itself is still reachable. Any later operation on
+     * this trie throws {@link IllegalStateException}. Meant for snapshots, but a live trie can be
+     * closed as well.
+     */
+    @Override
+    public void close() {
+        root = null;
+        shared = null;
+        SnapshotInfo<K, V> info = registration;
+        if (info != null) info.markClosed();
+    }
+
+    private void renewInBackground() {
+        if (renewal != SnapshotRenewal.BACKGROUND) return;
+        ForkJoinPool.commonPool().execute(() -> {
+            IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+            r.recRenew(0, renewalDepth * branching.bits(), r.getGen(), this);
+        });
+    }
+
+    /**
+     * Removes the entries that match the predicate and returns how many were removed.
+     *
+     * <p>Instead of removing the keys one by one, the trie is pruned bottom-up, and each
+     * compressed node is replaced with a single GCAS by one without its matching entries. The
+     * subtrees below the root are pruned in parallel, and a node that changes concurrently is
+     * pruned again on its own. Like {@link #clear()} and unlike a transaction, the removal is
+     * not atomic: readers may see some of the entries removed and others not yet.</p>
+     *
+     * <p>An entry is tested with the value it has when its node is replaced. The predicate may
+     * be called from several threads, and more than once for the same entry. While a
+     * {@linkplain #mutationFeed() mutation feed} is attached, the entries are removed one by one,
+     * so that each removal is recorded.</p>
+     *
+     * @param predicate tests the key and value of an entry
+     * @return the number of removed entries
+     */
+    public final long removeIf(BiPredicate<? super K, ? super V> predicate) {
+        if (isReadOnly())
+            throw new IllegalStateException("Attempted to modify a read-only snapshot");
+        LongAdder removed = new LongAdder();
+        while (true) {
+            IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+            if (feed != null) {
+                for (Iterator<Map.Entry<K, V>> it = readOnlyIterator(); it.hasNext(); ) {
+                    Map.Entry<K, V> e = it.next();
+                    if (predicate.test(e.getKey(), e.getValue()) && remove(e.getKey(), e.getValue())) removed.increment();
+                }
+                return removed.sum();
+            }
+            if (r.recRemoveIf(predicate, 0, r.getGen(), this, removed)) return removed.sum();
+        }
     }
 
     @Override
     public final void clear() {
         while (true) {
             IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
-            if (RDCSS_ROOT(r, r.readCommittedMainNode(this), INodeUtil.createNewRootNode())) {
+            MutationFeed<K, V> f = feed;
+            if (f != null) {
+                recordedClear(f);
                 return;
             }
+            if (RDCSS_ROOT(r, r.readCommittedMainNode(this), INodeUtil.createNewRootNode())) return;
         }
     }
 
+    private void recordedClear(MutationFeed<K, V> f) {
+        f.lockAll();
+        try {
+            while (true) {
+                IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+                if (RDCSS_ROOT(r, r.readCommittedMainNode(this), INodeUtil.createNewRootNode())) break;
+            }
+            f.appendClear();
+        } finally {
+            f.unlockAll();
+        }
+        f.signal();
+    }
+
+    /**
+     * Runs one compaction pass over the current generation of the trie.
+     *
+     * @return the counters of this pass
+     * @see TrieCompactor
+     */
+    public final CompactionStats compact() {
+        CompactionStats stats = new CompactionStats();
+        compact(stats);
+        return stats;
+    }
+
+    /**
+     * Runs one compaction pass over the current generation of the trie, contracting the tombs
+     * and single-entry compressed nodes left behind by cleanups that lost a race.
+     *
+     * @param stats the counters to update
+     */
+    public final void compact(CompactionStats stats) {
+        if (isReadOnly())
+            throw new IllegalStateException("Attempted to modify a read-only snapshot");
+        IndirectionNode<K, V> r = RDCSS_READ_ROOT(false);
+        r.recCompact(0, null, r.getGen(), this,
+                stats.tombsResurrectedCounter(), stats.nodesContractedCounter(), stats.failedAttemptsCounter());
+        stats.recordPass();
+    }
+
+    /**
+     * Returns the value for the key, or null if it is absent. A miss costs the same walk as a
+     * hit and allocates nothing.
+     */
+    public final V find(K k) {
+        long hc = hash(k);
+        return (V) lookuphc(k, hc);
+    }
+
+    /**
+     * Returns the value for the key.
+     *
+     * @throws NoSuchElementException if the key is absent
+     */
     public final V lookup(K k) {
-        int hc = ConcurrentTrieUtil.computeHash((K) k);
-        Object res = lookuphc((K) k, hc);
+        V res = find(k);
         if (res == null) throw new NoSuchElementException();
-        else return (V) res;
+        else return res;
     }
 
     @Override
     public final V get(Object k) {
-        return lookup((K) k);
+        return find((K) k);
+    }
+
+    @Override
+    public final V getOrDefault(Object k, V defaultValue) {
+        V res = find((K) k);
+        return res == null ? defaultValue : res;
     }
 
     @Override
     public final V put(K key, V value) {
-        int hc = ConcurrentTrieUtil.computeHash(key);
+        long hc = hash(key);
         Optional<V> result = insertifhc(key, hc, value, null);
         return result.orElse(null);
     }
 
     public final void update(K key, V value) {
-        int h = key.hashCode();
-        inserthc(key, h, value);
+        inserthc(key, hash(key), value);
     }
 
     @Override
     public final V remove(Object k) {
-        int hc = ConcurrentTrieUtil.computeHash((K) k);
+        long hc = hash((K) k);
         Optional<V> result = removehc((K) k, null, hc);
         return result.orElse(null);
     }
 
     @Override
     public final boolean containsKey(Object k) {
-        int hc = ConcurrentTrieUtil.computeHash((K) k);
+        long hc = hash((K) k);
         return lookuphc((K) k, hc) != null;
     }
 
@@ -207,40 +841,53 @@ public class ConcurrentTrie<K, V> extends ConcurrentHashMap<K, V> {
 
     @Override
     public final V putIfAbsent(K k, V v) {
-        int hc = ConcurrentTrieUtil.computeHash(k);
+        long hc = hash(k);
         Optional<V> result = insertifhc(k, hc, v, INodeUtil.KEY_ABSENT);
         return result.orElse(null);
     }
 
     @Override
     public final boolean remove(Object k, Object v) {
-        int hc = ConcurrentTrieUtil.computeHash((K) k);
+        long hc = hash((K) k);
         return removehc((K) k, (V) v, hc).isPresent();
     }
 
     @Override
     public final boolean replace(K k, V oldValue, V newValue) {
-        int hc = ConcurrentTrieUtil.computeHash(k);
+        long hc = hash(k);
         return insertifhc(k, hc, newValue, oldValue).isPresent();
     }
 
     @Override
     public final V replace(K k, V v) {
-        int hc = ConcurrentTrieUtil.computeHash(k);
+        long hc = hash(k);
         Optional<V> result = insertifhc(k, hc, v, INodeUtil.KEY_PRESENT);
         return result.orElse(null);
     }
 
+    /** Returns an iterator over the {@linkplain #sharedSnapshot() shared snapshot}. */
     public Iterator<Entry<K, V>> iterator() {
-        if (!nonReadOnly()) return readOnlySnapshot().entrySet().iterator();
-        else return new CtrieIterator<>(this);
+        return readOnlyIterator();
     }
 
     public Iterator<Map.Entry<K, V>> readOnlyIterator () {
         if (nonReadOnly ())
-            return readOnlySnapshot().readOnlyIterator();
+            return sharedSnapshot().readOnlyIterator();
         else
             return new CtrieIterator<> (this);
     }
+
+    private static final class SharedSnapshot<K, V> {
+        final ConcurrentTrie<K, V> snapshot;
+        // The main node of the root of the snapshot.
+        final MainNode<K, V> main;
+        final long takenAt;
+
+        SharedSnapshot(ConcurrentTrie<K, V> snapshot, MainNode<K, V> main, long takenAt) {
+            this.snapshot = snapshot;
+            this.main = main;
+            this.takenAt = takenAt;
+        }
+    }
 }
 
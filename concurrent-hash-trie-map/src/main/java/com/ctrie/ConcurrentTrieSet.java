@@ -0,0 +1,149 @@
+package com.ctrie;
+
+import com.ctrie.node.CompressedNode;
+import com.ctrie.node.Generation;
+import com.ctrie.node.IndirectionNode;
+import com.ctrie.node.util.StructuralMerge;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A concurrent set backed by a {@link ConcurrentTrie}.
+ *
+ * <p>Every key is stored with a shared marker value, so an element costs the key reference and
+ * one reference to the marker in the node that holds it. Snapshots take constant time like
+ * those of the trie, and {@link #union}, {@link #intersection} and {@link #difference} build
+ * their result from read-only snapshots of both sides, linking in every subtree that only one
+ * side has or that both share.</p>
+ *
+ * <p>Iterators run over a read-only snapshot and do not support removal. {@link #size()} counts
+ * the keys of a snapshot and takes linear time.</p>
+ *
+ * @param <K> the type of elements
+ */
+public class ConcurrentTrieSet<K> extends AbstractSet<K> {
+    private static final Object PRESENT = new Object();
+
+    private final ConcurrentTrie<K, Object> trie;
+
+    public ConcurrentTrieSet() {
+        this(new ConcurrentTrie<>());
+    }
+
+    public ConcurrentTrieSet(SnapshotRenewal renewal) {
+        this(new ConcurrentTrie<>(renewal));
+    }
+
+    public ConcurrentTrieSet(BranchingFactor branching) {
+        this(new ConcurrentTrie<>(branching));
+    }
+
+    public ConcurrentTrieSet(HashStrategy<? super K> hashing) {
+        this(new ConcurrentTrie<>(hashing));
+    }
+
+    private ConcurrentTrieSet(ConcurrentTrie<K, Object> trie) {
+        this.trie = trie;
+    }
+
+    @Override
+    public final boolean add(K k) {
+        return trie.putIfAbsent(k, PRESENT) == null;
+    }
+
+    @Override
+    public final boolean contains(Object k) {
+        return trie.containsKey(k);
+    }
+
+    @Override
+    public final boolean remove(Object k) {
+        return trie.remove(k) != null;
+    }
+
+    @Override
+    public final void clear() {
+        trie.clear();
+    }
+
+    @Override
+    public final Iterator<K> iterator() {
+        Iterator<Map.Entry<K, Object>> entries = trie.readOnlyIterator();
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public K next() {
+                return entries.next().getKey();
+            }
+        };
+    }
+
+    @Override
+    public final int size() {
+        int size = 0;
+        for (Iterator<K> it = iterator(); it.hasNext(); it.next()) {
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public final boolean isEmpty() {
+        return !iterator().hasNext();
+    }
+
+    public final boolean isReadOnly() {
+        return trie.isReadOnly();
+    }
+
+    /** Returns a writable snapshot of this set. */
+    public final ConcurrentTrieSet<K> snapshot() {
+        return new ConcurrentTrieSet<>(trie.snapshot());
+    }
+
+    /** Returns a read-only snapshot of this set. */
+    public final ConcurrentTrieSet<K> readOnlySnapshot() {
+        return new ConcurrentTrieSet<>(trie.readOnlySnapshot());
+    }
+
+    /**
+     * Returns a new writable set holding the keys of this set and of the other set.
+     */
+    public final ConcurrentTrieSet<K> union(ConcurrentTrieSet<K> other) {
+        return combine(other, StructuralMerge.Operation.UNION);
+    }
+
+    /**
+     * Returns a new writable set holding the keys present in both this set and the other set.
+     */
+    public final ConcurrentTrieSet<K> intersection(ConcurrentTrieSet<K> other) {
+        return combine(other, StructuralMerge.Operation.INTERSECTION);
+    }
+
+    /**
+     * Returns a new writable set holding the keys of this set that are not in the other set.
+     */
+    public final ConcurrentTrieSet<K> difference(ConcurrentTrieSet<K> other) {
+        return combine(other, StructuralMerge.Operation.DIFFERENCE);
+    }
+
+    private ConcurrentTrieSet<K> combine(ConcurrentTrieSet<K> other, StructuralMerge.Operation op) {
+        ConcurrentTrie<K, Object> left = trie.readOnlySnapshot();
+        ConcurrentTrie<K, Object> right = other.trie.readOnlySnapshot();
+        try {
+            Generation gen = new Generation();
+            CompressedNode<K, Object> root = StructuralMerge.combine(left, right, op, gen);
+            return new ConcurrentTrieSet<>(trie.withRoot(new IndirectionNode<>(root, gen)));
+        } finally {
+            // The result links in nodes of both snapshots, not the snapshots themselves.
+            if (left != trie) left.close();
+            if (right != other.trie) right.close();
+        }
+    }
+}
@@ -1,14 +1,12 @@
 package com.ctrie;
 
-import com.ctrie.node.BasicNode;
 import com.ctrie.node.CompressedNode;
 import com.ctrie.node.IndirectionNode;
-import com.ctrie.node.KeyValueNode;
 import com.ctrie.node.ListNode;
 import com.ctrie.node.MainNode;
-import com.ctrie.node.SingletonNode;
 import com.ctrie.node.TombNode;
 
+import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
@@ -19,11 +17,12 @@ import java.util.stream.Collectors;
 
 public class CtrieIterator<K, V> implements Iterator<Map.Entry<K, V>> {
     private final ConcurrentTrie<K, V> ct;
-    private final BasicNode[][] stack = new BasicNode[7][];
-    private final int[] stackpos = new int[7];
+    private final CompressedNode<K, V>[] stack;
+    private final int[] stackpos;
+    private final int[] stackend;
     private int depth = -1;
     private Iterator<Map.Entry<K, V>> subiter = null;
-    private KeyValueNode<K, V> current = null;
+    private Map.Entry<K, V> current = null;
 
     public CtrieIterator(ConcurrentTrie<K, V> ct) {
         this(ct, true);
@@ -31,9 +30,18 @@ public class CtrieIterator<K, V> implements Iterator<Map.Entry<K, V>> {
 
     public CtrieIterator(ConcurrentTrie<K, V> ct, boolean mustInit) {
         this.ct = ct;
+        int levels = ct.maxLevel() / ct.getBranchingFactor().bits();
+        this.stack = newStack(levels);
+        this.stackpos = new int[levels];
+        this.stackend = new int[levels];
         if (mustInit) initialize();
     }
 
+    @SuppressWarnings("unchecked")
+    private static <K, V> CompressedNode<K, V>[] newStack(int levels) {
+        return (CompressedNode<K, V>[]) new CompressedNode<?, ?>[levels];
+    }
+
     @Override
     public boolean hasNext() {
         return current != null || subiter != null;
@@ -47,7 +55,7 @@ public class CtrieIterator<K, V> implements Iterator<Map.Entry<K, V>> {
                 r = subiter.next();
                 checkSubiter();
             } else {
-                r = current.getKeyValuePair();
+                r = current;
                 advance();
             }
             return r;
@@ -57,14 +65,14 @@ public class CtrieIterator<K, V> implements Iterator<Map.Entry<K, V>> {
     }
 
     private void readin(IndirectionNode<K, V> in) {
-        MainNode<K, V> m = in.readCommittedMainNode(ct);
+        // Iterators only walk read-only tries, whose nodes are read like those of a lookup.
+        MainNode<K, V> m = in.readMainNodeForLookup(ct);
         if (m instanceof CompressedNode) {
-            depth += 1;
-            stack[depth] = ((CompressedNode<K, V>) m).array;
-            stackpos[depth] = -1;
+            CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+            push(cn, 0, cn.dataArity() + cn.nodeArity());
             advance();
         } else if (m instanceof TombNode<K, V>) {
-            current = (TombNode<K, V>) m;
+            current = ((TombNode<K, V>) m).getKeyValuePair();
         } else if (m instanceof ListNode) {
             subiter = ((ListNode<K, V>) m).listMap.entrySet().iterator();
             checkSubiter();
@@ -73,6 +81,14 @@ public class CtrieIterator<K, V> implements Iterator<Map.Entry<K, V>> {
         }
     }
 
+    /** Pushes the slots [from, to) of a node, entries first and then indirection nodes. */
+    private void push(CompressedNode<K, V> cn, int from, int to) {
+        depth += 1;
+        stack[depth] = cn;
+        stackpos[depth] = from - 1;
+        stackend[depth] = to;
+    }
+
     private void checkSubiter() {
         if (!subiter.hasNext()) {
             subiter = null;
@@ -89,13 +105,14 @@ public class CtrieIterator<K, V> implements Iterator<Map.Entry<K, V>> {
     private void advance() {
         if (depth >= 0) {
             int npos = stackpos[depth] + 1;
-            if (npos < stack[depth].length) {
+            if (npos < stackend[depth]) {
                 stackpos[depth] = npos;
-                BasicNode sub = stack[depth][npos];
-                if (sub instanceof SingletonNode<?, ?>) {
-                    current = (SingletonNode<K, V>) sub;
-                } else if (sub instanceof IndirectionNode) {
-                    readin((IndirectionNode<K, V>) sub);
+                CompressedNode<K, V> cn = stack[depth];
+                int entries = cn.dataArity();
+                if (npos < entries) {
+                    current = new AbstractMap.SimpleEntry<>(cn.keyAt(npos), cn.valueAt(npos));
+                } else {
+                    readin(cn.nodeAt(npos - entries));
                 }
             } else {
                 depth -= 1;
@@ -117,17 +134,13 @@ public class CtrieIterator<K, V> implements Iterator<Map.Entry<K, V>> {
             return Collections.singletonList(this);
         } else {
             for (int d = 0; d <= depth; d++) {
-                int rem = stack[d].length - 1 - stackpos[d];
+                int rem = stackend[d] - 1 - stackpos[d];
                 if (rem > 0) {
-                    BasicNode[] arr1 = Arrays.copyOfRange(stack[d], stackpos[d] + 1, stackpos[d] + 1 + rem / 2);
-                    BasicNode[] arr2 = Arrays.copyOfRange(stack[d], stackpos[d] + 1 + rem / 2, stack[d].length);
-                    stack[d] = arr1;
-                    stackpos[d] = -1;
+                    int split = stackpos[d] + 1 + rem / 2;
                     CtrieIterator<K, V> it = new CtrieIterator<>(ct, false);
-                    it.stack[0] = arr2;
-                    it.stackpos[0] = -1;
-                    it.depth = 0;
-                    it.advance(); // <-- fix it
+                    it.push(stack[d], split, stackend[d]);
+                    it.advance();
+                    stackend[d] = split;
                     return Arrays.asList(this, it);
                 }
             }
@@ -140,6 +153,6 @@ public class CtrieIterator<K, V> implements Iterator<Map.Entry<K, V>> {
         System.out.println(Arrays.toString(stackpos));
         System.out.println("depth: " + depth);
         System.out.println("current: " + current);
-        System.out.println(Arrays.stream(stack).map(Arrays::toString).collect(Collectors.joining("\n")));
+        System.out.println(Arrays.stream(stack).map(String::valueOf).collect(Collectors.joining("\n")));
     }
 }
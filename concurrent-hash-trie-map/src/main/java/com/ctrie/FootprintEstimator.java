@@ -0,0 +1,100 @@
+package com.ctrie;
+
+import com.ctrie.node.BasicNode;
+import com.ctrie.node.CompressedNode;
+import com.ctrie.node.IndirectionNode;
+import com.ctrie.node.ListNode;
+import com.ctrie.node.MainNode;
+import com.ctrie.node.TombNode;
+
+import java.util.IdentityHashMap;
+
+/**
+ * Estimates how much of a snapshot is shared with the trie it was taken from.
+ *
+ * <p>Sizes assume a 64-bit JVM with compressed references: 12 byte object headers, 4 byte
+ * references and 8 byte alignment. A node that is reachable from both tries is shared together
+ * with its whole subtree, because once a snapshot is taken the nodes below it are never modified
+ * again; the live trie renews a node before it writes below it.</p>
+ */
+final class FootprintEstimator {
+    static final int INODE_BYTES = 24;
+    static final int CNODE_BYTES = 56;
+    static final int TNODE_BYTES = 32;
+    static final int LNODE_BYTES = 24;
+
+    private FootprintEstimator() {
+        // Prevent instantiation
+    }
+
+    static <K, V> SnapshotFootprint estimate(ConcurrentTrie<K, V> snapshot, ConcurrentTrie<K, V> source) {
+        IdentityHashMap<BasicNode, Long> subtreeBytes = new IdentityHashMap<>();
+        long total = collect(snapshot.RDCSS_READ_ROOT(false), snapshot, subtreeBytes);
+        long shared = shared(source.RDCSS_READ_ROOT(false), source, subtreeBytes);
+        return new SnapshotFootprint(shared, total - shared);
+    }
+
+    private static <K, V> long collect(BasicNode node, ConcurrentTrie<K, V> ct, IdentityHashMap<BasicNode, Long> subtreeBytes) {
+        long bytes;
+        if (node instanceof IndirectionNode) {
+            MainNode<K, V> main = mainNodeOf(node, ct);
+            bytes = INODE_BYTES + (main == null ? 0 : collect(main, ct, subtreeBytes));
+        } else if (node instanceof CompressedNode) {
+            CompressedNode<?, ?> cn = (CompressedNode<?, ?>) node;
+            bytes = CNODE_BYTES + arrayBytes(cn.content.length);
+            for (int i = 0; i < cn.nodeArity(); i++) {
+                bytes += collect(cn.nodeAt(i), ct, subtreeBytes);
+            }
+        } else if (node instanceof ListNode) {
+            bytes = LNODE_BYTES + hashMapBytes(((ListNode<?, ?>) node).listMap.size());
+        } else if (node instanceof TombNode) {
+            bytes = TNODE_BYTES;
+        } else {
+            bytes = 0;
+        }
+        subtreeBytes.put(node, bytes);
+        return bytes;
+    }
+
+    private static <K, V> long shared(BasicNode node, ConcurrentTrie<K, V> ct, IdentityHashMap<BasicNode, Long> subtreeBytes) {
+        Long bytes = subtreeBytes.get(node);
+        if (bytes != null) return bytes;
+
+        long shared = 0;
+        if (node instanceof IndirectionNode) {
+            MainNode<K, V> main = mainNodeOf(node, ct);
+            if (main != null) shared = shared(main, ct, subtreeBytes);
+        } else if (node instanceof CompressedNode) {
+            CompressedNode<?, ?> cn = (CompressedNode<?, ?>) node;
+            for (int i = 0; i < cn.nodeArity(); i++) {
+                shared += shared(cn.nodeAt(i), ct, subtreeBytes);
+            }
+        }
+        return shared;
+    }
+
+    /** Reads the committed main node of an indirection node met while walking the trie. */
+    @SuppressWarnings("unchecked")
+    private static <K, V> MainNode<K, V> mainNodeOf(BasicNode node, ConcurrentTrie<K, V> ct) {
+        return ((IndirectionNode<K, V>) node).readCommittedMainNode(ct);
+    }
+
+    /** Returns the bytes of the arrays of a frozen trie and of the trie object itself. */
+    static long estimate(FrozenTrie<?, ?> frozen) {
+        return align(32) + align(16 + 8L * frozen.bitmaps.length) + align(16 + 4L * frozen.offsets.length)
+                + arrayBytes(frozen.entries.length);
+    }
+
+    static long arrayBytes(int length) {
+        return align(16 + 4L * length);
+    }
+
+    private static long hashMapBytes(int size) {
+        int capacity = Integer.highestOneBit(Math.max(1, (int) (size / 0.75f)) * 2 - 1);
+        return align(48) + arrayBytes(Math.max(16, capacity)) + 32L * size;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,245 @@
+package com.ctrie;
+
+import com.ctrie.node.CompressedNode;
+import com.ctrie.node.IndirectionNode;
+import com.ctrie.node.ListNode;
+import com.ctrie.node.MainNode;
+import com.ctrie.node.TombNode;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable hash trie compiled from a read-only snapshot of a {@link ConcurrentTrie} by
+ * {@link ConcurrentTrie#freeze()}.
+ *
+ * <p>The nodes are numbered breadth first and packed into three arrays: two bitmaps per node,
+ * two offsets per node, and the keys and values of all nodes in node order. The children of a
+ * node are numbered consecutively, so a lookup finds the next node from the offset of the first
+ * child and a bit count, the same way it finds an entry. There are no indirection nodes, no
+ * volatile reads and no generation checks, and apart from its keys and values the map is four
+ * objects.</p>
+ *
+ * <p>The map is read-only; every mutator throws {@link UnsupportedOperationException}. It keeps
+ * the branching factor and hash strategy of the trie it was compiled from.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class FrozenTrie<K, V> extends AbstractMap<K, V> {
+    private final BranchingFactor branching;
+    private final HashStrategy<? super K> hashing;
+    private final int maxLevel;
+    // dataMap and nodeMap of node n at 2n and 2n + 1.
+    final long[] bitmaps;
+    // Index of the first entry and number of the first child of node n at 2n and 2n + 1, with a
+    // sentinel pair after the last node.
+    final int[] offsets;
+    // Key and value of entry i at 2i and 2i + 1.
+    final Object[] entries;
+    private Set<Map.Entry<K, V>> entrySet;
+
+    private FrozenTrie(BranchingFactor branching, HashStrategy<? super K> hashing, int maxLevel, long[] bitmaps, int[] offsets, Object[] entries) {
+        this.branching = branching;
+        this.hashing = hashing;
+        this.maxLevel = maxLevel;
+        this.bitmaps = bitmaps;
+        this.offsets = offsets;
+        this.entries = entries;
+    }
+
+    /**
+     * Compiles a read-only snapshot. Tombs and compressed nodes holding a single entry are
+     * stored as entries of their parent, and empty compressed nodes are dropped.
+     */
+    static <K, V> FrozenTrie<K, V> compile(ConcurrentTrie<K, V> snapshot) {
+        Compiler<K, V> compiler = new Compiler<>(snapshot);
+        compiler.run(snapshot.RDCSS_READ_ROOT(false).readCommittedMainNode(snapshot));
+        return new FrozenTrie<>(snapshot.getBranchingFactor(), snapshot.getHashStrategy(), snapshot.maxLevel(),
+                Arrays.copyOf(compiler.bitmaps, 2 * compiler.nodes.size()),
+                Arrays.copyOf(compiler.offsets, 2 * compiler.nodes.size() + 2),
+                Arrays.copyOf(compiler.entries, 2 * compiler.entryCount));
+    }
+
+    /** Returns the value for the key, or null if it is absent. */
+    @SuppressWarnings("unchecked")
+    public V find(K k) {
+        long hc = hashing.hash(k);
+        int bits = branching.bits();
+        int node = 0;
+        for (int lev = 0; lev < maxLevel; lev += bits) {
+            long flag = 1L << branching.index(hc, lev);
+            long dataMap = bitmaps[2 * node];
+            if ((dataMap & flag) != 0) {
+                int i = 2 * (offsets[2 * node] + Long.bitCount(dataMap & (flag - 1)));
+                return entries[i].equals(k) ? (V) entries[i + 1] : null;
+            }
+            long nodeMap = bitmaps[2 * node + 1];
+            if ((nodeMap & flag) == 0) return null;
+            node = offsets[2 * node + 1] + Long.bitCount(nodeMap & (flag - 1));
+        }
+        // All hash bits are consumed, the node holds the keys whose hashes collide.
+        for (int i = 2 * offsets[2 * node], end = 2 * offsets[2 * node + 2]; i < end; i += 2) {
+            if (entries[i].equals(k)) return (V) entries[i + 1];
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object k) {
+        return find((K) k);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(Object k, V defaultValue) {
+        V res = find((K) k);
+        return res == null ? defaultValue : res;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean containsKey(Object k) {
+        return find((K) k) != null;
+    }
+
+    @Override
+    public int size() {
+        return entries.length / 2;
+    }
+
+    public BranchingFactor getBranchingFactor() {
+        return branching;
+    }
+
+    public HashStrategy<? super K> getHashStrategy() {
+        return hashing;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> es = entrySet;
+        if (es == null) {
+            es = new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return FrozenTrie.this.size();
+                }
+            };
+            entrySet = es;
+        }
+        return es;
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private int next = 0;
+
+        @Override
+        public boolean hasNext() {
+            return next < entries.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            if (next >= entries.length) throw new NoSuchElementException();
+            Map.Entry<K, V> e = new AbstractMap.SimpleImmutableEntry<>((K) entries[next], (V) entries[next + 1]);
+            next += 2;
+            return e;
+        }
+    }
+
+    /**
+     * Numbers the nodes of a snapshot breadth first. Processing node n appends its children to
+     * the queue, so they get consecutive numbers, and its entries to the entry array.
+     */
+    private static final class Compiler<K, V> {
+        private final ConcurrentTrie<K, V> snapshot;
+        private final List<MainNode<K, V>> nodes = new ArrayList<>();
+        private long[] bitmaps = new long[16];
+        private int[] offsets = new int[16];
+        private Object[] entries = new Object[32];
+        private int entryCount;
+
+        Compiler(ConcurrentTrie<K, V> snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        void run(MainNode<K, V> root) {
+            nodes.add(root);
+            for (int n = 0; n < nodes.size(); n++) {
+                if (2 * n + 4 > offsets.length) {
+                    bitmaps = Arrays.copyOf(bitmaps, 2 * offsets.length);
+                    offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+                }
+                offsets[2 * n] = entryCount;
+                offsets[2 * n + 1] = nodes.size();
+                MainNode<K, V> m = nodes.get(n);
+                if (m instanceof ListNode) {
+                    for (Map.Entry<K, V> e : ((ListNode<K, V>) m).listMap.entrySet()) {
+                        add(e.getKey(), e.getValue());
+                    }
+                } else {
+                    compress(n, (CompressedNode<K, V>) m);
+                }
+            }
+            offsets[2 * nodes.size()] = entryCount;
+            offsets[2 * nodes.size() + 1] = nodes.size();
+        }
+
+        private void compress(int n, CompressedNode<K, V> cn) {
+            long dataMap = 0;
+            long nodeMap = 0;
+            for (long bits = cn.dataMap | cn.nodeMap; bits != 0; bits &= bits - 1) {
+                long flag = Long.lowestOneBit(bits);
+                if ((cn.dataMap & flag) != 0) {
+                    int idx = cn.dataIndex(flag);
+                    add(cn.keyAt(idx), cn.valueAt(idx));
+                    dataMap |= flag;
+                    continue;
+                }
+                IndirectionNode<K, V> in = cn.nodeAt(cn.nodeIndex(flag));
+                MainNode<K, V> child = in.readCommittedMainNode(snapshot);
+                if (child instanceof TombNode) {
+                    TombNode<K, V> tn = (TombNode<K, V>) child;
+                    add(tn.getKey(), tn.getValue());
+                    dataMap |= flag;
+                } else if (child instanceof CompressedNode && ((CompressedNode<K, V>) child).nodeMap == 0) {
+                    CompressedNode<K, V> leaf = (CompressedNode<K, V>) child;
+                    if (leaf.dataArity() == 1) {
+                        add(leaf.keyAt(0), leaf.valueAt(0));
+                        dataMap |= flag;
+                    } else if (leaf.dataArity() > 1) {
+                        nodes.add(leaf);
+                        nodeMap |= flag;
+                    }
+                } else {
+                    nodes.add(child);
+                    nodeMap |= flag;
+                }
+            }
+            bitmaps[2 * n] = dataMap;
+            bitmaps[2 * n + 1] = nodeMap;
+        }
+
+        private void add(K key, V value) {
+            if (2 * entryCount + 2 > entries.length) entries = Arrays.copyOf(entries, 2 * entries.length);
+            entries[2 * entryCount] = key;
+            entries[2 * entryCount + 1] = value;
+            entryCount++;
+        }
+    }
+}
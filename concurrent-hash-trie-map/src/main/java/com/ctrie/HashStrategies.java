@@ -0,0 +1,47 @@
+package com.ctrie;
+
+/**
+ * The built-in {@link HashStrategy} instances. They are singletons, so that tries created with
+ * the same built-in strategy can be merged structurally.
+ */
+final class HashStrategies {
+
+    static final HashStrategy<Object> STANDARD = new HashStrategy<>() {
+        @Override
+        public long hash(Object key) {
+            return ConcurrentTrieUtil.computeHash(key) & 0xffffffffL;
+        }
+
+        @Override
+        public int bits() {
+            return Integer.SIZE;
+        }
+    };
+
+    static final HashStrategy<Long> LONGS = key -> mix(key);
+
+    static final HashStrategy<CharSequence> STRINGS = key -> {
+        long h = 1125899906842597L;
+        for (int i = 0; i < key.length(); i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        return mix(h);
+    };
+
+    private HashStrategies() {
+        // Prevent instantiation
+    }
+
+    /**
+     * The finalizer of MurmurHash3. It is a bijection, so distinct inputs keep distinct hashes,
+     * and it spreads every input bit over the low bits the top levels of the trie use.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,48 @@
+package com.ctrie;
+
+/**
+ * Computes the hashes a trie uses to place its keys.
+ *
+ * <p>The trie consumes the hash a few bits per level, until all {@link #bits()} bits are used.
+ * Keys whose hashes are equal in all those bits end up together in a list node that is scanned
+ * linearly. The {@link #standard() standard} strategy uses the 32 bits of {@code hashCode()},
+ * which is enough for most maps. Tries with a billion keys or more have many keys with equal
+ * 32-bit hashes and should use a strategy that computes all 64 bits from the key, such as
+ * {@link #longs()}, {@link #strings()}, or a lambda:</p>
+ *
+ * <pre>
+ *     new ConcurrentTrie&lt;UUID, V&gt;(uuid -&gt; uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits());
+ * </pre>
+ *
+ * <p>A strategy must be consistent with {@code equals} and should spread its bits evenly, as
+ * the low bits decide the position at the top levels.</p>
+ *
+ * @param <K> the type of keys
+ */
+@FunctionalInterface
+public interface HashStrategy<K> {
+
+    /** Returns the hash of the key. Only the low {@link #bits()} bits are used. */
+    long hash(K key);
+
+    /** Returns the number of hash bits the trie consumes, 32 or 64. */
+    default int bits() {
+        return Long.SIZE;
+    }
+
+    /** Returns the 32-bit strategy based on {@code hashCode()}, the default of every trie. */
+    @SuppressWarnings("unchecked")
+    static <K> HashStrategy<K> standard() {
+        return (HashStrategy<K>) HashStrategies.STANDARD;
+    }
+
+    /** Returns a 64-bit strategy for {@code Long} keys, which never collides. */
+    static HashStrategy<Long> longs() {
+        return HashStrategies.LONGS;
+    }
+
+    /** Returns a 64-bit strategy for strings and other character sequences. */
+    static HashStrategy<CharSequence> strings() {
+        return HashStrategies.STRINGS;
+    }
+}
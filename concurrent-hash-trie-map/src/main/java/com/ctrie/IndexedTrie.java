@@ -0,0 +1,315 @@
+package com.ctrie;
+
+import com.ctrie.node.CompressedNode;
+import com.ctrie.node.IndirectionNode;
+import com.ctrie.node.ListNode;
+import com.ctrie.node.MainNode;
+import com.ctrie.node.TombNode;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A {@link ConcurrentTrie} with a secondary index, which finds the keys whose values have a
+ * given attribute without scanning the trie.
+ *
+ * <p>The index is a second trie holding one entry per indexed key, made of the attribute of its
+ * value and the key. The hash of an entry puts the hash of the attribute in the low bits, which
+ * the trie consumes first, so all entries of an attribute live in one subtree: a query follows
+ * the hash of the attribute down to that subtree and only walks it. Values with a null
+ * attribute are not indexed.</p>
+ *
+ * <p>A write updates the primary trie and then the index, under the lock of a stripe chosen by
+ * the hash of the key, so that concurrent writes of a key reach the index in the order they
+ * reached the primary trie. The index entry of a new attribute is added before the entry of the
+ * old one is removed. Lookups take no lock, and neither do queries on the map itself: they
+ * report every key whose attribute did not change during the query, and a key that moves
+ * between attributes meanwhile under its old attribute, its new one, or both.
+ * {@link #snapshot()} takes every stripe lock for the time of two RDCSSes and returns read-only
+ * snapshots of both tries at the same point, so that queries on it match its values exactly.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ * @param <A> the type of the indexed attribute
+ */
+public final class IndexedTrie<K, V, A> implements AutoCloseable {
+    private static final int STRIPES = 64;
+    // The index consumes this many low bits of an entry hash, taken from the attribute, before
+    // the bits taken from the key.
+    private static final int ATTRIBUTE_BITS = Integer.SIZE;
+    private static final Object PRESENT = new Object();
+
+    private final ConcurrentTrie<K, V> primary;
+    private final ConcurrentTrie<IndexEntry<A, K>, Object> index;
+    private final Function<? super V, ? extends A> attribute;
+    // Null in read-only snapshots.
+    private final ReentrantLock[] locks;
+
+    public IndexedTrie(Function<? super V, ? extends A> attribute) {
+        this(attribute, HashStrategy.standard());
+    }
+
+    /**
+     * Creates an empty map.
+     *
+     * @param attribute extracts the indexed attribute of a value, or null to leave it unindexed
+     * @param hashing   the hashes of the keys in the primary trie
+     */
+    public IndexedTrie(Function<? super V, ? extends A> attribute, HashStrategy<? super K> hashing) {
+        this.primary = new ConcurrentTrie<>(hashing);
+        this.index = new ConcurrentTrie<>(SnapshotRenewal.FULL, ConcurrentTrie.DEFAULT_RENEWAL_DEPTH, BranchingFactor.FANOUT_32, IndexEntry.HASHING);
+        this.attribute = attribute;
+        this.locks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    private IndexedTrie(ConcurrentTrie<K, V> primary, ConcurrentTrie<IndexEntry<A, K>, Object> index, Function<? super V, ? extends A> attribute) {
+        this.primary = primary;
+        this.index = index;
+        this.attribute = attribute;
+        this.locks = null;
+    }
+
+    public boolean isReadOnly() {
+        return locks == null;
+    }
+
+    /* reads */
+
+    /** Returns the value for the key, or null if it is absent. */
+    public V get(K key) {
+        return primary.find(key);
+    }
+
+    public boolean containsKey(K key) {
+        return primary.containsKey(key);
+    }
+
+    /**
+     * Returns the keys whose values have the attribute. Queries read the shared snapshot of the
+     * index, so a batch of them between two writes takes a single snapshot.
+     */
+    public Set<K> keysWith(A attr) {
+        Set<K> keys = new HashSet<>();
+        collect(index.sharedSnapshot(), attr, keys);
+        return keys;
+    }
+
+    /**
+     * Returns the entries whose values have the attribute. On a map that is being written, the
+     * values are read after the keys were found, and a value that changed in between is left
+     * out if it no longer has the attribute.
+     */
+    public Map<K, V> entriesWith(A attr) {
+        Map<K, V> entries = new HashMap<>();
+        for (K key : keysWith(attr)) {
+            V value = primary.find(key);
+            if (value != null && Objects.equals(attribute.apply(value), attr)) entries.put(key, value);
+        }
+        return entries;
+    }
+
+    /** Returns the primary trie. It must not be written to directly, or the index drifts from it. */
+    public ConcurrentTrie<K, V> primary() {
+        return primary;
+    }
+
+    /**
+     * Returns read-only snapshots of the primary trie and the index, taken at the same point.
+     * The caller should close it once done.
+     */
+    public IndexedTrie<K, V, A> snapshot() {
+        if (isReadOnly()) return this;
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            return new IndexedTrie<>(primary.readOnlySnapshot(), index.readOnlySnapshot(), attribute);
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /* writes */
+
+    /** Associates the value with the key and returns the previous value. */
+    public V put(K key, V value) {
+        ReentrantLock lock = lock(key);
+        try {
+            V old = primary.put(key, value);
+            reindex(key, old, value);
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public V putIfAbsent(K key, V value) {
+        ReentrantLock lock = lock(key);
+        try {
+            V old = primary.putIfAbsent(key, value);
+            if (old == null) reindex(key, null, value);
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public V replace(K key, V value) {
+        ReentrantLock lock = lock(key);
+        try {
+            V old = primary.replace(key, value);
+            if (old != null) reindex(key, old, value);
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean replace(K key, V oldValue, V newValue) {
+        ReentrantLock lock = lock(key);
+        try {
+            if (!primary.replace(key, oldValue, newValue)) return false;
+            reindex(key, oldValue, newValue);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes the key and returns its value. */
+    public V remove(K key) {
+        ReentrantLock lock = lock(key);
+        try {
+            V old = primary.remove(key);
+            if (old != null) reindex(key, old, null);
+            return old;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(K key, V value) {
+        ReentrantLock lock = lock(key);
+        try {
+            if (!primary.remove(key, value)) return false;
+            reindex(key, value, null);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        primary.close();
+        index.close();
+    }
+
+    private ReentrantLock lock(K key) {
+        if (isReadOnly())
+            throw new IllegalStateException("Attempted to modify a read-only snapshot");
+        ReentrantLock lock = locks[(int) HashStrategies.mix(primary.hash(key)) & (STRIPES - 1)];
+        lock.lock();
+        return lock;
+    }
+
+    /** Moves the index entry of the key from the attribute of the old value to that of the new one. */
+    private void reindex(K key, V oldValue, V newValue) {
+        A oldAttr = oldValue == null ? null : attribute.apply(oldValue);
+        A newAttr = newValue == null ? null : attribute.apply(newValue);
+        if (Objects.equals(oldAttr, newAttr)) return;
+        if (newAttr != null) index.put(new IndexEntry<>(newAttr, key), PRESENT);
+        if (oldAttr != null) index.remove(new IndexEntry<>(oldAttr, key));
+    }
+
+    /**
+     * Adds the keys indexed under the attribute in a read-only index. Follows the hash of the
+     * attribute as long as the levels consume attribute bits only, then walks the subtree below,
+     * which holds the attributes that share those bits.
+     */
+    private static <K, A> void collect(ConcurrentTrie<IndexEntry<A, K>, Object> view, A attr, Set<K> keys) {
+        BranchingFactor branching = view.getBranchingFactor();
+        long hc = IndexEntry.attributeHash(attr);
+        IndirectionNode<IndexEntry<A, K>, Object> in = view.RDCSS_READ_ROOT(false);
+        for (int lev = 0; lev + branching.bits() <= ATTRIBUTE_BITS; lev += branching.bits()) {
+            MainNode<IndexEntry<A, K>, Object> m = in.readMainNodeForLookup(view);
+            if (!(m instanceof CompressedNode)) {
+                collect(m, attr, keys, view);
+                return;
+            }
+            CompressedNode<IndexEntry<A, K>, Object> cn = (CompressedNode<IndexEntry<A, K>, Object>) m;
+            long flag = 1L << branching.index(hc, lev);
+            if ((cn.dataMap & flag) != 0) {
+                add(cn.keyAt(cn.dataIndex(flag)), attr, keys);
+                return;
+            } else if ((cn.nodeMap & flag) != 0) {
+                in = cn.nodeAt(cn.nodeIndex(flag));
+            } else {
+                return;
+            }
+        }
+        collect(in.readMainNodeForLookup(view), attr, keys, view);
+    }
+
+    private static <K, A> void collect(MainNode<IndexEntry<A, K>, Object> m, A attr, Set<K> keys, ConcurrentTrie<IndexEntry<A, K>, Object> view) {
+        if (m instanceof CompressedNode) {
+            CompressedNode<IndexEntry<A, K>, Object> cn = (CompressedNode<IndexEntry<A, K>, Object>) m;
+            for (int i = 0; i < cn.dataArity(); i++) {
+                add(cn.keyAt(i), attr, keys);
+            }
+            for (int i = 0; i < cn.nodeArity(); i++) {
+                collect(cn.nodeAt(i).readMainNodeForLookup(view), attr, keys, view);
+            }
+        } else if (m instanceof TombNode) {
+            add(((TombNode<IndexEntry<A, K>, Object>) m).getKey(), attr, keys);
+        } else if (m instanceof ListNode) {
+            for (IndexEntry<A, K> e : ((ListNode<IndexEntry<A, K>, Object>) m).listMap.keySet()) {
+                add(e, attr, keys);
+            }
+        }
+    }
+
+    private static <K, A> void add(IndexEntry<A, K> e, A attr, Set<K> keys) {
+        if (e.attribute.equals(attr)) keys.add(e.key);
+    }
+
+    /** The entry of a key in the index. */
+    private static final class IndexEntry<A, K> {
+        /** Attribute hash in the low half, key hash in the high half. */
+        static final HashStrategy<IndexEntry<?, ?>> HASHING = e -> attributeHash(e.attribute) | HashStrategies.mix(e.key.hashCode()) << ATTRIBUTE_BITS;
+
+        final A attribute;
+        final K key;
+
+        IndexEntry(A attribute, K key) {
+            this.attribute = attribute;
+            this.key = key;
+        }
+
+        static long attributeHash(Object attribute) {
+            return HashStrategies.mix(attribute.hashCode()) & 0xffffffffL;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IndexEntry)) return false;
+            IndexEntry<?, ?> e = (IndexEntry<?, ?>) o;
+            return attribute.equals(e.attribute) && key.equals(e.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * attribute.hashCode() + key.hashCode();
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.ctrie;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only map that answers lookups from a memory-mapped trie file, so that opening a map
+ * of any size takes constant time and the page cache of the operating system decides which
+ * parts of it are in memory.
+ *
+ * <p>{@link #write} stores a read-only snapshot in the layout of a {@link FrozenTrie}: a
+ * header, one record per node with its data and node bitmaps and the offsets of its first entry
+ * and first child, the encoded entries, and an index with the position of every entry. All
+ * numbers are big-endian. A lookup follows the bitmaps and offsets through the mapped region
+ * and only decodes the value it returns; keys are compared in their encoded form.</p>
+ *
+ * <pre>
+ *     MappedTrie.write(trie, path, TrieCodec.utf8(), TrieCodec.longs());
+ *     try (MappedTrie&lt;String, Long&gt; map = MappedTrie.open(path, TrieCodec.utf8(), TrieCodec.longs())) {
+ *         Long id = map.get("key");
+ *     }
+ * </pre>
+ *
+ * <p>The file must be opened with the hash strategy it was written with. Every mutator throws
+ * {@link UnsupportedOperationException}. The mapping itself is released when the map is garbage
+ * collected, as the JDK offers no way to unmap a file explicitly.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class MappedTrie<K, V> extends AbstractMap<K, V> implements AutoCloseable {
+    private static final int MAGIC = 0x43545249; // "CTRI"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int NODE_BYTES = 32;
+    private static final int CHUNK_BITS = 30;
+
+    private final TrieCodec<K> keys;
+    private final TrieCodec<V> values;
+    private final HashStrategy<? super K> hashing;
+    private final BranchingFactor branching;
+    private final int maxLevel;
+    private final long entryCount;
+    private final long nodesOffset;
+    private final long indexOffset;
+    private volatile Region region;
+    private Set<Map.Entry<K, V>> entrySet;
+
+    private MappedTrie(Region region, TrieCodec<K> keys, TrieCodec<V> values, HashStrategy<? super K> hashing,
+                       BranchingFactor branching, long entryCount, long nodesOffset, long indexOffset) {
+        this.region = region;
+        this.keys = keys;
+        this.values = values;
+        this.hashing = hashing;
+        this.branching = branching;
+        this.maxLevel = branching.maxLevel(hashing.bits());
+        this.entryCount = entryCount;
+        this.nodesOffset = nodesOffset;
+        this.indexOffset = indexOffset;
+    }
+
+    /**
+     * Writes a read-only snapshot of the trie to the file, replacing its content.
+     *
+     * @param trie   the trie to write
+     * @param file   the file to write
+     * @param keys   the codec of the keys
+     * @param values the codec of the values
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> void write(ConcurrentTrie<K, V> trie, Path file, TrieCodec<? super K> keys, TrieCodec<? super V> values) throws IOException {
+        FrozenTrie<K, V> frozen = trie.freeze();
+        int nodeCount = frozen.bitmaps.length / 2;
+        int count = frozen.size();
+        long[] positions = new long[count + 1];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+            out.write(new byte[HEADER_BYTES]);
+            for (int n = 0; n <= nodeCount; n++) {
+                out.writeLong(n < nodeCount ? frozen.bitmaps[2 * n] : 0);
+                out.writeLong(n < nodeCount ? frozen.bitmaps[2 * n + 1] : 0);
+                out.writeLong(frozen.offsets[2 * n]);
+                out.writeLong(frozen.offsets[2 * n + 1]);
+            }
+            long pos = HEADER_BYTES + (long) (nodeCount + 1) * NODE_BYTES;
+            long dataOffset = pos;
+            for (int i = 0; i < count; i++) {
+                positions[i] = pos;
+                byte[] k = keys.encode((K) frozen.entries[2 * i]);
+                byte[] v = values.encode((V) frozen.entries[2 * i + 1]);
+                out.writeInt(k.length);
+                out.write(k);
+                out.writeInt(v.length);
+                out.write(v);
+                pos += 8L + k.length + v.length;
+            }
+            positions[count] = pos;
+            // Align the index, so that no number in it spans two mapped chunks.
+            while (pos % Long.BYTES != 0) {
+                out.writeByte(0);
+                pos++;
+            }
+            long indexOffset = pos;
+            for (long p : positions) {
+                out.writeLong(p);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION)
+                    .putInt(frozen.getBranchingFactor().bits()).putInt(frozen.getHashStrategy().bits())
+                    .putLong(nodeCount).putLong(count)
+                    .putLong(HEADER_BYTES).putLong(dataOffset).putLong(indexOffset)
+                    .putLong(indexOffset + (long) (count + 1) * Long.BYTES);
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    /**
+     * Maps a trie file written with the standard hash strategy.
+     *
+     * @param file   the file to map
+     * @param keys   the codec the keys were written with
+     * @param values the codec the values were written with
+     * @throws IOException if the file cannot be mapped or is not a trie file
+     */
+    public static <K, V> MappedTrie<K, V> open(Path file, TrieCodec<K> keys, TrieCodec<V> values) throws IOException {
+        return open(file, keys, values, HashStrategy.standard());
+    }
+
+    /**
+     * Maps a trie file.
+     *
+     * @param file    the file to map
+     * @param keys    the codec the keys were written with
+     * @param values  the codec the values were written with
+     * @param hashing the hash strategy the file was written with
+     * @throws IOException              if the file cannot be mapped or is not a trie file
+     * @throws IllegalArgumentException if the file was written with a hash of a different width
+     */
+    public static <K, V> MappedTrie<K, V> open(Path file, TrieCodec<K> keys, TrieCodec<V> values, HashStrategy<? super K> hashing) throws IOException {
+        return open(file, keys, values, hashing, CHUNK_BITS);
+    }
+
+    static <K, V> MappedTrie<K, V> open(Path file, TrieCodec<K> keys, TrieCodec<V> values, HashStrategy<? super K> hashing, int chunkBits) throws IOException {
+        Region region;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            region = new Region(channel, chunkBits);
+        }
+        if (region.size < HEADER_BYTES || region.getInt(0) != MAGIC || region.getInt(4) != VERSION)
+            throw new IOException("Not a trie file: " + file);
+        int bits = region.getInt(8);
+        BranchingFactor branching = null;
+        for (BranchingFactor b : BranchingFactor.values()) {
+            if (b.bits() == bits) branching = b;
+        }
+        if (branching == null || region.getLong(56) != region.size)
+            throw new IOException("Corrupt trie file: " + file);
+        if (region.getInt(12) != hashing.bits())
+            throw new IllegalArgumentException("File was written with " + region.getInt(12) + "-bit hashes, not " + hashing.bits());
+        return new MappedTrie<>(region, keys, values, hashing, branching, region.getLong(24), region.getLong(32), region.getLong(48));
+    }
+
+    /** Returns the value for the key, or null if it is absent. */
+    public V find(K k) {
+        Region r = region();
+        long hc = hashing.hash(k);
+        int bits = branching.bits();
+        long node = 0;
+        for (int lev = 0; lev < maxLevel; lev += bits) {
+            long flag = 1L << branching.index(hc, lev);
+            long rec = nodesOffset + node * NODE_BYTES;
+            long dataMap = r.getLong(rec);
+            if ((dataMap & flag) != 0) {
+                long e = r.getLong(rec + 16) + Long.bitCount(dataMap & (flag - 1));
+                long pos = r.getLong(indexOffset + e * Long.BYTES);
+                return keyAt(r, pos, keys.encode(k)) ? valueAt(r, pos) : null;
+            }
+            long nodeMap = r.getLong(rec + 8);
+            if ((nodeMap & flag) == 0) return null;
+            node = r.getLong(rec + 24) + Long.bitCount(nodeMap & (flag - 1));
+        }
+        // All hash bits are consumed, the node holds the keys whose hashes collide.
+        byte[] kb = keys.encode(k);
+        long rec = nodesOffset + node * NODE_BYTES;
+        for (long e = r.getLong(rec + 16), end = r.getLong(rec + NODE_BYTES + 16); e < end; e++) {
+            long pos = r.getLong(indexOffset + e * Long.BYTES);
+            if (keyAt(r, pos, kb)) return valueAt(r, pos);
+        }
+        return null;
+    }
+
+    private static boolean keyAt(Region r, long pos, byte[] kb) {
+        return r.getInt(pos) == kb.length && r.equals(pos + 4, kb);
+    }
+
+    private V valueAt(Region r, long pos) {
+        long vpos = pos + 4 + r.getInt(pos);
+        return values.decode(r.get(vpos + 4, r.getInt(vpos)));
+    }
+
+    private Region region() {
+        Region r = region;
+        if (r == null) throw new IllegalStateException("Attempted to access a closed trie");
+        return r;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object k) {
+        return find((K) k);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(Object k, V defaultValue) {
+        V res = find((K) k);
+        return res == null ? defaultValue : res;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean containsKey(Object k) {
+        return find((K) k) != null;
+    }
+
+    /** Returns the number of entries, which may exceed {@link Integer#MAX_VALUE}. */
+    public long mappingCount() {
+        return entryCount;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(entryCount, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> es = entrySet;
+        if (es == null) {
+            es = new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator(region());
+                }
+
+                @Override
+                public int size() {
+                    return MappedTrie.this.size();
+                }
+            };
+            entrySet = es;
+        }
+        return es;
+    }
+
+    /**
+     * Releases the mapped region. Any later operation on this map throws
+     * {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        region = null;
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final Region r;
+        private long next = 0;
+
+        EntryIterator(Region r) {
+            this.r = r;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < entryCount;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next >= entryCount) throw new NoSuchElementException();
+            long pos = r.getLong(indexOffset + next * Long.BYTES);
+            next++;
+            K key = keys.decode(r.get(pos + 4, r.getInt(pos)));
+            return new AbstractMap.SimpleImmutableEntry<>(key, valueAt(r, pos));
+        }
+    }
+
+    /**
+     * A file mapped in chunks of 2^chunkBits bytes, as a single buffer cannot exceed 2 GB. Reads
+     * that span two chunks are assembled byte by byte.
+     */
+    private static final class Region {
+        private final MappedByteBuffer[] chunks;
+        private final int chunkBits;
+        private final long chunkMask;
+        final long size;
+
+        Region(FileChannel channel, int chunkBits) throws IOException {
+            this.size = channel.size();
+            this.chunkBits = chunkBits;
+            this.chunkMask = (1L << chunkBits) - 1;
+            int count = (int) ((size + chunkMask) >>> chunkBits);
+            this.chunks = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = (long) i << chunkBits;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkMask + 1, size - start));
+            }
+        }
+
+        byte getByte(long pos) {
+            return chunks[(int) (pos >>> chunkBits)].get((int) (pos & chunkMask));
+        }
+
+        long getLong(long pos) {
+            MappedByteBuffer chunk = chunks[(int) (pos >>> chunkBits)];
+            int off = (int) (pos & chunkMask);
+            if (off + Long.BYTES <= chunk.limit()) return chunk.getLong(off);
+            long v = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                v = (v << 8) | (getByte(pos + i) & 0xff);
+            }
+            return v;
+        }
+
+        int getInt(long pos) {
+            MappedByteBuffer chunk = chunks[(int) (pos >>> chunkBits)];
+            int off = (int) (pos & chunkMask);
+            if (off + Integer.BYTES <= chunk.limit()) return chunk.getInt(off);
+            int v = 0;
+            for (int i = 0; i < Integer.BYTES; i++) {
+                v = (v << 8) | (getByte(pos + i) & 0xff);
+            }
+            return v;
+        }
+
+        byte[] get(long pos, int length) {
+            byte[] bytes = new byte[length];
+            if (length == 0) return bytes;
+            MappedByteBuffer chunk = chunks[(int) (pos >>> chunkBits)];
+            int off = (int) (pos & chunkMask);
+            if (off + length <= chunk.limit()) {
+                chunk.get(off, bytes);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = getByte(pos + i);
+                }
+            }
+            return bytes;
+        }
+
+        boolean equals(long pos, byte[] bytes) {
+            if (bytes.length == 0) return true;
+            MappedByteBuffer chunk = chunks[(int) (pos >>> chunkBits)];
+            int off = (int) (pos & chunkMask);
+            if (off + bytes.length <= chunk.limit()) {
+                for (int i = 0; i < bytes.length; i++) {
+                    if (chunk.get(off + i) != bytes[i]) return false;
+                }
+            } else {
+                for (int i = 0; i < bytes.length; i++) {
+                    if (getByte(pos + i) != bytes[i]) return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.ctrie;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A change-data-capture feed of the writes committed to a {@link ConcurrentTrie}, attached by
+ * {@link ConcurrentTrie#mutationFeed()}.
+ *
+ * <p>While the feed is attached, every successful put, replace, remove, clear and transaction
+ * commit appends its mutations to a ring buffer, one per stripe, the stripe chosen by the hash
+ * of the key. A write and its append happen under the lock of that stripe, so the mutations of
+ * a key are appended in commit order, while writes in different stripes do not contend. Clears
+ * and transaction commits take every stripe lock. A trie without a feed takes no locks.</p>
+ *
+ * <p>A clear appends one {@link TrieMutation.Type#CLEAR} to every stripe, and batches interleave
+ * the stripes, so a consumer may see writes to one stripe that follow a clear before it sees
+ * that clear in another. A clear therefore stands for removing the keys of its own stripe only,
+ * those for which {@link #stripeOf} returns its {@link TrieMutation#stripe()}.</p>
+ *
+ * <p>Subscribers receive lists of up to {@value #MAX_BATCH} mutations, one list per unit of
+ * demand, on the executor of the feed. A subscription starts with the mutations committed after
+ * it was made. {@link #snapshotAndSubscribe} also returns a read-only snapshot holding exactly
+ * the writes before them, so a consumer can load the snapshot and then apply the feed.</p>
+ *
+ * <p>A ring buffer keeps the last {@code capacity} mutations of its stripe. A subscriber that
+ * falls further behind fails with an {@link IllegalStateException} and has to start over from a
+ * new snapshot.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class MutationFeed<K, V> implements Flow.Publisher<List<TrieMutation<K, V>>>, AutoCloseable {
+    /** Maximum number of mutations in one batch. */
+    public static final int MAX_BATCH = 256;
+
+    private final ConcurrentTrie<K, V> trie;
+    private final Stripe<K, V>[] stripes;
+    private final int capacity;
+    private final Executor executor;
+    private final List<FeedSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed;
+
+    @SuppressWarnings("unchecked")
+    MutationFeed(ConcurrentTrie<K, V> trie, int stripes, int capacity, Executor executor) {
+        if (stripes < 1 || Integer.bitCount(stripes) != 1)
+            throw new IllegalArgumentException("stripes must be a power of two: " + stripes);
+        if (capacity < 1 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        this.trie = trie;
+        this.stripes = (Stripe<K, V>[]) new Stripe<?, ?>[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe<>(i, capacity);
+        }
+        this.capacity = capacity;
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    public int stripeCount() {
+        return stripes.length;
+    }
+
+    /** Returns the number of mutations each stripe keeps for subscribers that fall behind. */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** Returns the stripe that the mutations of the key are appended to. */
+    public int stripeOf(K key) {
+        return stripeOf(trie.hash(key));
+    }
+
+    private int stripeOf(long hc) {
+        return (int) HashStrategies.mix(hc) & (stripes.length - 1);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Subscribes to the mutations committed from now on. */
+    @Override
+    public void subscribe(Flow.Subscriber<? super List<TrieMutation<K, V>>> subscriber) {
+        start(new FeedSubscription(Objects.requireNonNull(subscriber), tails()));
+    }
+
+    /**
+     * Takes a read-only snapshot of the trie and subscribes to the mutations committed after it,
+     * with no write in between.
+     *
+     * @return the snapshot, which the caller should close once it has been loaded
+     */
+    public ConcurrentTrie<K, V> snapshotAndSubscribe(Flow.Subscriber<? super List<TrieMutation<K, V>>> subscriber) {
+        Objects.requireNonNull(subscriber);
+        ConcurrentTrie<K, V> snapshot;
+        AtomicLongArray cursors;
+        lockAll();
+        try {
+            snapshot = trie.readOnlySnapshot();
+            cursors = tails();
+        } finally {
+            unlockAll();
+        }
+        start(new FeedSubscription(subscriber, cursors));
+        return snapshot;
+    }
+
+    /**
+     * Detaches the feed from the trie. Subscribers receive the mutations recorded so far as they
+     * request them, followed by {@code onComplete}. Writes that take effect after the close are
+     * not recorded.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        // Under every stripe lock, so that a writer that read the feed before it was detached
+        // either appends before the close or finds its stripe closed; no append follows the
+        // onComplete of a subscriber.
+        lockAll();
+        try {
+            for (Stripe<K, V> s : stripes) {
+                s.closed = true;
+            }
+            closed = true;
+            trie.detachFeed(this);
+        } finally {
+            unlockAll();
+        }
+        signal();
+    }
+
+    private void start(FeedSubscription s) {
+        // The subscription counts as busy until onSubscribe returns, so that a request made
+        // from onSubscribe does not deliver a batch before it returns.
+        s.wip.set(1);
+        s.subscriber.onSubscribe(s);
+        subscriptions.add(s);
+        s.release();
+    }
+
+    private AtomicLongArray tails() {
+        AtomicLongArray tails = new AtomicLongArray(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            tails.set(i, stripes[i].tail);
+        }
+        return tails;
+    }
+
+    /* called by the trie */
+
+    /** Locks and returns the stripe of the hash. */
+    Stripe<K, V> lock(long hc) {
+        Stripe<K, V> s = stripes[stripeOf(hc)];
+        s.lock.lock();
+        return s;
+    }
+
+    void lockAll() {
+        for (Stripe<K, V> s : stripes) {
+            s.lock.lock();
+        }
+    }
+
+    void unlockAll() {
+        for (Stripe<K, V> s : stripes) {
+            s.lock.unlock();
+        }
+    }
+
+    /** Appends writes to their stripes. The caller holds every stripe lock. */
+    void appendAll(List<TrieMutation<K, V>> writes) {
+        for (TrieMutation<K, V> m : writes) {
+            Stripe<K, V> s = stripes[stripeOf(m.key())];
+            s.append(m.type(), m.key(), m.oldValue(), m.newValue());
+        }
+    }
+
+    /** Appends a clear to every stripe. The caller holds every stripe lock. */
+    void appendClear() {
+        for (Stripe<K, V> s : stripes) {
+            s.append(TrieMutation.Type.CLEAR, null, null, null);
+        }
+    }
+
+    /** Wakes up the subscribers after an append. Called without holding a stripe lock. */
+    void signal() {
+        for (FeedSubscription s : subscriptions) {
+            s.schedule();
+        }
+    }
+
+    static final class Stripe<K, V> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final int index;
+        private final TrieMutation<K, V>[] ring;
+        // Number of mutations appended so far. Written under the lock, after the ring slot, so a
+        // reader that sees the tail sees the slots before it, or newer mutations in their place.
+        private volatile long tail;
+        // Set under the lock once the feed is closed, after which appends are dropped.
+        private boolean closed;
+
+        @SuppressWarnings("unchecked")
+        Stripe(int index, int capacity) {
+            this.index = index;
+            this.ring = (TrieMutation<K, V>[]) new TrieMutation<?, ?>[capacity];
+        }
+
+        void append(TrieMutation.Type type, K key, V oldValue, V newValue) {
+            if (closed) return;
+            long seq = tail;
+            ring[(int) seq & (ring.length - 1)] = new TrieMutation<>(type, key, oldValue, newValue, index, seq);
+            tail = seq + 1;
+        }
+
+        void unlock() {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The cursors of one subscriber, one per stripe. At most one thread drains a subscription at
+     * a time: whoever moves {@code wip} from 0 to 1 runs the drain on the executor, and the drain
+     * checks for new work after resetting it, so no append or request is missed.
+     */
+    private final class FeedSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super List<TrieMutation<K, V>>> subscriber;
+        private final AtomicLongArray cursors;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+        private int nextStripe;
+
+        FeedSubscription(Flow.Subscriber<? super List<TrieMutation<K, V>>> subscriber, AtomicLongArray cursors) {
+            this.subscriber = subscriber;
+            this.cursors = cursors;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                requested.getAndUpdate(r -> r + n < 0 ? Long.MAX_VALUE : r + n);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void schedule() {
+            if (wip.get() == 0 && ready() && wip.compareAndSet(0, 1)) {
+                executor.execute(this);
+            }
+        }
+
+        void release() {
+            wip.set(0);
+            schedule();
+        }
+
+        private boolean ready() {
+            if (cancelled) return false;
+            if (error != null) return true;
+            if (!pending()) return closed;
+            return requested.get() > 0;
+        }
+
+        private boolean pending() {
+            for (int i = 0; i < stripes.length; i++) {
+                if (stripes[i].tail != cursors.get(i)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            do {
+                drain();
+                wip.set(0);
+            } while (ready() && wip.compareAndSet(0, 1));
+        }
+
+        private void drain() {
+            while (!cancelled) {
+                Throwable e = error;
+                if (e != null) {
+                    fail(e);
+                    return;
+                }
+                boolean done = closed;
+                if (!pending()) {
+                    if (done) {
+                        cancel();
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+                if (requested.get() == 0) return;
+                List<TrieMutation<K, V>> batch = poll();
+                if (batch == null) {
+                    fail(new IllegalStateException("Subscriber fell more than " + capacity + " mutations behind the feed"));
+                    return;
+                }
+                if (requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+                try {
+                    subscriber.onNext(batch);
+                } catch (RuntimeException ex) {
+                    fail(ex);
+                    return;
+                }
+            }
+        }
+
+        private void fail(Throwable e) {
+            cancel();
+            subscriber.onError(e);
+        }
+
+        /**
+         * Takes up to {@link #MAX_BATCH} mutations, starting at a different stripe each time so
+         * that a busy stripe does not hold back the others. Returns null if a ring buffer
+         * overwrote a mutation before it was taken.
+         */
+        private List<TrieMutation<K, V>> poll() {
+            List<TrieMutation<K, V>> batch = new ArrayList<>();
+            for (int i = 0; i < stripes.length && batch.size() < MAX_BATCH; i++) {
+                int s = nextStripe;
+                nextStripe = (s + 1) & (stripes.length - 1);
+                Stripe<K, V> stripe = stripes[s];
+                long from = cursors.get(s);
+                long to = Math.min(stripe.tail, from + MAX_BATCH - batch.size());
+                for (long seq = from; seq < to; seq++) {
+                    TrieMutation<K, V> m = stripe.ring[(int) seq & (capacity - 1)];
+                    if (m == null || m.sequence() != seq) return null;
+                    batch.add(m);
+                }
+                cursors.set(s, to);
+            }
+            return batch;
+        }
+    }
+}
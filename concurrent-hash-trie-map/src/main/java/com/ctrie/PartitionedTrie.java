@@ -0,0 +1,347 @@
+package com.ctrie;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+
+/**
+ * A concurrent map split into a fixed number of independent {@link ConcurrentTrie}s, selected by
+ * the top bits of the mixed hash of a key.
+ *
+ * <p>Every trie has its own root, so lookups, writes, clears and the RDCSS of a snapshot only
+ * contend with the operations on the same partition. The hash is mixed before its top bits are
+ * taken, as hashes such as those of small integers have no top bits set. The tries consume the
+ * unmixed hash from the low bits, so the partition bits do not make them deeper.</p>
+ *
+ * <p>A snapshot of the whole map must not see a write to one partition without the writes to
+ * other partitions that completed before it. Writers therefore hold a shared lock of their
+ * partition, which only {@link #snapshot()} and {@link #readOnlySnapshot()} take exclusively,
+ * for the time it takes to snapshot each partition, i.e. one RDCSS per partition. Writers to
+ * different partitions never share a lock, and lookups take no lock at all.</p>
+ *
+ * <p>{@link #size()} and {@link #parallelForEach} work on a read-only snapshot and visit the
+ * partitions in parallel.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class PartitionedTrie<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V>, AutoCloseable {
+    private final ConcurrentTrie<K, V>[] partitions;
+    // Null in read-only snapshots.
+    private final StampedLock[] locks;
+    private final HashStrategy<? super K> hashing;
+    private final int shift;
+    private Set<Map.Entry<K, V>> entrySet;
+
+    public PartitionedTrie(int partitions) {
+        this(partitions, SnapshotRenewal.FULL, BranchingFactor.FANOUT_32, HashStrategy.standard());
+    }
+
+    /**
+     * Creates an empty map.
+     *
+     * @param partitions the number of partitions, a power of two
+     * @param renewal    how the nodes of a partition are renewed after a snapshot
+     * @param branching  the number of children per compressed node
+     * @param hashing    the hashes of the keys
+     */
+    public PartitionedTrie(int partitions, SnapshotRenewal renewal, BranchingFactor branching, HashStrategy<? super K> hashing) {
+        if (partitions < 1 || partitions > (1 << 16) || Integer.bitCount(partitions) != 1)
+            throw new IllegalArgumentException("partitions must be a power of two up to 65536: " + partitions);
+        this.partitions = newArray(partitions);
+        this.locks = new StampedLock[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new ConcurrentTrie<>(renewal, ConcurrentTrie.DEFAULT_RENEWAL_DEPTH, branching, hashing);
+            this.locks[i] = new StampedLock();
+        }
+        this.hashing = hashing;
+        this.shift = Long.SIZE - Integer.numberOfTrailingZeros(partitions);
+    }
+
+    private PartitionedTrie(ConcurrentTrie<K, V>[] partitions, boolean readOnly, HashStrategy<? super K> hashing, int shift) {
+        this.partitions = partitions;
+        this.locks = readOnly ? null : new StampedLock[partitions.length];
+        if (!readOnly) {
+            for (int i = 0; i < partitions.length; i++) {
+                this.locks[i] = new StampedLock();
+            }
+        }
+        this.hashing = hashing;
+        this.shift = shift;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> ConcurrentTrie<K, V>[] newArray(int length) {
+        return (ConcurrentTrie<K, V>[]) new ConcurrentTrie<?, ?>[length];
+    }
+
+    /** Returns the index of the partition of the key. */
+    int partitionOf(Object k) {
+        if (partitions.length == 1) return 0;
+        @SuppressWarnings("unchecked")
+        long hc = hashing.hash((K) k);
+        return (int) (HashStrategies.mix(hc) >>> shift);
+    }
+
+    /** Returns the number of partitions. */
+    public int partitionCount() {
+        return partitions.length;
+    }
+
+    public boolean isReadOnly() {
+        return locks == null;
+    }
+
+    /* reads */
+
+    /** Returns the value for the key, or null if it is absent. */
+    public V find(K k) {
+        return partitions[partitionOf(k)].find(k);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object k) {
+        return find((K) k);
+    }
+
+    @Override
+    public V getOrDefault(Object k, V defaultValue) {
+        V res = get(k);
+        return res == null ? defaultValue : res;
+    }
+
+    @Override
+    public boolean containsKey(Object k) {
+        return get(k) != null;
+    }
+
+    /* writes */
+
+    private long lockShared(int p) {
+        if (locks == null)
+            throw new IllegalStateException("Attempted to modify a read-only snapshot");
+        return locks[p].readLock();
+    }
+
+    @Override
+    public V put(K k, V v) {
+        int p = partitionOf(k);
+        long stamp = lockShared(p);
+        try {
+            return partitions[p].put(k, v);
+        } finally {
+            locks[p].unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K k, V v) {
+        int p = partitionOf(k);
+        long stamp = lockShared(p);
+        try {
+            return partitions[p].putIfAbsent(k, v);
+        } finally {
+            locks[p].unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public V remove(Object k) {
+        int p = partitionOf(k);
+        long stamp = lockShared(p);
+        try {
+            return partitions[p].remove(k);
+        } finally {
+            locks[p].unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove(Object k, Object v) {
+        int p = partitionOf(k);
+        long stamp = lockShared(p);
+        try {
+            return partitions[p].remove(k, v);
+        } finally {
+            locks[p].unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean replace(K k, V oldValue, V newValue) {
+        int p = partitionOf(k);
+        long stamp = lockShared(p);
+        try {
+            return partitions[p].replace(k, oldValue, newValue);
+        } finally {
+            locks[p].unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public V replace(K k, V v) {
+        int p = partitionOf(k);
+        long stamp = lockShared(p);
+        try {
+            return partitions[p].replace(k, v);
+        } finally {
+            locks[p].unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Clears every partition. Like a sequence of removals, the partitions are cleared one after
+     * the other, so a concurrent snapshot may see some of them cleared and others not.
+     */
+    @Override
+    public void clear() {
+        for (int p = 0; p < partitions.length; p++) {
+            long stamp = lockShared(p);
+            try {
+                partitions[p].clear();
+            } finally {
+                locks[p].unlockRead(stamp);
+            }
+        }
+    }
+
+    /* snapshots */
+
+    /** Returns a writable snapshot of all partitions, taken at a single point in time. */
+    public PartitionedTrie<K, V> snapshot() {
+        return snapshotAll(false);
+    }
+
+    /** Returns a read-only snapshot of all partitions, taken at a single point in time. */
+    public PartitionedTrie<K, V> readOnlySnapshot() {
+        if (isReadOnly()) return this;
+        return snapshotAll(true);
+    }
+
+    private PartitionedTrie<K, V> snapshotAll(boolean readOnly) {
+        if (isReadOnly())
+            throw new IllegalStateException("Attempted to modify a read-only snapshot");
+        ConcurrentTrie<K, V>[] copies = newArray(partitions.length);
+        long[] stamps = new long[partitions.length];
+        for (int p = 0; p < partitions.length; p++) {
+            stamps[p] = locks[p].writeLock();
+        }
+        try {
+            for (int p = 0; p < partitions.length; p++) {
+                copies[p] = readOnly ? partitions[p].readOnlySnapshot() : partitions[p].snapshot();
+            }
+        } finally {
+            for (int p = 0; p < partitions.length; p++) {
+                locks[p].unlockWrite(stamps[p]);
+            }
+        }
+        return new PartitionedTrie<>(copies, readOnly, hashing, shift);
+    }
+
+    /* bulk reads */
+
+    /** Counts the entries of a read-only snapshot, one partition per task. */
+    @Override
+    public int size() {
+        PartitionedTrie<K, V> s = readOnlySnapshot();
+        try {
+            long size = Arrays.stream(s.partitions).parallel().mapToLong(PartitionedTrie::count).sum();
+            return (int) Math.min(size, Integer.MAX_VALUE);
+        } finally {
+            if (s != this) s.close();
+        }
+    }
+
+    private static long count(ConcurrentTrie<?, ?> partition) {
+        long n = 0;
+        for (Iterator<?> it = partition.readOnlyIterator(); it.hasNext(); it.next()) {
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !entrySet().iterator().hasNext();
+    }
+
+    /**
+     * Runs the action on every entry of a read-only snapshot, visiting the partitions in
+     * parallel. The action may be called from several threads at once.
+     */
+    public void parallelForEach(BiConsumer<? super K, ? super V> action) {
+        PartitionedTrie<K, V> s = readOnlySnapshot();
+        try {
+            Arrays.stream(s.partitions).parallel().forEach(partition -> {
+                for (Iterator<Map.Entry<K, V>> it = partition.readOnlyIterator(); it.hasNext(); ) {
+                    Map.Entry<K, V> e = it.next();
+                    action.accept(e.getKey(), e.getValue());
+                }
+            });
+        } finally {
+            if (s != this) s.close();
+        }
+    }
+
+    /** Returns the entries of a read-only snapshot, partition by partition. */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        Set<Map.Entry<K, V>> es = entrySet;
+        if (es == null) {
+            es = new AbstractSet<>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator(readOnlySnapshot().partitions);
+                }
+
+                @Override
+                public int size() {
+                    return PartitionedTrie.this.size();
+                }
+            };
+            entrySet = es;
+        }
+        return es;
+    }
+
+    /** Closes every partition. */
+    @Override
+    public void close() {
+        for (ConcurrentTrie<K, V> partition : partitions) {
+            partition.close();
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private final ConcurrentTrie<K, V>[] snapshot;
+        private int next = 0;
+        private Iterator<Map.Entry<K, V>> current = null;
+
+        EntryIterator(ConcurrentTrie<K, V>[] snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (current == null || !current.hasNext()) {
+                if (next == snapshot.length) return false;
+                current = snapshot[next++].readOnlyIterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return current.next();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.ctrie;
+
+/**
+ * Estimated memory held by the structure of a snapshot, split into the part it shares with
+ * the trie it was taken from and the part that only the snapshot keeps reachable.
+ *
+ * <p>The estimate counts trie nodes only, not the keys and values they reference, and assumes a
+ * 64-bit JVM with compressed references.</p>
+ */
+public final class SnapshotFootprint {
+    private final long sharedBytes;
+    private final long uniqueBytes;
+
+    public SnapshotFootprint(long sharedBytes, long uniqueBytes) {
+        this.sharedBytes = sharedBytes;
+        this.uniqueBytes = uniqueBytes;
+    }
+
+    /** Returns the bytes of the snapshot that are still reachable from the source trie. */
+    public long getSharedBytes() {
+        return sharedBytes;
+    }
+
+    /** Returns the bytes that would become garbage if the snapshot were closed. */
+    public long getUniqueBytes() {
+        return uniqueBytes;
+    }
+
+    public long getTotalBytes() {
+        return sharedBytes + uniqueBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotFootprint(shared: " + sharedBytes + ", unique: " + uniqueBytes + ")";
+    }
+}
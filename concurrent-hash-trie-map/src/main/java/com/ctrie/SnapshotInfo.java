@@ -0,0 +1,76 @@
+package com.ctrie;
+
+import com.ctrie.node.Generation;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+
+/**
+ * Describes a snapshot taken from a {@link ConcurrentTrie}, as reported by
+ * {@link ConcurrentTrie#liveSnapshots()}.
+ *
+ * <p>The snapshot itself is only weakly referenced, so tracking it does not keep it alive. A
+ * snapshot stops being live once it is closed or garbage collected.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class SnapshotInfo<K, V> {
+    private final WeakReference<ConcurrentTrie<K, V>> snapshot;
+    private final ConcurrentTrie<K, V> source;
+    private final Generation generation;
+    private final boolean readOnly;
+    private volatile boolean closed;
+
+    SnapshotInfo(ConcurrentTrie<K, V> snapshot, ConcurrentTrie<K, V> source, Generation generation) {
+        this.snapshot = new WeakReference<>(snapshot);
+        this.source = source;
+        this.generation = generation;
+        this.readOnly = snapshot.isReadOnly();
+    }
+
+    /** Returns the generation of the root of the snapshot. */
+    public Generation getGeneration() {
+        return generation;
+    }
+
+    /** Returns the time elapsed since the snapshot was taken. */
+    public Duration getAge() {
+        return Duration.ofNanos(System.nanoTime() - generation.getCreatedNanos());
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /** Returns whether the snapshot is neither closed nor garbage collected. */
+    public boolean isLive() {
+        return !closed && snapshot.get() != null;
+    }
+
+    /** Returns the snapshot, or null if it has been closed or garbage collected. */
+    public ConcurrentTrie<K, V> getSnapshot() {
+        return closed ? null : snapshot.get();
+    }
+
+    /**
+     * Estimates how many bytes the snapshot shares with the trie it was taken from, and how many
+     * only the snapshot keeps alive. Walks the snapshot and the unshared part of the source trie.
+     *
+     * @return the footprint, or an empty footprint if the snapshot is no longer live
+     */
+    public SnapshotFootprint footprint() {
+        ConcurrentTrie<K, V> s = getSnapshot();
+        if (s == null) return new SnapshotFootprint(0, 0);
+        return FootprintEstimator.estimate(s, source);
+    }
+
+    void markClosed() {
+        closed = true;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotInfo(" + generation + ", age: " + getAge() + ", readOnly: " + readOnly + ", live: " + isLive() + ")";
+    }
+}
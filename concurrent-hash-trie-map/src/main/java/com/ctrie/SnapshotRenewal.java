@@ -0,0 +1,28 @@
+package com.ctrie;
+
+/**
+ * Controls how a trie pays for renewing its nodes after a snapshot.
+ *
+ * <p>A snapshot moves the trie to a new {@link com.ctrie.node.Generation}. Every compressed node
+ * reachable from the root still holds indirection nodes of the old generation, so the first
+ * operation that descends through such a node has to renew it before it may continue.</p>
+ */
+public enum SnapshotRenewal {
+    /**
+     * The first operation on a path copies the whole compressed node and allocates a new
+     * indirection node for every child. This is the behaviour described in the Ctrie paper.
+     */
+    FULL,
+    /**
+     * The first operation on a path copies the compressed node but renews only the child it
+     * descends into. Siblings keep their old-generation indirection nodes and are renewed when an
+     * operation first descends into them, so the cost of a snapshot is spread over the writers
+     * that actually touch each slot.
+     */
+    SINGLE_SLOT,
+    /**
+     * Like {@link #FULL}, but right after a snapshot a background thread renews the top levels of
+     * the trie, so that writers do not pay for the hot, wide nodes near the root.
+     */
+    BACKGROUND
+}
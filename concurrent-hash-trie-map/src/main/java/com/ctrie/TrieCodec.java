@@ -0,0 +1,34 @@
+package com.ctrie;
+
+/**
+ * Converts keys or values to the bytes stored in a trie file and back.
+ *
+ * <p>A {@link MappedTrie} finds a key by comparing the encoded key with the stored bytes, so a
+ * key codec must encode equal keys to equal bytes.</p>
+ *
+ * @param <T> the type of the encoded objects
+ * @see MappedTrie
+ */
+public interface TrieCodec<T> {
+
+    /** Returns the bytes of the object. */
+    byte[] encode(T value);
+
+    /** Returns the object the bytes were encoded from. */
+    T decode(byte[] bytes);
+
+    /** Returns the codec storing strings as UTF-8. */
+    static TrieCodec<String> utf8() {
+        return TrieCodecs.UTF8;
+    }
+
+    /** Returns the codec storing longs as eight big-endian bytes. */
+    static TrieCodec<Long> longs() {
+        return TrieCodecs.LONGS;
+    }
+
+    /** Returns the codec storing integers as four big-endian bytes. */
+    static TrieCodec<Integer> ints() {
+        return TrieCodecs.INTS;
+    }
+}
@@ -0,0 +1,65 @@
+package com.ctrie;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in background compactor for a {@link ConcurrentTrie}.
+ *
+ * <p>Removals collapse tombs eagerly through {@code cleanParent}, but when that cleanup loses a
+ * GCAS race the tomb (or the single-entry compressed node above it) stays in the trie until a
+ * later operation happens to walk the same path. The compactor periodically runs
+ * {@link ConcurrentTrie#compact(CompactionStats)} so that such paths are contracted even when no
+ * writer revisits them.</p>
+ *
+ * <pre>
+ *     try (TrieCompactor compactor = new TrieCompactor(trie, 1, TimeUnit.SECONDS)) {
+ *         ...
+ *         System.out.println(compactor.getStats());
+ *     }
+ * </pre>
+ */
+public final class TrieCompactor implements AutoCloseable {
+    private final ConcurrentTrie<?, ?> trie;
+    private final CompactionStats stats = new CompactionStats();
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Starts compacting the given trie at a fixed rate on a daemon thread.
+     *
+     * @param trie   the trie to compact, must not be a read-only snapshot
+     * @param period the delay between two compaction passes
+     * @param unit   the unit of the period
+     */
+    public TrieCompactor(ConcurrentTrie<?, ?> trie, long period, TimeUnit unit) {
+        if (trie.isReadOnly())
+            throw new IllegalArgumentException("Cannot compact a read-only snapshot");
+        this.trie = trie;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ctrie-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::runPass, period, period, unit);
+    }
+
+    private void runPass() {
+        try {
+            trie.compact(stats);
+        } catch (RuntimeException e) {
+            // Keep the schedule alive, a failing pass must not cancel the next ones.
+            stats.recordFailedPass();
+        }
+    }
+
+    /** Returns the counters accumulated over all passes run by this compactor. */
+    public CompactionStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,141 @@
+package com.ctrie;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A map of counters over a {@link ConcurrentTrie}, for keys that are incremented far more often
+ * than they are added or removed.
+ *
+ * <p>The trie maps each key to a cell that stays in place for the life of the counter. An
+ * increment adds to the cell and leaves the trie alone, so it copies no nodes, and cells stripe
+ * their sums like {@link LongAdder} so that threads incrementing the same key do not contend.
+ * Only the first increment of a key inserts its cell.</p>
+ *
+ * <p>{@link #get} sums a cell on the fly, and like {@link LongAdder#sum()} it is exact only
+ * without concurrent increments of the key. {@link #snapshot} returns sums that are consistent
+ * across keys: every increment is counted if it finished before the snapshot started, not
+ * counted if it started after the snapshot returned, and counted or not as a whole otherwise.
+ * It closes the current epoch of increments, waits for the increments of that epoch still in
+ * flight, and freezes the cells at the boundary. Increments of the next epoch go to the other
+ * half of each cell in the meantime, so they never wait for a snapshot.</p>
+ *
+ * @param <K> the type of keys
+ */
+public final class TrieCounterMap<K> {
+    private final ConcurrentTrie<K, Cell> cells;
+    private final HashStrategy<? super K> hashing;
+    private volatile Epoch epoch = new Epoch(0);
+
+    public TrieCounterMap() {
+        this(HashStrategy.standard());
+    }
+
+    public TrieCounterMap(HashStrategy<? super K> hashing) {
+        this.cells = new ConcurrentTrie<>(hashing);
+        this.hashing = hashing;
+    }
+
+    public void increment(K key) {
+        add(key, 1);
+    }
+
+    /** Adds the delta to the counter of the key, creating the counter at zero if it is absent. */
+    public void add(K key, long delta) {
+        Epoch e = enter();
+        try {
+            Cell cell = cells.find(key);
+            if (cell == null) {
+                Cell created = new Cell();
+                cell = cells.putIfAbsent(key, created);
+                if (cell == null) cell = created;
+            }
+            cell.halves[e.half()].add(delta);
+        } finally {
+            e.exited.increment();
+        }
+    }
+
+    /** Returns the counter of the key, or zero if it is absent. */
+    public long get(K key) {
+        Cell cell = cells.find(key);
+        return cell == null ? 0 : cell.sum();
+    }
+
+    /**
+     * Removes the counter of the key and returns its last sum. Increments of the key that are in
+     * flight may be lost; later increments start a new counter at zero.
+     */
+    public long remove(K key) {
+        Cell cell = cells.remove(key);
+        return cell == null ? 0 : cell.sum();
+    }
+
+    /**
+     * Returns the sums of all counters at one point in time, as a new trie. Counters that sum to
+     * zero are left out.
+     */
+    public synchronized ConcurrentTrie<K, Long> snapshot() {
+        Epoch closed = epoch;
+        epoch = new Epoch(closed.number + 1);
+        // Read exited before entered: an increment counted as exited was counted as entered
+        // first, so equal sums mean that no increment of the closed epoch is still running.
+        // An increment entering after the switch sees the new epoch and does not count.
+        while (closed.exited.sum() != closed.entered.sum()) {
+            Thread.yield();
+        }
+        int half = closed.half();
+        ConcurrentTrie<K, Long> sums = new ConcurrentTrie<>(hashing);
+        try (ConcurrentTrie<K, Cell> view = cells.readOnlySnapshot()) {
+            for (Iterator<Map.Entry<K, Cell>> it = view.readOnlyIterator(); it.hasNext(); ) {
+                Map.Entry<K, Cell> e = it.next();
+                Cell cell = e.getValue();
+                long frozen = cell.halves[half].sum();
+                long sum = frozen + cell.marks[half ^ 1];
+                cell.marks[half] = frozen;
+                if (sum != 0) sums.put(e.getKey(), sum);
+            }
+        }
+        return sums;
+    }
+
+    /** Increments of the current epoch add to one half of each cell, those of the next to the other. */
+    private Epoch enter() {
+        while (true) {
+            Epoch e = epoch;
+            e.entered.increment();
+            if (epoch == e) return e;
+            e.exited.increment();
+        }
+    }
+
+    private static final class Epoch {
+        final long number;
+        final LongAdder entered = new LongAdder();
+        final LongAdder exited = new LongAdder();
+
+        Epoch(long number) {
+            this.number = number;
+        }
+
+        int half() {
+            return (int) (number & 1);
+        }
+    }
+
+    /**
+     * The two halves of a counter. A half is quiescent whenever the epochs writing to it have
+     * been closed, and {@code marks} holds its sum as of the snapshot that closed its last epoch,
+     * so that a snapshot adds the half it freezes to the mark of the other. The marks are only
+     * accessed by snapshots, one at a time.
+     */
+    private static final class Cell {
+        final LongAdder[] halves = {new LongAdder(), new LongAdder()};
+        final long[] marks = new long[2];
+
+        long sum() {
+            return halves[0].sum() + halves[1].sum();
+        }
+    }
+}
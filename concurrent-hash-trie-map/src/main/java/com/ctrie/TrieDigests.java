@@ -0,0 +1,163 @@
+package com.ctrie;
+
+import com.ctrie.node.CompressedNode;
+import com.ctrie.node.IndirectionNode;
+import com.ctrie.node.ListNode;
+import com.ctrie.node.MainNode;
+import com.ctrie.node.TombNode;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Computes Merkle-style content digests of read-only snapshots and compares snapshots by them.
+ *
+ * <p>The digest of an entry mixes the hash of its key with the hash code of its value, and the
+ * digest of a subtree is the sum of the digests of its entries. It therefore only depends on the
+ * entries, not on the shape of the subtree, so tombs and uncontracted nodes left behind by lost
+ * cleanup races do not change it, and the digest of a compressed node is the sum of those of its
+ * slots. The hash of a key comes from the hash strategy of the trie, so only tries with the same
+ * strategy have comparable digests. Each compressed node caches its digest. A node of a read-only snapshot never changes
+ * and is shared with later snapshots until a write below it copies it, so a new snapshot only
+ * computes the digests of the nodes written since the last one.</p>
+ */
+final class TrieDigests {
+
+    private TrieDigests() {
+        // Prevent instantiation
+    }
+
+    static <K, V> long digest(ConcurrentTrie<K, V> snapshot) {
+        return digest(snapshot.RDCSS_READ_ROOT(false).readCommittedMainNode(snapshot), snapshot);
+    }
+
+    /**
+     * Returns whether two read-only snapshots hold the same entries, looking up every entry of
+     * one in the other. For snapshots whose digests cannot be compared.
+     */
+    static <K, V> boolean sameEntries(ConcurrentTrie<K, V> left, ConcurrentTrie<K, V> right) {
+        long size = 0;
+        for (Iterator<Map.Entry<K, V>> it = left.readOnlyIterator(); it.hasNext(); size++) {
+            Map.Entry<K, V> e = it.next();
+            if (!e.getValue().equals(right.find(e.getKey()))) return false;
+        }
+        for (Iterator<Map.Entry<K, V>> it = right.readOnlyIterator(); it.hasNext(); it.next()) {
+            size--;
+        }
+        return size == 0;
+    }
+
+    /**
+     * Adds the keys whose values differ between two read-only snapshots to the set, including
+     * keys present in only one of them. Only slots whose digests differ are descended into.
+     *
+     * @throws IllegalArgumentException if the snapshots have different branching factors or hash
+     *                                  strategies
+     */
+    static <K, V> void diff(ConcurrentTrie<K, V> left, ConcurrentTrie<K, V> right, Set<K> out) {
+        if (left.getBranchingFactor() != right.getBranchingFactor())
+            throw new IllegalArgumentException("Cannot compare tries with different branching factors");
+        if (left.getHashStrategy() != right.getHashStrategy())
+            throw new IllegalArgumentException("Cannot compare tries with different hash strategies");
+        CompressedNode<K, V> l = (CompressedNode<K, V>) left.RDCSS_READ_ROOT(false).readCommittedMainNode(left);
+        CompressedNode<K, V> r = (CompressedNode<K, V>) right.RDCSS_READ_ROOT(false).readCommittedMainNode(right);
+        diff(l, left, r, right, out);
+    }
+
+    private static <K, V> void diff(CompressedNode<K, V> l, ConcurrentTrie<K, V> lt, CompressedNode<K, V> r, ConcurrentTrie<K, V> rt, Set<K> out) {
+        for (long bits = l.dataMap | l.nodeMap | r.dataMap | r.nodeMap; bits != 0; bits &= bits - 1) {
+            long flag = Long.lowestOneBit(bits);
+            MainNode<K, V> lm = child(l, flag, lt);
+            MainNode<K, V> rm = child(r, flag, rt);
+            if (slotDigest(l, flag, lm, lt) == slotDigest(r, flag, rm, rt)) continue;
+            if (lm instanceof CompressedNode && rm instanceof CompressedNode) {
+                diff((CompressedNode<K, V>) lm, lt, (CompressedNode<K, V>) rm, rt, out);
+            } else {
+                Map<K, V> le = new HashMap<>();
+                Map<K, V> re = new HashMap<>();
+                collect(l, flag, lm, lt, le);
+                collect(r, flag, rm, rt, re);
+                for (Map.Entry<K, V> e : le.entrySet()) {
+                    if (!Objects.equals(e.getValue(), re.get(e.getKey()))) out.add(e.getKey());
+                }
+                for (K k : re.keySet()) {
+                    if (!le.containsKey(k)) out.add(k);
+                }
+            }
+        }
+    }
+
+    /** Returns the main node below the position of the flag, or null if it holds no node. */
+    private static <K, V> MainNode<K, V> child(CompressedNode<K, V> cn, long flag, ConcurrentTrie<K, V> ct) {
+        if ((cn.nodeMap & flag) == 0) return null;
+        return cn.nodeAt(cn.nodeIndex(flag)).readCommittedMainNode(ct);
+    }
+
+    private static <K, V> long slotDigest(CompressedNode<K, V> cn, long flag, MainNode<K, V> child, ConcurrentTrie<K, V> ct) {
+        if ((cn.dataMap & flag) != 0) {
+            int idx = cn.dataIndex(flag);
+            return entryDigest(cn.keyAt(idx), cn.valueAt(idx), ct);
+        }
+        return child == null ? 0 : digest(child, ct);
+    }
+
+    private static <K, V> long digest(MainNode<K, V> m, ConcurrentTrie<K, V> ct) {
+        if (m instanceof CompressedNode) {
+            CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+            long d = cn.cachedDigest();
+            if (d != 0) return d;
+            for (int i = 0; i < cn.dataArity(); i++) {
+                d += entryDigest(cn.keyAt(i), cn.valueAt(i), ct);
+            }
+            for (int i = 0; i < cn.nodeArity(); i++) {
+                IndirectionNode<K, V> in = cn.nodeAt(i);
+                d += digest(in.readCommittedMainNode(ct), ct);
+            }
+            cn.cacheDigest(d);
+            return d;
+        } else if (m instanceof TombNode) {
+            TombNode<K, V> tn = (TombNode<K, V>) m;
+            return entryDigest(tn.getKey(), tn.getValue(), ct);
+        } else if (m instanceof ListNode) {
+            long d = 0;
+            for (Map.Entry<K, V> e : ((ListNode<K, V>) m).listMap.entrySet()) {
+                d += entryDigest(e.getKey(), e.getValue(), ct);
+            }
+            return d;
+        }
+        return 0;
+    }
+
+    private static <K, V> long entryDigest(K k, V v, ConcurrentTrie<K, V> ct) {
+        return HashStrategies.mix(HashStrategies.mix(ct.hash(k)) + v.hashCode());
+    }
+
+    private static <K, V> void collect(CompressedNode<K, V> cn, long flag, MainNode<K, V> child, ConcurrentTrie<K, V> ct, Map<K, V> out) {
+        if ((cn.dataMap & flag) != 0) {
+            int idx = cn.dataIndex(flag);
+            out.put(cn.keyAt(idx), cn.valueAt(idx));
+        } else if (child != null) {
+            collect(child, ct, out);
+        }
+    }
+
+    private static <K, V> void collect(MainNode<K, V> m, ConcurrentTrie<K, V> ct, Map<K, V> out) {
+        if (m instanceof CompressedNode) {
+            CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+            for (int i = 0; i < cn.dataArity(); i++) {
+                out.put(cn.keyAt(i), cn.valueAt(i));
+            }
+            for (int i = 0; i < cn.nodeArity(); i++) {
+                collect(cn.nodeAt(i).readCommittedMainNode(ct), ct, out);
+            }
+        } else if (m instanceof TombNode) {
+            TombNode<K, V> tn = (TombNode<K, V>) m;
+            out.put(tn.getKey(), tn.getValue());
+        } else if (m instanceof ListNode) {
+            out.putAll(((ListNode<K, V>) m).listMap);
+        }
+    }
+}
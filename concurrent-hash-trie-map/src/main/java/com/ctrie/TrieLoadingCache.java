@@ -0,0 +1,254 @@
+package com.ctrie;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A loading cache over a {@link ConcurrentTrie} that runs at most one load per key at a time.
+ *
+ * <p>The trie maps every key to a {@link CompletableFuture}. A miss installs an incomplete future
+ * with {@code putIfAbsent} before loading, so concurrent misses on the same key find that future
+ * and wait on it instead of loading the key again. A hit is a lock-free lookup in the trie.</p>
+ *
+ * <p>Misses are queued and loaded on the executor. All misses queued by the time a load task
+ * starts, up to the batch size, are loaded together with {@link Loader#loadAll}. A failed load
+ * completes the futures exceptionally and removes them, so the next request loads the key again.
+ * A load that returns null is not cached either.</p>
+ *
+ * <p>With a refresh interval, a hit on a value older than the interval returns the old value and
+ * reloads the key in the background. The new value replaces the old one unless the key was
+ * written or invalidated in the meantime; a failed refresh keeps the old value.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class TrieLoadingCache<K, V> {
+    /** Number of keys loaded together, unless configured otherwise. */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    /**
+     * Loads the values of keys missing from the cache.
+     *
+     * @param <K> the type of keys
+     * @param <V> the type of values
+     */
+    @FunctionalInterface
+    public interface Loader<K, V> {
+
+        /** Returns the value of the key, or null if it has none. */
+        V load(K key) throws Exception;
+
+        /**
+         * Returns the values of the keys. Keys missing from the result have no value. Loads the
+         * keys one by one unless overridden.
+         */
+        default Map<K, V> loadAll(Set<K> keys) throws Exception {
+            Map<K, V> values = new HashMap<>();
+            for (K key : keys) {
+                V value = load(key);
+                if (value != null) values.put(key, value);
+            }
+            return values;
+        }
+    }
+
+    private final ConcurrentTrie<K, Loading<V>> trie = new ConcurrentTrie<>();
+    private final Loader<K, V> loader;
+    private final Executor executor;
+    private final int batchSize;
+    private final long refreshNanos;
+    private final ConcurrentLinkedQueue<Map.Entry<K, Loading<V>>> misses = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    public TrieLoadingCache(Loader<K, V> loader) {
+        this(loader, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE, Duration.ZERO);
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param loader       loads the missing keys
+     * @param executor     runs the loads and refreshes
+     * @param batchSize    the maximum number of keys loaded together
+     * @param refreshAfter the age after which a hit reloads the value in the background, or zero
+     *                     to never refresh
+     */
+    public TrieLoadingCache(Loader<K, V> loader, Executor executor, int batchSize, Duration refreshAfter) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        if (refreshAfter.isNegative())
+            throw new IllegalArgumentException("refreshAfter must not be negative: " + refreshAfter);
+        this.loader = loader;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.refreshNanos = refreshAfter.toNanos();
+    }
+
+    /**
+     * Returns the future value of the key, loading the key if no load of it is cached or in
+     * flight. The future completes with null if the key has no value.
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        Loading<V> loading = trie.find(key);
+        if (loading != null) return hit(key, loading);
+        Loading<V> mine = new Loading<>();
+        loading = trie.putIfAbsent(key, mine);
+        if (loading != null) return hit(key, loading);
+        misses.add(Map.entry(key, mine));
+        if (draining.compareAndSet(false, true)) executor.execute(this::drain);
+        return mine.future;
+    }
+
+    /** Returns the value of the key, waiting for its load if necessary. */
+    public V get(K key) {
+        return getAsync(key).join();
+    }
+
+    /**
+     * Returns the future values of the keys, loading the keys missing from the cache with a
+     * single {@link Loader#loadAll} call per batch. Keys without a value are left out.
+     */
+    public CompletableFuture<Map<K, V>> getAllAsync(Collection<? extends K> keys) {
+        Map<K, CompletableFuture<V>> futures = new LinkedHashMap<>();
+        Map<K, Loading<V>> batch = new HashMap<>();
+        for (K key : keys) {
+            if (futures.containsKey(key)) continue;
+            Loading<V> loading = trie.find(key);
+            if (loading == null) {
+                Loading<V> mine = new Loading<>();
+                loading = trie.putIfAbsent(key, mine);
+                if (loading == null) {
+                    batch.put(key, mine);
+                    futures.put(key, mine.future);
+                    if (batch.size() == batchSize) {
+                        Map<K, Loading<V>> full = batch;
+                        executor.execute(() -> load(full));
+                        batch = new HashMap<>();
+                    }
+                    continue;
+                }
+            }
+            futures.put(key, hit(key, loading));
+        }
+        if (!batch.isEmpty()) {
+            Map<K, Loading<V>> rest = batch;
+            executor.execute(() -> load(rest));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            Map<K, V> values = new LinkedHashMap<>();
+            for (Map.Entry<K, CompletableFuture<V>> e : futures.entrySet()) {
+                V value = e.getValue().join();
+                if (value != null) values.put(e.getKey(), value);
+            }
+            return values;
+        });
+    }
+
+    /** Returns the cached value of the key, or null if it is absent or still loading. */
+    public V getIfPresent(K key) {
+        Loading<V> loading = trie.find(key);
+        if (loading == null || !loading.future.isDone() || loading.future.isCompletedExceptionally()) return null;
+        return hit(key, loading).join();
+    }
+
+    /** Caches the value of the key, replacing any cached or loading value. */
+    public void put(K key, V value) {
+        trie.put(key, Loading.of(value));
+    }
+
+    /** Drops the cached value of the key. A load in flight still completes its waiters. */
+    public void invalidate(K key) {
+        trie.remove(key);
+    }
+
+    private CompletableFuture<V> hit(K key, Loading<V> loading) {
+        if (refreshNanos > 0 && loading.future.isDone() && System.nanoTime() - loading.loadedAt >= refreshNanos
+                && loading.refreshing.compareAndSet(false, true)) {
+            executor.execute(() -> refresh(key, loading));
+        }
+        return loading.future;
+    }
+
+    private void refresh(K key, Loading<V> old) {
+        try {
+            V value = loader.load(key);
+            if (value == null) {
+                trie.remove(key, old);
+            } else {
+                trie.replace(key, old, Loading.of(value));
+            }
+        } catch (Exception e) {
+            old.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Loads the queued misses. Resets {@code draining} before loading, so that misses queued
+     * during a slow load start another task instead of waiting for this one.
+     */
+    private void drain() {
+        Map<K, Loading<V>> batch = new HashMap<>();
+        for (Map.Entry<K, Loading<V>> miss; batch.size() < batchSize && (miss = misses.poll()) != null; ) {
+            batch.put(miss.getKey(), miss.getValue());
+        }
+        draining.set(false);
+        if (!misses.isEmpty() && draining.compareAndSet(false, true)) executor.execute(this::drain);
+        if (!batch.isEmpty()) load(batch);
+    }
+
+    private void load(Map<K, Loading<V>> batch) {
+        Map<K, V> values;
+        try {
+            if (batch.size() == 1) {
+                K key = batch.keySet().iterator().next();
+                V value = loader.load(key);
+                values = value == null ? Map.of() : Map.of(key, value);
+            } else {
+                values = loader.loadAll(batch.keySet());
+            }
+        } catch (Throwable e) {
+            for (Map.Entry<K, Loading<V>> miss : batch.entrySet()) {
+                trie.remove(miss.getKey(), miss.getValue());
+                miss.getValue().future.completeExceptionally(e);
+            }
+            return;
+        }
+        for (Map.Entry<K, Loading<V>> miss : batch.entrySet()) {
+            V value = values.get(miss.getKey());
+            Loading<V> loading = miss.getValue();
+            if (value == null) trie.remove(miss.getKey(), loading);
+            loading.loadedAt = System.nanoTime();
+            loading.future.complete(value);
+        }
+    }
+
+    /** A cached value or a load in flight. Compared by identity, so that conditional writes only replace this load. */
+    private static final class Loading<V> {
+        final CompletableFuture<V> future;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile long loadedAt;
+
+        Loading() {
+            this.future = new CompletableFuture<>();
+        }
+
+        private Loading(CompletableFuture<V> future) {
+            this.future = future;
+        }
+
+        static <V> Loading<V> of(V value) {
+            Loading<V> loading = new Loading<>(CompletableFuture.completedFuture(value));
+            loading.loadedAt = System.nanoTime();
+            return loading;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.ctrie;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * Summarizes the values of a trie, see {@link ConcurrentTrie#summarize(TrieMonoid)}.
+ *
+ * <p>A monoid maps every value to a summary and combines summaries with an operation that has
+ * {@link #identity()} as its neutral element. The trie combines the summaries of its entries in
+ * the order of its layout, which depends on the hashes of the keys, so the operation must be
+ * commutative as well as associative.</p>
+ *
+ * <p>Each compressed node caches the summary of its subtree per monoid instance, compared by
+ * identity. Keep a monoid in a constant instead of creating a new one for every call, or no
+ * summary is ever reused.</p>
+ *
+ * <pre>
+ *     static final TrieMonoid&lt;Sample, Long&gt; TOTAL = TrieMonoid.longSum(Sample::bytes);
+ *
+ *     long total = trie.summarize(TOTAL);
+ * </pre>
+ *
+ * @param <V> the type of values
+ * @param <S> the type of summaries
+ */
+public interface TrieMonoid<V, S> {
+
+    /** Returns the summary of no values. */
+    S identity();
+
+    /** Returns the summary of a single value. */
+    S of(V value);
+
+    /** Combines two summaries. Must be associative and commutative. */
+    S combine(S a, S b);
+
+    /** Returns the monoid counting the values. */
+    @SuppressWarnings("unchecked")
+    static <V> TrieMonoid<V, Long> count() {
+        return (TrieMonoid<V, Long>) TrieMonoids.COUNT;
+    }
+
+    /** Returns a monoid adding up a long computed from each value. */
+    static <V> TrieMonoid<V, Long> longSum(ToLongFunction<? super V> f) {
+        return new TrieMonoid<>() {
+            @Override
+            public Long identity() {
+                return 0L;
+            }
+
+            @Override
+            public Long of(V value) {
+                return f.applyAsLong(value);
+            }
+
+            @Override
+            public Long combine(Long a, Long b) {
+                return a + b;
+            }
+        };
+    }
+
+    /** Returns the monoid of the smallest value, which is null for no values. */
+    @SuppressWarnings("unchecked")
+    static <V extends Comparable<? super V>> TrieMonoid<V, V> min() {
+        return (TrieMonoid<V, V>) TrieMonoids.MIN;
+    }
+
+    /** Returns the monoid of the largest value, which is null for no values. */
+    @SuppressWarnings("unchecked")
+    static <V extends Comparable<? super V>> TrieMonoid<V, V> max() {
+        return (TrieMonoid<V, V>) TrieMonoids.MAX;
+    }
+}
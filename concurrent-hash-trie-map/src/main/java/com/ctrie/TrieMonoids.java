@@ -0,0 +1,55 @@
+package com.ctrie;
+
+/**
+ * The built-in {@link TrieMonoid} instances. They are singletons, so that the summaries they
+ * cache in the nodes are shared by all callers.
+ */
+final class TrieMonoids {
+
+    static final TrieMonoid<Object, Long> COUNT = new TrieMonoid<>() {
+        @Override
+        public Long identity() {
+            return 0L;
+        }
+
+        @Override
+        public Long of(Object value) {
+            return 1L;
+        }
+
+        @Override
+        public Long combine(Long a, Long b) {
+            return a + b;
+        }
+    };
+
+    static final TrieMonoid<Comparable<Object>, Comparable<Object>> MIN = extremum(-1);
+
+    static final TrieMonoid<Comparable<Object>, Comparable<Object>> MAX = extremum(1);
+
+    private TrieMonoids() {
+        // Prevent instantiation
+    }
+
+    /** Returns the monoid keeping the value whose comparison with the other has the sign. */
+    private static TrieMonoid<Comparable<Object>, Comparable<Object>> extremum(int sign) {
+        return new TrieMonoid<>() {
+            @Override
+            public Comparable<Object> identity() {
+                return null;
+            }
+
+            @Override
+            public Comparable<Object> of(Comparable<Object> value) {
+                return value;
+            }
+
+            @Override
+            public Comparable<Object> combine(Comparable<Object> a, Comparable<Object> b) {
+                if (a == null) return b;
+                if (b == null) return a;
+                return Integer.signum(a.compareTo(b)) == -sign ? b : a;
+            }
+        };
+    }
+}
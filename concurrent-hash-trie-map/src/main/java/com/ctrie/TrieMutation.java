@@ -0,0 +1,76 @@
+package com.ctrie;
+
+/**
+ * A committed write to a {@link ConcurrentTrie}, as delivered by its {@link MutationFeed}.
+ *
+ * <p>Mutations are numbered per stripe of the feed. The stripe is chosen by the hash of the key,
+ * so all mutations of one key carry the same stripe and increasing sequence numbers, in the
+ * order in which they were committed.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class TrieMutation<K, V> {
+
+    public enum Type {
+        /** A key was inserted or its value replaced. */
+        PUT,
+        /** A key was removed. */
+        REMOVE,
+        /**
+         * All keys were removed. Appended to every stripe, with a null key. Stripes are delivered
+         * independently, so a consumer applies it to the keys of its own stripe only.
+         *
+         * @see MutationFeed#stripeOf
+         */
+        CLEAR
+    }
+
+    private final Type type;
+    private final K key;
+    private final V oldValue;
+    private final V newValue;
+    private final int stripe;
+    private final long sequence;
+
+    TrieMutation(Type type, K key, V oldValue, V newValue, int stripe, long sequence) {
+        this.type = type;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+        this.stripe = stripe;
+        this.sequence = sequence;
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public K key() {
+        return key;
+    }
+
+    /** Returns the value before the write, or null if the key was absent. */
+    public V oldValue() {
+        return oldValue;
+    }
+
+    /** Returns the value after the write, or null if the key was removed. */
+    public V newValue() {
+        return newValue;
+    }
+
+    public int stripe() {
+        return stripe;
+    }
+
+    /** Returns the position of this mutation in its stripe, starting at zero. */
+    public long sequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + key + ": " + oldValue + " -> " + newValue + ")@" + stripe + ":" + sequence;
+    }
+}
@@ -0,0 +1,54 @@
+package com.ctrie;
+
+import com.ctrie.node.CompressedNode;
+import com.ctrie.node.ListNode;
+import com.ctrie.node.MainNode;
+import com.ctrie.node.TombNode;
+
+/**
+ * Computes the {@link TrieMonoid} summaries of read-only snapshots.
+ *
+ * <p>The summary of a compressed node combines those of its entries and children, and is cached
+ * in the node for the monoid. As with {@link TrieDigests}, a node of a read-only snapshot never
+ * changes and is shared with later snapshots until a write below it copies it, so a new
+ * snapshot only summarizes the nodes written since the last one.</p>
+ */
+final class TrieSummaries {
+    // Cached in place of a null summary, which the node cache reports as missing.
+    private static final Object NULL = new Object();
+
+    private TrieSummaries() {
+        // Prevent instantiation
+    }
+
+    static <K, V, S> S summarize(ConcurrentTrie<K, V> snapshot, TrieMonoid<? super V, S> monoid) {
+        return summarize(snapshot.RDCSS_READ_ROOT(false).readCommittedMainNode(snapshot), monoid, snapshot);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V, S> S summarize(MainNode<K, V> m, TrieMonoid<? super V, S> monoid, ConcurrentTrie<K, V> ct) {
+        if (m instanceof CompressedNode) {
+            CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+            Object cached = cn.cachedSummary(monoid);
+            if (cached != null) return cached == NULL ? null : (S) cached;
+            S s = monoid.identity();
+            for (int i = 0; i < cn.dataArity(); i++) {
+                s = monoid.combine(s, monoid.of(cn.valueAt(i)));
+            }
+            for (int i = 0; i < cn.nodeArity(); i++) {
+                s = monoid.combine(s, summarize(cn.nodeAt(i).readCommittedMainNode(ct), monoid, ct));
+            }
+            cn.cacheSummary(monoid, s == null ? NULL : s);
+            return s;
+        } else if (m instanceof TombNode) {
+            return monoid.of(((TombNode<K, V>) m).getValue());
+        } else if (m instanceof ListNode) {
+            S s = monoid.identity();
+            for (V v : ((ListNode<K, V>) m).listMap.values()) {
+                s = monoid.combine(s, monoid.of(v));
+            }
+            return s;
+        }
+        return monoid.identity();
+    }
+}
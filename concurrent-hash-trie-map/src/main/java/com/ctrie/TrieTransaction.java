@@ -0,0 +1,114 @@
+package com.ctrie;
+
+import com.ctrie.node.IndirectionNode;
+import com.ctrie.node.MainNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An optimistic transaction over a {@link ConcurrentTrie}.
+ *
+ * <p>A transaction starts from an O(1) writable snapshot of the trie. Reads and writes go to that
+ * snapshot only, and {@link #commit()} installs its root into the trie with a single RDCSS that
+ * succeeds only if the trie has not changed since the transaction began. Either all writes of
+ * the transaction become visible at once or none of them do.</p>
+ *
+ * <p>Any operation on the trie that GCASes the root node after the transaction began makes the
+ * commit fail. This includes writes to unrelated keys and the first lookup that renews the root
+ * after a snapshot, so transactions suit low write rates; see
+ * {@link ConcurrentTrie#transact(java.util.function.Function)} for the retry loop.</p>
+ *
+ * <p>The transaction logs its writes, and a committed transaction appends them to the
+ * {@link MutationFeed} of the trie, if it has one, in the order they were made.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class TrieTransaction<K, V> {
+    private final ConcurrentTrie<K, V> trie;
+    private final IndirectionNode<K, V> expectedRoot;
+    private final MainNode<K, V> expectedMain;
+    private final ConcurrentTrie<K, V> view;
+    private final List<TrieMutation<K, V>> writes = new ArrayList<>();
+    private boolean open = true;
+
+    TrieTransaction(ConcurrentTrie<K, V> trie, IndirectionNode<K, V> expectedRoot, MainNode<K, V> expectedMain, ConcurrentTrie<K, V> view) {
+        this.trie = trie;
+        this.expectedRoot = expectedRoot;
+        this.expectedMain = expectedMain;
+        this.view = view;
+    }
+
+    /** Returns the value of the key as seen by this transaction, or null if it is absent. */
+    public V get(K key) {
+        checkOpen();
+        return view.find(key);
+    }
+
+    public boolean containsKey(K key) {
+        checkOpen();
+        return view.containsKey(key);
+    }
+
+    /** Associates the value with the key in this transaction and returns the previous value. */
+    public V put(K key, V value) {
+        checkOpen();
+        V old = view.put(key, value);
+        log(TrieMutation.Type.PUT, key, old, value);
+        return old;
+    }
+
+    public V putIfAbsent(K key, V value) {
+        checkOpen();
+        V old = view.putIfAbsent(key, value);
+        if (old == null) log(TrieMutation.Type.PUT, key, null, value);
+        return old;
+    }
+
+    /** Removes the key in this transaction and returns the previous value. */
+    public V remove(K key) {
+        checkOpen();
+        V old = view.remove(key);
+        if (old != null) log(TrieMutation.Type.REMOVE, key, old, null);
+        return old;
+    }
+
+    public boolean remove(K key, V value) {
+        checkOpen();
+        if (!view.remove(key, value)) return false;
+        log(TrieMutation.Type.REMOVE, key, value, null);
+        return true;
+    }
+
+    /**
+     * Atomically publishes all writes of this transaction, provided the trie has not changed
+     * since the transaction began. The transaction cannot be used afterwards.
+     *
+     * @return true if the writes were published, false if the trie changed in the meantime
+     */
+    public boolean commit() {
+        checkOpen();
+        open = false;
+        return trie.commitTransaction(expectedRoot, expectedMain, view, writes);
+    }
+
+    /** Drops the writes of this transaction. */
+    public void abort() {
+        open = false;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    private void log(TrieMutation.Type type, K key, V oldValue, V newValue) {
+        // The stripe and sequence are assigned when the feed appends the write.
+        writes.add(new TrieMutation<>(type, key, oldValue, newValue, -1, -1));
+    }
+
+    private void checkOpen() {
+        if (!open)
+            throw new IllegalStateException("Transaction is no longer open");
+    }
+}
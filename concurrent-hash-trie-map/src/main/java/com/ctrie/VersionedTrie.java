@@ -0,0 +1,214 @@
+package com.ctrie;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a bounded ring of read-only snapshots of a {@link ConcurrentTrie}, taken at a fixed
+ * interval, and answers reads as of a point in time.
+ *
+ * <p>Writers keep using the trie directly. Every interval a read-only snapshot is taken and
+ * stamped with the current time; once a version is older than the retention it is closed so its
+ * unshared nodes can be collected. A version that is still being read is closed once the last
+ * read ends. Since consecutive snapshots share every subtree that was not
+ * written in between, a version costs memory proportional to the writes of one interval, not to
+ * the size of the map.</p>
+ *
+ * <pre>
+ *     try (VersionedTrie&lt;String, Long&gt; versions = new VersionedTrie&lt;&gt;(trie, Duration.ofSeconds(1), Duration.ofMinutes(5))) {
+ *         Long balance = versions.getAsOf("account", Instant.now().minusSeconds(30));
+ *     }
+ * </pre>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class VersionedTrie<K, V> implements AutoCloseable {
+    private final ConcurrentTrie<K, V> trie;
+    private final Clock clock;
+    private final Duration retention;
+    private final ScheduledExecutorService executor;
+    // Oldest first, replaced as a whole whenever a version is added or dropped.
+    private volatile Version<K, V>[] versions;
+
+    /**
+     * Starts taking snapshots of the trie on a daemon thread.
+     *
+     * @param trie      the trie to version
+     * @param interval  the time between two snapshots, which is the resolution of {@link #getAsOf}
+     * @param retention how long a version is kept
+     */
+    public VersionedTrie(ConcurrentTrie<K, V> trie, Duration interval, Duration retention) {
+        this(trie, Clock.systemUTC(), interval, retention, true);
+    }
+
+    VersionedTrie(ConcurrentTrie<K, V> trie, Clock clock, Duration interval, Duration retention, boolean schedule) {
+        if (trie.isReadOnly())
+            throw new IllegalArgumentException("Cannot version a read-only snapshot");
+        if (interval.isZero() || interval.isNegative() || retention.compareTo(interval) < 0)
+            throw new IllegalArgumentException("Retention must be at least one positive interval");
+        this.trie = trie;
+        this.clock = clock;
+        this.retention = retention;
+        this.versions = newArray(0);
+        takeVersion();
+        if (schedule) {
+            this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ctrie-versions");
+                t.setDaemon(true);
+                return t;
+            });
+            long nanos = interval.toNanos();
+            executor.scheduleAtFixedRate(this::takeScheduledVersion, nanos, nanos, TimeUnit.NANOSECONDS);
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Takes a read-only snapshot of the trie now and adds it to the ring, closing the versions
+     * that are older than the retention.
+     */
+    public synchronized void takeVersion() {
+        Instant now = clock.instant();
+        Version<K, V> version = new Version<>(now, trie.readOnlySnapshot());
+        Version<K, V>[] current = versions;
+        Instant cutoff = now.minus(retention);
+        int drop = 0;
+        while (drop < current.length && current[drop].takenAt.isBefore(cutoff)) {
+            drop++;
+        }
+        int keep = current.length - drop;
+        Version<K, V>[] next = newArray(keep + 1);
+        System.arraycopy(current, drop, next, 0, keep);
+        next[keep] = version;
+        versions = next;
+        for (int i = 0; i < drop; i++) {
+            current[i].release();
+        }
+    }
+
+    private void takeScheduledVersion() {
+        try {
+            takeVersion();
+        } catch (RuntimeException e) {
+            // Report the failure without cancelling the schedule; the next interval tries again.
+            Thread t = Thread.currentThread();
+            t.getUncaughtExceptionHandler().uncaughtException(t, e);
+        }
+    }
+
+    /**
+     * Returns the value the key had in the latest version taken at or before the given instant.
+     *
+     * @param key     the key to look up
+     * @param instant the point in time to read at
+     * @return the value, or null if the key was absent at that version
+     * @throws IllegalArgumentException if the instant is older than the oldest retained version
+     */
+    public V getAsOf(K key, Instant instant) {
+        while (true) {
+            Version<K, V> version = versionAt(instant);
+            // A version fails to be acquired only once it left the ring, so the next lookup
+            // sees the ring without it.
+            if (!version.acquire()) continue;
+            try {
+                return version.snapshot.find(key);
+            } finally {
+                version.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the read-only snapshot that was current at the given instant. The snapshot is
+     * closed when it ages out of the ring, so it should not be held on to.
+     *
+     * @throws IllegalArgumentException if the instant is older than the oldest retained version
+     */
+    public ConcurrentTrie<K, V> snapshotAsOf(Instant instant) {
+        return versionAt(instant).snapshot;
+    }
+
+    /** Returns the instants of the retained versions, oldest first. */
+    public List<Instant> versionInstants() {
+        Version<K, V>[] current = versions;
+        List<Instant> instants = new ArrayList<>(current.length);
+        for (Version<K, V> version : current) {
+            instants.add(version.takenAt);
+        }
+        return instants;
+    }
+
+    private Version<K, V> versionAt(Instant instant) {
+        Version<K, V>[] current = versions;
+        int lo = 0;
+        int hi = current.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (current[mid].takenAt.isAfter(instant)) {
+                hi = mid - 1;
+            } else {
+                found = mid;
+                lo = mid + 1;
+            }
+        }
+        if (found < 0)
+            throw new IllegalArgumentException("No version retained at " + instant);
+        return current[found];
+    }
+
+    /** Stops taking snapshots and closes every retained version. */
+    @Override
+    public synchronized void close() {
+        if (executor != null) executor.shutdownNow();
+        Version<K, V>[] current = versions;
+        versions = newArray(0);
+        for (Version<K, V> version : current) {
+            version.release();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Version<K, V>[] newArray(int length) {
+        return (Version<K, V>[]) new Version<?, ?>[length];
+    }
+
+    private static final class Version<K, V> {
+        final Instant takenAt;
+        final ConcurrentTrie<K, V> snapshot;
+        // One for the ring while the version is retained, plus one per read in flight. Whoever
+        // drops the count to zero closes the snapshot.
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Version(Instant takenAt, ConcurrentTrie<K, V> snapshot) {
+            this.takenAt = takenAt;
+            this.snapshot = snapshot;
+        }
+
+        boolean acquire() {
+            while (true) {
+                int n = refs.get();
+                if (n == 0) return false;
+                if (refs.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) snapshot.close();
+        }
+
+        @Override
+        public String toString() {
+            return "Version(" + takenAt + ")";
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.ctrie;
+
+import com.ctrie.node.util.INodeUtil;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Applies the inserts of contended keys on behalf of their writers, as in flat combining.
+ *
+ * <p>A writer whose insert keeps failing its compare-and-set publishes the insert here and
+ * waits. Whoever holds the lock takes all published inserts, folds the inserts of each key into
+ * one final value, and writes that value with a single conditional insert, conditional on the
+ * value it folded from. Writers of a hot key therefore stop retrying against each other: a batch
+ * of them costs one node replacement, and only the combiner retries if another writer got there
+ * first. The inserts of a key take effect in the order they were published, all at the moment of
+ * the conditional insert, and a mutation feed sees them as one write.</p>
+ *
+ * <p>A trie has a few combiners, chosen by the hash of the key, so that all inserts of a key meet
+ * in the same one.</p>
+ */
+final class WriteCombiner<K, V> {
+    // Maximum number of inserts taken by one combining pass, so that a combiner returns to its
+    // own insert eventually.
+    private static final int MAX_PASS = 1024;
+
+    private final ConcurrentTrie<K, V> trie;
+    private final ConcurrentLinkedQueue<Insert<K, V>> published = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    WriteCombiner(ConcurrentTrie<K, V> trie) {
+        this.trie = trie;
+    }
+
+    /**
+     * Publishes an insert and returns its result once some combiner has applied it, with the
+     * same meaning as the result of an uncontended conditional insert.
+     */
+    Optional<V> insert(K k, long hc, V v, Object cond) {
+        Insert<K, V> insert = new Insert<>(k, hc, v, cond);
+        published.add(insert);
+        for (int spins = 0; !insert.done; spins++) {
+            if (lock.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    lock.unlock();
+                }
+            } else if ((spins & 63) == 63) {
+                Thread.yield();
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+        if (insert.error instanceof Error) throw (Error) insert.error;
+        if (insert.error != null) throw (RuntimeException) insert.error;
+        return insert.result;
+    }
+
+    private void combine() {
+        Map<K, List<Insert<K, V>>> byKey = new LinkedHashMap<>();
+        Insert<K, V> insert;
+        for (int n = 0; n < MAX_PASS && (insert = published.poll()) != null; n++) {
+            byKey.computeIfAbsent(insert.key, key -> new ArrayList<>()).add(insert);
+        }
+        // Every insert taken must be marked done, whatever happens, or its writer spins forever.
+        // An error also fails the inserts not applied yet and goes on to the combiner.
+        Iterator<List<Insert<K, V>>> groups = byKey.values().iterator();
+        while (groups.hasNext()) {
+            List<Insert<K, V>> inserts = groups.next();
+            try {
+                apply(inserts);
+            } catch (Throwable e) {
+                fail(inserts, e);
+                if (e instanceof Error) {
+                    groups.forEachRemaining(rest -> fail(rest, e));
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static <K, V> void fail(List<Insert<K, V>> inserts, Throwable e) {
+        for (Insert<K, V> failed : inserts) {
+            failed.error = e;
+            failed.done = true;
+        }
+    }
+
+    /** Folds the inserts of one key over its current value and writes the result, until the write succeeds. */
+    private void apply(List<Insert<K, V>> inserts) {
+        Insert<K, V> first = inserts.get(0);
+        while (true) {
+            V initial = trie.find(first.key);
+            V current = initial;
+            boolean written = false;
+            for (Insert<K, V> insert : inserts) {
+                Object cond = insert.cond;
+                insert.result = current == null ? Optional.empty() : Optional.of(current);
+                boolean applies = cond == null
+                        || (cond == INodeUtil.KEY_ABSENT ? current == null : current != null && (cond == INodeUtil.KEY_PRESENT || current.equals(cond)));
+                if (applies) {
+                    current = insert.value;
+                    written = true;
+                } else if (cond != INodeUtil.KEY_ABSENT) {
+                    insert.result = Optional.empty();
+                }
+            }
+            if (written) {
+                Optional<V> ret = trie.combinedInsertIf(first.key, first.hc, current, initial == null ? INodeUtil.KEY_ABSENT : initial);
+                if (initial == null ? ret.isPresent() : ret.isEmpty()) continue;
+            }
+            for (Insert<K, V> insert : inserts) {
+                insert.done = true;
+            }
+            return;
+        }
+    }
+
+    private static final class Insert<K, V> {
+        final K key;
+        final long hc;
+        final V value;
+        final Object cond;
+        Optional<V> result;
+        // A RuntimeException or an Error; apply throws nothing else.
+        Throwable error;
+        // Written last by the combiner, so that the writer sees the result once it sees done.
+        volatile boolean done;
+
+        Insert(K key, long hc, V value, Object cond) {
+            this.key = key;
+            this.hc = hc;
+            this.value = value;
+            this.cond = cond;
+        }
+    }
+}
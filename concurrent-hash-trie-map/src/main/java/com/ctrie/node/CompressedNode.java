@@ -3,99 +3,264 @@ package com.ctrie.node;
 import com.ctrie.ConcurrentTrie;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.BiPredicate;
 
 /**
- * A compressed node that holds an array of sub-nodes in the concurrent trie.
- * This class uses a bitmap to indicate which positions are occupied and helps
- * to reduce memory footprint.
+ * A compressed node that holds the entries and sub-nodes of one level of the concurrent trie.
  *
- * <p>In a compressed node, only the positions specified by the bitmap are
- * occupied by sub-nodes. This compression reduces memory usage by avoiding
- * empty slots in sparsely populated nodes.</p>
+ * <p>The node uses the CHAMP layout: two bitmaps tell which positions hold an entry and which
+ * hold an indirection node, and a single flat array stores the keys and values of the entries
+ * inline, followed by the indirection nodes in reverse order. An entry therefore costs two array
+ * slots instead of a leaf object and a reference to it. The bitmaps are longs so that the same
+ * class serves both the 32 and the 64 positions of a {@link com.ctrie.BranchingFactor}.</p>
  *
  * <p><strong>Example:</strong></p>
- * <p>Suppose we have a bitmap of 10101 (binary) which corresponds to 21 (decimal).
- * This means that the sub-nodes are present at positions 0, 2, and 4.</p>
- * <pre>
- *     CompressedNode<Integer, String> node = new CompressedNode<>(0b10101, new TrieNode[]{
- *         new KeyValueNode<>(1, "one"),
- *         new KeyValueNode<>(3, "three"),
- *         new KeyValueNode<>(5, "five")
- *     }, new Generation());
- * </pre>
+ * <p>A node with entries at positions 0 and 4 and a sub-node at position 2 has a data map of
+ * 10001 (binary), a node map of 00100 (binary), and the content
+ * {@code [k0, v0, k4, v4, inode2]}.</p>
+ *
+ * <p>The content array is never modified once the node is constructed, so nodes that only
+ * differ in their generation share it.</p>
  *
  * @param <K> The type of keys stored in the trie.
  * @param <V> The type of values stored in the trie.
  */
 public final class CompressedNode<K, V> extends MainNode<K, V> {
-    /** The bitmap indicating which positions are occupied. */
-    public final int bitmap;
-    /** The array of sub-nodes. */
-    public final BasicNode[] array;
+    private static final Object[] EMPTY = new Object[0];
+    private static final int MAX_SUMMARIES = 4;
+
+    /** The bitmap of the positions holding an entry. */
+    public final long dataMap;
+    /** The bitmap of the positions holding an indirection node. */
+    public final long nodeMap;
+    /** The keys and values of the entries, followed by the indirection nodes in reverse order. */
+    public final Object[] content;
     /** The generation of the trie. */
     public final Generation generation;
+    // The content digest of the subtree, or 0 while it has not been computed. Volatile, as a
+    // plain long may be read torn on a 32-bit JVM while another reader caches it.
+    private volatile long digest;
+    // Summaries of the subtree cached by monoid, most recently computed first.
+    private SummaryCache summaries;
 
     /**
-     * Constructs a new CompressedNode with the given bitmap, array of sub-nodes, and generation.
+     * Constructs a new CompressedNode with the given bitmaps, content, and generation.
      *
-     * @param bitmap The bitmap indicating which positions are occupied.
-     * @param array The array of sub-nodes.
+     * @param dataMap The bitmap of the positions holding an entry.
+     * @param nodeMap The bitmap of the positions holding an indirection node.
+     * @param content The keys and values of the entries, followed by the indirection nodes in reverse order.
      * @param generation The generation of the trie.
      */
-    public CompressedNode(int bitmap, BasicNode[] array, Generation generation) {
-        this.bitmap = bitmap;
-        this.array = array;
+    public CompressedNode(long dataMap, long nodeMap, Object[] content, Generation generation) {
+        this.dataMap = dataMap;
+        this.nodeMap = nodeMap;
+        this.content = content;
         this.generation = generation;
     }
 
     /**
-     * Returns a copy of this CNode with an updated node at the specified position.
+     * Returns an empty CNode of the given generation.
+     */
+    public static <K, V> CompressedNode<K, V> empty(Generation generation) {
+        return new CompressedNode<>(0, 0, EMPTY, generation);
+    }
+
+    /**
+     * Returns the cached content digest of the subtree below this node, or 0 if none has been
+     * cached. Only nodes reachable from a read-only snapshot may cache a digest, as the subtree
+     * below them never changes again.
+     */
+    public long cachedDigest() {
+        return digest;
+    }
+
+    /** Caches the content digest of the subtree below this node. */
+    public void cacheDigest(long digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Returns the summary of the subtree below this node cached for the monoid, or null if none
+     * has been cached. The same restriction as for {@link #cachedDigest()} applies.
+     */
+    public Object cachedSummary(Object monoid) {
+        for (SummaryCache c = summaries; c != null; c = c.next) {
+            if (c.monoid == monoid) return c.summary;
+        }
+        return null;
+    }
+
+    /**
+     * Caches the summary of the subtree below this node for the monoid. Only the summaries of
+     * the {@value #MAX_SUMMARIES} most recently cached monoids are kept.
+     */
+    public void cacheSummary(Object monoid, Object summary) {
+        Object[] kept = new Object[2 * (MAX_SUMMARIES - 1)];
+        int n = 0;
+        for (SummaryCache c = summaries; c != null && n < kept.length; c = c.next) {
+            if (c.monoid == monoid) continue;
+            kept[n++] = c.monoid;
+            kept[n++] = c.summary;
+        }
+        SummaryCache rest = null;
+        for (int i = n - 2; i >= 0; i -= 2) {
+            rest = new SummaryCache(kept[i], kept[i + 1], rest);
+        }
+        // Published without synchronization; the final fields make a racing reader see either
+        // the old list or the complete new one.
+        summaries = new SummaryCache(monoid, summary, rest);
+    }
+
+    private static final class SummaryCache {
+        final Object monoid;
+        final Object summary;
+        final SummaryCache next;
+
+        SummaryCache(Object monoid, Object summary, SummaryCache next) {
+            this.monoid = monoid;
+            this.summary = summary;
+            this.next = next;
+        }
+    }
+
+    /** Returns the index of the entry at the position of the flag. */
+    public int dataIndex(long flag) {
+        return Long.bitCount(dataMap & (flag - 1));
+    }
+
+    /** Returns the index of the indirection node at the position of the flag. */
+    public int nodeIndex(long flag) {
+        return Long.bitCount(nodeMap & (flag - 1));
+    }
+
+    public int dataArity() {
+        return Long.bitCount(dataMap);
+    }
+
+    public int nodeArity() {
+        return Long.bitCount(nodeMap);
+    }
+
+    @SuppressWarnings("unchecked")
+    public K keyAt(int index) {
+        return (K) content[2 * index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+        return (V) content[2 * index + 1];
+    }
+
+    @SuppressWarnings("unchecked")
+    public IndirectionNode<K, V> nodeAt(int index) {
+        return (IndirectionNode<K, V>) content[content.length - 1 - index];
+    }
+
+    /**
+     * Returns a copy of this CNode with the entry at the specified index replaced.
      *
-     * @param pos the position to update
-     * @param newNode the new node to insert
+     * @param index the index of the entry
+     * @param key the new key
+     * @param value the new value
      * @param newGen the new generation
-     * @return a new CNode with the updated node
+     * @return a new CNode with the updated entry
+     */
+    public CompressedNode<K, V> updatedEntry(int index, K key, V value, Generation newGen) {
+        Object[] newContent = content.clone();
+        newContent[2 * index] = key;
+        newContent[2 * index + 1] = value;
+        return new CompressedNode<>(dataMap, nodeMap, newContent, newGen);
+    }
+
+    /**
+     * Returns a copy of this CNode with a new entry at the position of the flag.
+     *
+     * @param flag the bit of the position, which must be free
+     * @param key the key to insert
+     * @param value the value to insert
+     * @param newGen the new generation
+     * @return a new CNode with the entry inserted
+     */
+    public CompressedNode<K, V> insertedEntry(long flag, K key, V value, Generation newGen) {
+        int at = 2 * dataIndex(flag);
+        Object[] newContent = new Object[content.length + 2];
+        System.arraycopy(content, 0, newContent, 0, at);
+        newContent[at] = key;
+        newContent[at + 1] = value;
+        System.arraycopy(content, at, newContent, at + 2, content.length - at);
+        return new CompressedNode<>(dataMap | flag, nodeMap, newContent, newGen);
+    }
+
+    /**
+     * Returns a copy of this CNode without the entry at the position of the flag.
+     *
+     * @param flag the bit of the position holding the entry
+     * @param newGen the new generation
+     * @return a new CNode with the entry removed
      */
-    public CompressedNode<K, V> updatedAt(int pos, BasicNode newNode, Generation newGen) {
-        BasicNode[] newArray = array.clone();
-        newArray[pos] = newNode;
-        return new CompressedNode<>(bitmap, newArray, newGen);
+    public CompressedNode<K, V> removedEntry(long flag, Generation newGen) {
+        int at = 2 * dataIndex(flag);
+        Object[] newContent = new Object[content.length - 2];
+        System.arraycopy(content, 0, newContent, 0, at);
+        System.arraycopy(content, at + 2, newContent, at, content.length - at - 2);
+        return new CompressedNode<>(dataMap ^ flag, nodeMap, newContent, newGen);
     }
 
     /**
-     * Returns a copy of this CNode with a node removed from the specified position.
+     * Returns a copy of this CNode in which the entry at the position of the flag is replaced by
+     * an indirection node, used when a second key lands on the position.
      *
-     * @param pos the position to remove
-     * @param flag the flag indicating the bit to be cleared in the bitmap
+     * @param flag the bit of the position holding the entry
+     * @param node the indirection node holding both keys
      * @param newGen the new generation
-     * @return a new CNode with the node removed
+     * @return a new CNode with the entry moved down
      */
-    public CompressedNode<K, V> removedAt(int pos, int flag, Generation newGen) {
-        BasicNode[] newArray = new BasicNode[array.length - 1];
-        System.arraycopy(array, 0, newArray, 0, pos);
-        System.arraycopy(array, pos + 1, newArray, pos, array.length - pos - 1);
-        return new CompressedNode<>(bitmap ^ flag, newArray, newGen);
+    public CompressedNode<K, V> entryToNode(long flag, IndirectionNode<K, V> node, Generation newGen) {
+        int from = 2 * dataIndex(flag);
+        int to = content.length - 2 - nodeIndex(flag);
+        Object[] newContent = new Object[content.length - 1];
+        System.arraycopy(content, 0, newContent, 0, from);
+        System.arraycopy(content, from + 2, newContent, from, to - from);
+        newContent[to] = node;
+        System.arraycopy(content, to + 2, newContent, to + 1, content.length - to - 2);
+        return new CompressedNode<>(dataMap ^ flag, nodeMap | flag, newContent, newGen);
     }
 
     /**
-     * Returns a copy of this CNode with a new node inserted at the specified position.
+     * Returns a copy of this CNode in which the indirection node at the position of the flag is
+     * replaced by an entry, used to resurrect tombs.
      *
-     * @param pos the position to insert
-     * @param flag the flag indicating the bit to be set in the bitmap
-     * @param newNode the new node to insert
+     * @param flag the bit of the position holding the indirection node
+     * @param key the key of the entry
+     * @param value the value of the entry
      * @param newGen the new generation
-     * @return a new CNode with the node inserted
+     * @return a new CNode with the entry moved up
      */
-    public CompressedNode<K, V> insertedAt(int pos, int flag, BasicNode newNode, Generation newGen) {
-        BasicNode[] newArray = new BasicNode[array.length + 1];
-        System.arraycopy(array, 0, newArray, 0, pos);
-        newArray[pos] = newNode;
-        System.arraycopy(array, pos, newArray, pos + 1, array.length - pos);
-        return new CompressedNode<>(bitmap | flag, newArray, newGen);
+    public CompressedNode<K, V> nodeToEntry(long flag, K key, V value, Generation newGen) {
+        int from = content.length - 1 - nodeIndex(flag);
+        int to = 2 * dataIndex(flag);
+        Object[] newContent = new Object[content.length + 1];
+        System.arraycopy(content, 0, newContent, 0, to);
+        newContent[to] = key;
+        newContent[to + 1] = value;
+        System.arraycopy(content, to, newContent, to + 2, from - to);
+        System.arraycopy(content, from + 1, newContent, from + 2, content.length - from - 1);
+        return new CompressedNode<>(dataMap | flag, nodeMap ^ flag, newContent, newGen);
+    }
+
+    /**
+     * Returns a copy of this CNode with the indirection node at the specified index replaced.
+     *
+     * @param index the index of the indirection node
+     * @param node the new indirection node
+     * @param newGen the new generation
+     * @return a new CNode with the updated node
+     */
+    public CompressedNode<K, V> updatedNode(int index, IndirectionNode<K, V> node, Generation newGen) {
+        Object[] newContent = content.clone();
+        newContent[content.length - 1 - index] = node;
+        return new CompressedNode<>(dataMap, nodeMap, newContent, newGen);
     }
 
     /**
@@ -106,107 +271,154 @@ public final class CompressedNode<K, V> extends MainNode<K, V> {
      * @return a new CNode with updated generation
      */
     public CompressedNode<K, V> renewed(Generation newGen, ConcurrentTrie<K, V> ct) {
-        BasicNode[] newArray = new BasicNode[array.length];
-        for (int i = 0; i < array.length; i++) {
-            if (array[i] instanceof IndirectionNode) {
-                newArray[i] = ((IndirectionNode<K, V>) array[i]).copyToGen(newGen, ct);
-            } else {
-                newArray[i] = array[i];
-            }
+        if (nodeMap == 0) return new CompressedNode<>(dataMap, nodeMap, content, newGen);
+        Object[] newContent = content.clone();
+        for (int i = 2 * dataArity(); i < newContent.length; i++) {
+            newContent[i] = ((IndirectionNode<K, V>) newContent[i]).copyToGen(newGen, ct);
         }
-        return new CompressedNode<>(bitmap, newArray, newGen);
+        return new CompressedNode<>(dataMap, nodeMap, newContent, newGen);
+    }
+
+    /**
+     * Returns a copy of this CNode in which only the INode at the specified index is copied
+     * to the specified generation. The other INodes are shared with this node and get renewed
+     * when an operation first descends into them.
+     *
+     * @param index the index of the INode to renew
+     * @param newGen the new generation
+     * @param ct the concurrent trie
+     * @return a new CNode with the INode at the index renewed
+     */
+    public CompressedNode<K, V> renewedAt(int index, Generation newGen, ConcurrentTrie<K, V> ct) {
+        return updatedNode(index, nodeAt(index).copyToGen(newGen, ct), newGen);
     }
 
     /**
-     * Resurrects an INode by returning its untombed version if it is a tombed TNode,
-     * otherwise returns the original INode.
+     * Returns whether this CNode holds an INode that does not belong to the specified generation.
      *
-     * @param inode the INode to resurrect
-     * @param inodemain the main node of the INode
-     * @return the resurrected BasicNode
+     * @param gen the generation to check against
+     * @return true if at least one INode needs to be renewed
      */
-    private BasicNode resurrect(IndirectionNode<K, V> inode, Object inodemain) {
-        if (inodemain instanceof TombNode) {
-            return ((TombNode<K, V>) inodemain).copyUntombed();
-        } else {
-            return inode;
+    public boolean needsRenewal(Generation gen) {
+        for (int i = 0; i < nodeArity(); i++) {
+            if (nodeAt(i).getGen() != gen) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
-     * Converts this CNode to a contracted version if it contains only one child.
+     * Converts this CNode to a tomb if it is below the root and holds a single entry.
      *
      * @param level the level in the trie
+     * @param ct    the concurrent trie, for the hash of the entombed key
      * @return the contracted node
      */
-    public BasicNode toContracted(int level) {
-        if (array.length == 1 && level > 0) {
-            if (array[0] instanceof SingletonNode<?,?>) {
-                return ((SingletonNode<K, V>) array[0]).copyTombed();
-            }
+    public MainNode<K, V> toContracted(int level, ConcurrentTrie<K, V> ct) {
+        if (level > 0 && nodeMap == 0 && content.length == 2) {
+            K key = keyAt(0);
+            return new TombNode<>(key, valueAt(0), ct.hash(key));
         }
         return this;
     }
 
     /**
-     * Compresses this CNode by removing null INodes and returns the compressed version.
+     * Compresses this CNode by resurrecting the entries of tombed INodes and returns the
+     * compressed version.
      *
      * @param ct the concurrent trie
      * @param level the level in the trie
      * @param gen the generation
      * @return the compressed node
      */
-    public BasicNode toCompressed(ConcurrentTrie<K, V> ct, int level, Generation gen) {
-        BasicNode[] tempArray = new BasicNode[array.length];
-        for (int i = 0; i < array.length; i++) {
-            BasicNode subNode = array[i];
-            if (subNode instanceof IndirectionNode<?,?>) {
-                Object mainNode = ((IndirectionNode<K, V>) subNode).readCommittedMainNode(ct);
-                assert mainNode != null;
-                tempArray[i] = resurrect((IndirectionNode<K, V>) subNode, mainNode);
-            } else if (subNode instanceof SingletonNode<?,?>) {
-                tempArray[i] = (SingletonNode<K, V>) subNode;
+    public MainNode<K, V> toCompressed(ConcurrentTrie<K, V> ct, int level, Generation gen) {
+        CompressedNode<K, V> cn = new CompressedNode<>(dataMap, nodeMap, content, gen);
+        for (long bits = nodeMap; bits != 0; bits &= bits - 1) {
+            long flag = Long.lowestOneBit(bits);
+            MainNode<K, V> mainNode = nodeAt(nodeIndex(flag)).readCommittedMainNode(ct);
+            assert mainNode != null;
+            if (mainNode instanceof TombNode) {
+                TombNode<K, V> tn = (TombNode<K, V>) mainNode;
+                cn = cn.nodeToEntry(flag, tn.getKey(), tn.getValue(), gen);
             }
         }
-        return new CompressedNode<>(bitmap, tempArray, gen).toContracted(level);
+        return cn.toContracted(level, ct);
     }
 
     /**
-     * Returns a string representation of the CNode.
+     * Returns a copy of this CNode without the entries that match the predicate. Tombed
+     * children are resurrected unless their entry matches, in which case they are dropped.
+     * Returns this node itself if nothing changes.
      *
-     * @param level the level in the trie
-     * @return a string representation of the CNode
+     * @param predicate the entries to drop
+     * @param ct        the concurrent trie
+     * @param gen       the generation of the copy
+     * @return the pruned node
      */
-    public String string(int level) {
-        String indent = " ".repeat(level);
-        return String.format("CNode %x\n%s", bitmap, Arrays.stream(array)
-                .map(bn -> indent + bn.toString(level + 1))
-                .collect(Collectors.joining("\n")));
+    public CompressedNode<K, V> pruned(BiPredicate<? super K, ? super V> predicate, ConcurrentTrie<K, V> ct, Generation gen) {
+        Object[] entries = new Object[2 * (dataArity() + nodeArity())];
+        Object[] nodes = new Object[nodeArity()];
+        long newDataMap = 0;
+        long newNodeMap = 0;
+        int e = 0;
+        int n = 0;
+        boolean changed = false;
+        for (long bits = dataMap | nodeMap; bits != 0; bits &= bits - 1) {
+            long flag = Long.lowestOneBit(bits);
+            K key;
+            V value;
+            if ((dataMap & flag) != 0) {
+                int idx = dataIndex(flag);
+                key = keyAt(idx);
+                value = valueAt(idx);
+            } else {
+                IndirectionNode<K, V> in = nodeAt(nodeIndex(flag));
+                MainNode<K, V> child = in.readCommittedMainNode(ct);
+                // Only a tomb is final. Any other child, even an empty one, stays linked, as a
+                // writer may be inserting into it.
+                if (!(child instanceof TombNode)) {
+                    newNodeMap |= flag;
+                    nodes[n++] = in;
+                    continue;
+                }
+                changed = true;
+                key = ((TombNode<K, V>) child).getKey();
+                value = ((TombNode<K, V>) child).getValue();
+            }
+            if (predicate.test(key, value)) {
+                changed = true;
+            } else {
+                newDataMap |= flag;
+                entries[e++] = key;
+                entries[e++] = value;
+            }
+        }
+        if (!changed) return this;
+        Object[] newContent = new Object[e + n];
+        System.arraycopy(entries, 0, newContent, 0, e);
+        for (int i = 0; i < n; i++) {
+            newContent[newContent.length - 1 - i] = nodes[i];
+        }
+        return new CompressedNode<>(newDataMap, newNodeMap, newContent, gen);
     }
 
     /**
-     * Collects all key-value pairs from the CNode and its children.
-     * This method is quiescently consistent and should not be called concurrently with GCAS operations.
+     * Returns a string representation of the CNode.
      *
-     * @return a list of key-value pairs
+     * @param level the level in the trie
+     * @return a string representation of the CNode
      */
-    private List<Map.Entry<K, V>> collectElems() {
-        List<Map.Entry<K, V>> elements = new ArrayList<>();
-        for (BasicNode bn : array) {
-            if (bn instanceof SingletonNode<?,?>) {
-                elements.add(((SingletonNode<K, V>) bn).getKeyValuePair());
-            } else if (bn instanceof IndirectionNode) {
-                MainNode<K, V> mainNode = ((IndirectionNode<K, V>) bn).mainNode;
-                if (mainNode instanceof TombNode<?,?>) {
-                    elements.add(((TombNode<K, V>) mainNode).getKeyValuePair());
-                } else if (mainNode instanceof ListNode) {
-                    elements.addAll(((ListNode<K, V>) mainNode).listMap.entrySet());
-                } else if (mainNode instanceof CompressedNode) {
-                    elements.addAll(((CompressedNode<K, V>) mainNode).collectElems());
-                }
-            }
+    public String string(int level) {
+        String indent = " ".repeat(level);
+        StringBuilder sb = new StringBuilder(String.format("CNode %x/%x", dataMap, nodeMap));
+        for (int i = 0; i < dataArity(); i++) {
+            sb.append('\n').append(indent).append(' ').append(keyAt(i)).append(" -> ").append(valueAt(i));
         }
-        return elements;
+        for (int i = 0; i < nodeArity(); i++) {
+            sb.append('\n').append(indent).append(nodeAt(i).string(level + 1));
+        }
+        return sb.toString();
     }
 
     /**
@@ -216,12 +428,12 @@ public final class CompressedNode<K, V> extends MainNode<K, V> {
      */
     private List<String> collectLocalElems() {
         List<String> elements = new ArrayList<>();
-        for (BasicNode bn : array) {
-            if (bn instanceof SingletonNode<?,?>) {
-                elements.add(((SingletonNode<?,?>) bn).getValue().toString());
-            } else if (bn instanceof IndirectionNode) {
-                elements.add(((IndirectionNode<K, V>) bn).toString().substring(14) + "(" + ((IndirectionNode<K, V>) bn).getGen() + ")");
-            }
+        for (int i = 0; i < dataArity(); i++) {
+            elements.add(String.valueOf(valueAt(i)));
+        }
+        for (int i = 0; i < nodeArity(); i++) {
+            IndirectionNode<K, V> in = nodeAt(i);
+            elements.add(in.toString().substring(14) + "(" + in.getGen() + ")");
         }
         return elements;
     }
@@ -240,31 +452,13 @@ public final class CompressedNode<K, V> extends MainNode<K, V> {
      */
     public String toString(int level) {
         String indent = "  ".repeat(level);
-        String subNodesString = Arrays.stream(array)
-                .map(subNode -> subNode.toString(level + 1))
-                .collect(Collectors.joining("\n"));
-
-        return String.format("%sCompressedNode %x\n%s", indent, bitmap, subNodesString);
-    }
-
-    static <K, V> MainNode<K,V> dual (final SingletonNode<K, V> x, int xhc, final SingletonNode<K, V> y, int yhc, int lev, Generation gen) {
-        if (lev < 35) {
-            int xidx = (xhc >>> lev) & 0x1f;
-            int yidx = (yhc >>> lev) & 0x1f;
-            int bmp = (1 << xidx) | (1 << yidx);
-
-            if (xidx == yidx) {
-                IndirectionNode<K, V> subinode = new IndirectionNode<>(gen);// (TrieMap.inodeupdater)
-                subinode.mainNode = dual (x, xhc, y, yhc, lev + 5, gen);
-                return new CompressedNode<>(bmp, new BasicNode[] { subinode }, gen);
-            } else {
-                if (xidx < yidx)
-                    return new CompressedNode<>(bmp, new BasicNode[] { x, y }, gen);
-                else
-                    return new CompressedNode<>(bmp, new BasicNode[] { y, x }, gen);
-            }
-        } else {
-            return new ListNode<>(Map.of(x.getKey(), x.getValue(), y.getKey(), y.getValue()));
+        StringBuilder sb = new StringBuilder(String.format("%sCompressedNode %x/%x", indent, dataMap, nodeMap));
+        for (int i = 0; i < dataArity(); i++) {
+            sb.append('\n').append(indent).append("  ").append(keyAt(i)).append(" -> ").append(valueAt(i));
+        }
+        for (int i = 0; i < nodeArity(); i++) {
+            sb.append('\n').append(nodeAt(i).toString(level + 1));
         }
+        return sb.toString();
     }
 }
@@ -1,9 +1,32 @@
 package com.ctrie.node;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Represents a generation/version of nodes in the Ctrie structure.
  * A generation helps in managing versions of the nodes to support concurrency.
+ *
+ * <p>Generations are compared by identity. The id and creation time only serve to tell
+ * generations apart when tracking the snapshots that keep them alive.</p>
  */
 public final class Generation {
-    // Placeholder for future use
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final long id = SEQUENCE.incrementAndGet();
+    private final long createdNanos = System.nanoTime();
+
+    /** Returns a number that is unique to this generation and grows with creation order. */
+    public long getId() {
+        return id;
+    }
+
+    /** Returns the {@link System#nanoTime()} at which this generation was created. */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "Generation(" + id + ")";
+    }
 }
@@ -1,11 +1,19 @@
 package com.ctrie.node;
 
+import com.ctrie.BranchingFactor;
 import com.ctrie.ConcurrentTrie;
+import com.ctrie.SnapshotRenewal;
 import com.ctrie.node.util.CNodeUtil;
 import com.ctrie.node.util.INodeUtil;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.stream.IntStream;
 
 /**
  * An indirection node (INode) in the concurrent trie.
@@ -20,9 +28,20 @@ public final class IndirectionNode<K,V> extends BasicNode {
     public static final Object RESTART = new Object();
     private static final Object KEY_PRESENT = new Object();
     private static final Object KEY_ABSENT = new Object();
+    // Outcomes of pruneEntries.
+    private static final int PRUNED = 0;
+    private static final int PRUNE_AGAIN = 1;
+    private static final int NEW_GENERATION = 2;
 
-    @SuppressWarnings("rawtypes")
-    public static final AtomicReferenceFieldUpdater<IndirectionNode, MainNode> UPDATER = AtomicReferenceFieldUpdater.newUpdater(IndirectionNode.class, MainNode.class, "mainNode");
+    private static final VarHandle MAIN;
+
+    static {
+        try {
+            MAIN = MethodHandles.lookup().findVarHandle(IndirectionNode.class, "mainNode", MainNode.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     public volatile MainNode<K, V> mainNode;
     private final Generation gen;
@@ -40,17 +59,32 @@ public final class IndirectionNode<K,V> extends BasicNode {
         return gen;
     }
 
+    /** Sets the main node of an indirection node that is not published yet. */
     void setMainNode(MainNode<K,V> newVal) {
-        UPDATER.set(this, newVal);
+        MAIN.set(this, newVal);
     }
 
     boolean compareAndSetMainNode(MainNode<K,V> oldVal, MainNode<K,V> newVal) {
-        return UPDATER.compareAndSet(this, oldVal, newVal);
+        return MAIN.compareAndSet(this, oldVal, newVal);
     }
 
     public MainNode<K,V> readCommittedMainNode(ConcurrentTrie<K, V> trie) {
-        if (mainNode == null || mainNode.prev == null) return mainNode;
-        return finalizeCompareAndSetOperation(mainNode, trie);
+        MainNode<K,V> m = mainNode;
+        if (m == null || m.prev == null) return m;
+        return finalizeCompareAndSetOperation(m, trie);
+    }
+
+    /**
+     * Reads the committed main node for a lookup or an iterator. Acquire reads suffice here: they
+     * see the contents of whatever node they return, and a node whose commit is still pending is
+     * finalized with volatile reads as usual. Writers and snapshots must keep using
+     * {@link #readCommittedMainNode}, whose volatile reads order the check of the root after a
+     * compare-and-set of a main node, and the other way round.
+     */
+    public MainNode<K,V> readMainNodeForLookup(ConcurrentTrie<K, V> trie) {
+        MainNode<K,V> m = (MainNode<K,V>) MAIN.getAcquire(this);
+        if (m == null || m.readPrevAcquire() == null) return m;
+        return finalizeCompareAndSetOperation(m, trie);
     }
 
     private MainNode<K, V> finalizeCompareAndSetOperation(MainNode<K,V> m, ConcurrentTrie<K,V> ct) {
@@ -100,48 +134,84 @@ public final class IndirectionNode<K,V> extends BasicNode {
         return nin;
     }
 
-    public boolean recInsert(K k, V v, Integer hc, Integer lev, IndirectionNode<K,V> parent, Generation startGen, ConcurrentTrie<K,V> trie) {
+    private CompressedNode<K, V> renewedFor(CompressedNode<K, V> cn, int index, Generation startGen, ConcurrentTrie<K, V> trie) {
+        if (trie.getSnapshotRenewal() == SnapshotRenewal.SINGLE_SLOT) {
+            return cn.renewedAt(index, startGen, trie);
+        }
+        return cn.renewed(startGen, trie);
+    }
+
+    /**
+     * Renews the compressed nodes of the top levels below this node to the given generation, so
+     * that writers arriving after a snapshot find them already renewed. Stops as soon as the
+     * trie moves on to another generation.
+     *
+     * @param lev      the level of this node in the trie
+     * @param maxLev   the level at which renewal stops
+     * @param startGen the generation of the root when the renewal started
+     * @param trie     the concurrent trie
+     */
+    public final void recRenew(int lev, int maxLev, Generation startGen, ConcurrentTrie<K, V> trie) {
+        while (true) {
+            MainNode<K, V> m = readCommittedMainNode(trie);
+            if (!(m instanceof CompressedNode)) return;
+            CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+            if (cn.needsRenewal(startGen)) {
+                if (!compareAndSetWithFinalize(cn, cn.renewed(startGen, trie), trie)
+                        && trie.RDCSS_READ_ROOT(false).gen != startGen) {
+                    return;
+                }
+                continue;
+            }
+            int bits = trie.getBranchingFactor().bits();
+            if (lev + bits < maxLev) {
+                for (int i = 0; i < cn.nodeArity(); i++) {
+                    IndirectionNode<K, V> in = cn.nodeAt(i);
+                    if (in.gen == startGen) {
+                        in.recRenew(lev + bits, maxLev, startGen, trie);
+                    }
+                }
+            }
+            return;
+        }
+    }
+
+    public boolean recInsert(K k, V v, long hc, int lev, IndirectionNode<K,V> parent, Generation startGen, ConcurrentTrie<K,V> trie) {
         MainNode<K,V> m = readCommittedMainNode(trie);
         if (m instanceof CompressedNode) {
             CompressedNode<K,V> cn = (CompressedNode<K,V>) m;
-            int idx = (hc >>> lev) & 0x1f;
-            int flag = 1 << idx;
-            int bmp = cn.bitmap;
-            int mask = flag - 1;
-            int pos = Integer.bitCount(bmp & mask);
-            if ((bmp & flag) != 0) {
-                if (cn.array[pos] instanceof IndirectionNode) {
-                    @SuppressWarnings("unchecked")
-                    IndirectionNode<K, V> in = (IndirectionNode<K, V>) cn.array[pos];
-                    if (startGen == in.gen) {
-                        return in.recInsert(k, v, hc, lev + 5, this, startGen, trie);
-                    } else {
-                        if (compareAndSetWithFinalize(cn, cn.renewed(startGen, trie), trie)) {
-                            // Maybe put function in while (true) loop to avoid tail recursion and accidental
-                            // stack overflow.
-                            return recInsert(k, v, hc, lev, parent, startGen, trie);
-                        } else {
-                            return false;
-                        }
-                    }
-                } else if (cn.array[pos] instanceof SingletonNode<?,?>) {
-                    @SuppressWarnings("unchecked")
-                    SingletonNode<K,V> sn = (SingletonNode<K, V>) cn.array[pos];
-                    if (sn.getHash() == hc && sn.getKey().equals(k)) {
-                        return compareAndSetWithFinalize(cn, cn.updatedAt(pos, new SingletonNode<>(k, v, hc), gen), trie);
+            BranchingFactor branching = trie.getBranchingFactor();
+            long flag = 1L << branching.index(hc, lev);
+            if ((cn.dataMap & flag) != 0) {
+                int idx = cn.dataIndex(flag);
+                K sk = cn.keyAt(idx);
+                if (sk.equals(k)) {
+                    return compareAndSetWithFinalize(cn, cn.updatedEntry(idx, k, v, gen), trie);
+                } else {
+                    CompressedNode<K,V> rn = cn.generation == gen ? cn : cn.renewed(gen, trie);
+                    IndirectionNode<K,V> sub = inode(CNodeUtil.createDualNode(sk, cn.valueAt(idx), trie.hash(sk), k, v, hc, lev + branching.bits(), trie, gen));
+                    return compareAndSetWithFinalize(cn, rn.entryToNode(flag, sub, gen), trie);
+                }
+            } else if ((cn.nodeMap & flag) != 0) {
+                int idx = cn.nodeIndex(flag);
+                IndirectionNode<K, V> in = cn.nodeAt(idx);
+                if (startGen == in.gen) {
+                    return in.recInsert(k, v, hc, lev + branching.bits(), this, startGen, trie);
+                } else {
+                    if (compareAndSetWithFinalize(cn, renewedFor(cn, idx, startGen, trie), trie)) {
+                        // Maybe put function in while (true) loop to avoid tail recursion and accidental
+                        // stack overflow.
+                        return recInsert(k, v, hc, lev, parent, startGen, trie);
                     } else {
-                        CompressedNode<K,V> rn = cn.generation == gen ? cn : cn.renewed(gen, trie);
-                        CompressedNode<K,V> nn = rn.updatedAt(pos, inode(CNodeUtil.createDualNode(sn, sn.getHash(), new SingletonNode<>(k, v, hc), hc, lev + 5, gen)), gen);
-                        return compareAndSetWithFinalize(cn, nn, trie);
+                        return false;
                     }
                 }
             } else {
                 CompressedNode<K,V> rn = cn.generation == gen ? cn : cn.renewed(gen, trie);
-                CompressedNode<K,V> ncnode = rn.insertedAt(pos, flag, new SingletonNode<>(k, v, hc), gen);
-                return compareAndSetWithFinalize(cn, ncnode, trie);
+                return compareAndSetWithFinalize(cn, rn.insertedEntry(flag, k, v, gen), trie);
             }
         } else if (m instanceof TombNode<K,V>) {
-            clean(parent, trie, lev - 5);
+            clean(parent, trie, lev - trie.getBranchingFactor().bits());
             return false;
         } else if (m instanceof ListNode) {
             ListNode<K,V> ln = (ListNode<K, V>) m;
@@ -151,105 +221,70 @@ public final class IndirectionNode<K,V> extends BasicNode {
         return false;
     }
 
-    public final Optional<V> recInsertIf(K k, V v, int hc, Object cond, int lev, IndirectionNode<K,V> parent, Generation startGen, ConcurrentTrie<K,V> trie) {
+    public final Optional<V> recInsertIf(K k, V v, long hc, Object cond, int lev, IndirectionNode<K,V> parent, Generation startGen, ConcurrentTrie<K,V> trie) {
         MainNode<K,V> m = readCommittedMainNode(trie);
         if (m instanceof CompressedNode) {
             CompressedNode<K,V> cn = (CompressedNode<K, V>) m;
-            int idx = (hc >>> lev) & 0x1f;
-            int flag = 1 << idx;
-            int bmp = cn.bitmap;
-            int mask = flag - 1;
-            int pos = Integer.bitCount(bmp & mask);
-            if ((bmp & flag) != 0) {
-                if (cn.array[pos] instanceof IndirectionNode) {
-                    @SuppressWarnings("unchecked")
-                    IndirectionNode<K,V> in = (IndirectionNode<K,V>) cn.array[pos];
-                    if (startGen == in.gen) {
-                        return in.recInsertIf(k, v, hc, cond, lev + 5, this, startGen, trie);
-                    } else {
-                        if (compareAndSetWithFinalize(cn, cn.renewed(startGen, trie), trie)) {
-                            return recInsertIf(k, v, hc, cond, lev, parent, startGen, trie);
+            BranchingFactor branching = trie.getBranchingFactor();
+            long flag = 1L << branching.index(hc, lev);
+            if ((cn.dataMap & flag) != 0) {
+                int idx = cn.dataIndex(flag);
+                K sk = cn.keyAt(idx);
+                V sv = cn.valueAt(idx);
+                if (sk.equals(k)) {
+                    if (cond == null || cond == INodeUtil.KEY_PRESENT || (cond != INodeUtil.KEY_ABSENT && sv.equals(cond))) {
+                        if (compareAndSetWithFinalize(cn, cn.updatedEntry(idx, k, v, gen), trie)) {
+                            return Optional.of(sv);
                         } else {
-                            return Optional.empty();
-                        }
-                    }
-                } else if (cn.array[pos] instanceof SingletonNode<?,?>) {
-                    @SuppressWarnings("unchecked")
-                    SingletonNode<K,V> sn = (SingletonNode<K, V>) cn.array[pos];
-                    if (cond == null) {
-                        if (sn.getHash() == hc && sn.getKey().equals(k)) {
-                            if (compareAndSetWithFinalize(cn, cn.updatedAt(pos, new SingletonNode<>(k, v, hc), gen), trie)) {
-                                return Optional.of(sn.getValue());
-                            } else {
-                                return null;
-                            }
-                        } else {
-                            CompressedNode<K, V> rn = cn.generation == gen ? cn : cn.renewed(gen, trie);
-                            MainNode<K, V> nn = rn.updatedAt(pos, inode(CNodeUtil.createDualNode(sn, sn.getHash(), new SingletonNode<>(k, v, hc), hc, lev + 5, gen)), gen);
-                            if (compareAndSetWithFinalize(cn, nn, trie)) {
-                                return Optional.empty();
-                            } else {
-                                return null;
-                            }
+                            return null;
                         }
                     } else if (cond == INodeUtil.KEY_ABSENT) {
-                        if (sn.getHash() == hc && sn.getKey().equals(k)) {
-                            return Optional.of(sn.getValue());
-                        } else {
-                            CompressedNode<K,V> rn = cn.generation == gen ? cn : cn.renewed(gen, trie);
-                            MainNode<K,V> nn = rn.updatedAt(pos, inode(CNodeUtil.createDualNode(sn, sn.getHash(), new SingletonNode<>(k, v, hc), hc, lev + 5, gen)), gen);
-                            if (compareAndSetWithFinalize(cn, nn, trie)) {
-                                return Optional.empty();
-                            } else {
-                                return null;
-                            }
-                        }
-                    } else if (cond == INodeUtil.KEY_PRESENT) {
-                        if (sn.getHash() == hc && sn.getKey().equals(k)) {
-                            if (compareAndSetWithFinalize(cn, cn.updatedAt(pos, new SingletonNode<>(k, v, hc), gen), trie)) {
-                                return Optional.of(sn.getValue());
-                            } else {
-                                return null;
-                            }
-                        } else {
-                            return Optional.empty();
-                        }
+                        return Optional.of(sv);
                     } else {
-                        @SuppressWarnings("unchecked")
-                        V otherv = (V) cond;
-                        if (sn.getHash() == hc && sn.getKey().equals(k) && sn.getValue().equals(otherv)) {
-                            if (compareAndSetWithFinalize(cn, cn.updatedAt(pos, new SingletonNode<>(k, v, hc), gen), trie)) {
-                                return Optional.of(sn.getValue());
-                            } else {
-                                return null;
-                            }
-                        } else {
-                            return Optional.empty();
-                        }
+                        return Optional.empty();
+                    }
+                } else if (cond == null || cond == INodeUtil.KEY_ABSENT) {
+                    CompressedNode<K, V> rn = cn.generation == gen ? cn : cn.renewed(gen, trie);
+                    IndirectionNode<K,V> sub = inode(CNodeUtil.createDualNode(sk, sv, trie.hash(sk), k, v, hc, lev + branching.bits(), trie, gen));
+                    if (compareAndSetWithFinalize(cn, rn.entryToNode(flag, sub, gen), trie)) {
+                        return Optional.empty();
+                    } else {
+                        return null;
+                    }
+                } else {
+                    return Optional.empty();
+                }
+            } else if ((cn.nodeMap & flag) != 0) {
+                int idx = cn.nodeIndex(flag);
+                IndirectionNode<K,V> in = cn.nodeAt(idx);
+                if (startGen == in.gen) {
+                    return in.recInsertIf(k, v, hc, cond, lev + branching.bits(), this, startGen, trie);
+                } else {
+                    if (compareAndSetWithFinalize(cn, renewedFor(cn, idx, startGen, trie), trie)) {
+                        return recInsertIf(k, v, hc, cond, lev, parent, startGen, trie);
+                    } else {
+                        return null;
                     }
                 }
             } else if (cond == null || cond == INodeUtil.KEY_ABSENT) {
                 CompressedNode<K, V> rn = cn.generation == gen ? cn : cn.renewed(gen, trie);
-                CompressedNode<K, V> ncnode = rn.insertedAt(pos, flag, new SingletonNode<>(k, v, hc), gen);
-                if (compareAndSetWithFinalize(cn, ncnode, trie)) {
+                if (compareAndSetWithFinalize(cn, rn.insertedEntry(flag, k, v, gen), trie)) {
                     return Optional.empty();
                 } else {
                     return null;
                 }
-            } else if (cond == INodeUtil.KEY_PRESENT) {
-                return Optional.empty();
             } else {
                 return Optional.empty();
             }
         } else if (m instanceof TombNode<K,V>) {
-            clean(parent, trie, lev - 5);
+            clean(parent, trie, lev - trie.getBranchingFactor().bits());
             return null;
         } else if (m instanceof ListNode<K,V>) {
             ListNode<K,V> ln = (ListNode<K,V>) m;
             V vValue = ln.get(k);
             if (cond == null) {
                 if (insertln(ln, k, v, trie))
-                    return Optional.of(vValue);
+                    return Optional.ofNullable(vValue);
                 return null;
             } else if (cond == INodeUtil.KEY_ABSENT) {
                 if (vValue == null) {
@@ -264,10 +299,10 @@ public final class IndirectionNode<K,V> extends BasicNode {
                         return Optional.of(vValue);
                     return null;
                 }
-                return null;
+                return Optional.empty();
             } else {
                 if (vValue != null) {
-                    if (vValue == cond) {
+                    if (vValue.equals(cond)) {
                         if (insertln(ln, k, v, trie))
                             return Optional.of(vValue);
                         return null;
@@ -284,41 +319,73 @@ public final class IndirectionNode<K,V> extends BasicNode {
         return compareAndSetWithFinalize(listNode, nn, trie);
     }
 
-    public final Object recLookup(K k, int hc, int lev, IndirectionNode<K,V> parent, Generation startGen, ConcurrentTrie<K,V> trie) {
-        MainNode<K,V> m = readCommittedMainNode(trie);
+    /**
+     * Looks up a key in a read-only trie. Nothing below the root of a read-only trie is renewed
+     * or cleaned, so the walk is a loop over the levels without generation checks, and tombs are
+     * read as entries. The only help it gives is to abort a GCAS still pending on a node, which a
+     * writer of the trie the snapshot was taken from may have started before the snapshot;
+     * otherwise the write could still commit after this lookup missed it.
+     *
+     * @return the value of the key, or null if it is absent
+     */
+    public static <K, V> V readOnlyLookup(IndirectionNode<K, V> root, K k, long hc, ConcurrentTrie<K, V> trie) {
+        BranchingFactor branching = trie.getBranchingFactor();
+        IndirectionNode<K, V> in = root;
+        for (int lev = 0; ; lev += branching.bits()) {
+            MainNode<K, V> m = in.readMainNodeForLookup(trie);
+            if (m instanceof CompressedNode) {
+                CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+                long flag = 1L << branching.index(hc, lev);
+                if ((cn.dataMap & flag) != 0) {
+                    int idx = cn.dataIndex(flag);
+                    return cn.keyAt(idx).equals(k) ? cn.valueAt(idx) : null;
+                } else if ((cn.nodeMap & flag) != 0) {
+                    in = cn.nodeAt(cn.nodeIndex(flag));
+                } else {
+                    return null;
+                }
+            } else if (m instanceof TombNode) {
+                TombNode<K, V> tn = (TombNode<K, V>) m;
+                return tn.getHash() == hc && tn.getKey().equals(k) ? tn.getValue() : null;
+            } else if (m instanceof ListNode) {
+                return ((ListNode<K, V>) m).get(k);
+            } else {
+                return null;
+            }
+        }
+    }
+
+    public final Object recLookup(K k, long hc, int lev, IndirectionNode<K,V> parent, Generation startGen, ConcurrentTrie<K,V> trie) {
+        MainNode<K,V> m = readMainNodeForLookup(trie);
         if (m instanceof CompressedNode) {
             CompressedNode<K,V> cn = (CompressedNode<K,V>) m;
-            int idx = (hc >>> lev) & 0x1f;
-            int flag = 1 << idx;
-            int bmp = cn.bitmap;
-            if ((bmp & flag) == 0) {
-                return null;
-            } else {
-                int pos = (bmp == 0xffffffff) ? idx : Integer.bitCount (bmp & (flag - 1));
-                BasicNode sub = cn.array[pos];
-                if (sub instanceof IndirectionNode) {
-                    IndirectionNode<K,V> in = (IndirectionNode<K,V>) sub;
-                    if (trie.isReadOnly() || (startGen == in.gen)) {
-                        return in.recLookup(k, hc, lev + 5, this, startGen, trie);
-                    } else {
-                        if (compareAndSetWithFinalize(cn, cn.renewed(startGen, trie), trie)) {
-                            return recLookup(k, hc, lev, parent, startGen, trie);
-                        } else {
-                            return RESTART;
-                        }
-                    }
-                } else if (sub instanceof SingletonNode<?,?>) {
-                    SingletonNode<K,V> sn = (SingletonNode<K, V>) sub;
-                    if (sn.getHash() == hc && sn.getKey().equals(k)) {
-                        return sn.getValue();
+            BranchingFactor branching = trie.getBranchingFactor();
+            long flag = 1L << branching.index(hc, lev);
+            if ((cn.dataMap & flag) != 0) {
+                int idx = cn.dataIndex(flag);
+                if (cn.keyAt(idx).equals(k)) {
+                    return cn.valueAt(idx);
+                } else {
+                    return null;
+                }
+            } else if ((cn.nodeMap & flag) != 0) {
+                int idx = cn.nodeIndex(flag);
+                IndirectionNode<K,V> in = cn.nodeAt(idx);
+                if (trie.isReadOnly() || (startGen == in.gen)) {
+                    return in.recLookup(k, hc, lev + branching.bits(), this, startGen, trie);
+                } else {
+                    if (compareAndSetWithFinalize(cn, renewedFor(cn, idx, startGen, trie), trie)) {
+                        return recLookup(k, hc, lev, parent, startGen, trie);
                     } else {
-                        return null;
+                        return RESTART;
                     }
                 }
+            } else {
+                return null;
             }
         } else if (m instanceof TombNode<K,V>) {
             if (trie.nonReadOnly()) {
-                clean(parent, trie, lev - 5);
+                clean(parent, trie, lev - trie.getBranchingFactor().bits());
                 return RESTART;
             } else {
                 TombNode<K,V> tn = (TombNode<K,V>) m;
@@ -334,111 +401,90 @@ public final class IndirectionNode<K,V> extends BasicNode {
         throw new RuntimeException("Out of all cases defined.");
     }
 
-    public final Optional<V> recRemove(K k, V v, int hc, int lev, IndirectionNode<K, V> parent, Generation startgen, ConcurrentTrie<K, V> trie) {
+    public final Optional<V> recRemove(K k, V v, long hc, int lev, IndirectionNode<K, V> parent, Generation startgen, ConcurrentTrie<K, V> trie) {
         MainNode<K, V> m = readCommittedMainNode(trie); // use -Yinline!
 
         if (m instanceof CompressedNode) {
             CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
-            int idx = (hc >>> lev) & 0x1f;
-            int bmp = cn.bitmap;
-            int flag = 1 << idx;
-            if ((bmp & flag) == 0) {
-                return Optional.empty();
-            } else {
-                int pos = Integer.bitCount(bmp & (flag - 1));
-                BasicNode sub = cn.array[pos];
-                Optional<V> res = null;
-                if (sub instanceof IndirectionNode) {
-                    IndirectionNode<K, V> in = (IndirectionNode<K, V>) sub;
-                    if (startgen == in.gen) {
-                        res = in.recRemove(k, v, hc, lev + 5, this, startgen, trie);
-                    } else {
-                        if (compareAndSetWithFinalize(cn, cn.renewed(startgen, trie), trie))
-                            res = recRemove(k, v, hc, lev, parent, startgen, trie);
-                    }
-                } else if (sub instanceof SingletonNode<?,?>) {
-                    SingletonNode<K, V> sn = (SingletonNode<K, V>) sub;
-                    if (sn.getHash() == hc && sn.getKey().equals(k) && (v == null || sn.getValue().equals(v))) {
-                        @SuppressWarnings("unchecked")
-                        MainNode<K, V> ncn = (MainNode<K, V>) cn.removedAt(pos, flag, gen).toContracted(lev);
-                        if (compareAndSetWithFinalize(cn, ncn, trie)) {
-                            res = Optional.of(sn.getValue());
-                        }
-                    } else {
-                        return Optional.empty();
+            BranchingFactor branching = trie.getBranchingFactor();
+            long flag = 1L << branching.index(hc, lev);
+            Optional<V> res = null;
+            if ((cn.dataMap & flag) != 0) {
+                int idx = cn.dataIndex(flag);
+                V sv = cn.valueAt(idx);
+                if (cn.keyAt(idx).equals(k) && (v == null || sv.equals(v))) {
+                    MainNode<K, V> ncn = cn.removedEntry(flag, gen).toContracted(lev, trie);
+                    if (compareAndSetWithFinalize(cn, ncn, trie)) {
+                        res = Optional.of(sv);
                     }
+                } else {
+                    return Optional.empty();
                 }
-
-                if (res == null || !res.isPresent()) {
-                    return res;
+            } else if ((cn.nodeMap & flag) != 0) {
+                int idx = cn.nodeIndex(flag);
+                IndirectionNode<K, V> in = cn.nodeAt(idx);
+                if (startgen == in.gen) {
+                    res = in.recRemove(k, v, hc, lev + branching.bits(), this, startgen, trie);
                 } else {
-                    if (parent != null) {
-                        MainNode<K, V> n = readCommittedMainNode(trie);
-                        if (n instanceof TombNode<?,?>)
-                            cleanParent(this, res, parent, hc, lev, startgen, trie);
-                    }
-                    return res;
+                    if (compareAndSetWithFinalize(cn, renewedFor(cn, idx, startgen, trie), trie))
+                        res = recRemove(k, v, hc, lev, parent, startgen, trie);
+                }
+            } else {
+                return Optional.empty();
+            }
+
+            if (res == null || !res.isPresent()) {
+                return res;
+            } else {
+                if (parent != null) {
+                    MainNode<K, V> n = readCommittedMainNode(trie);
+                    if (n instanceof TombNode<?,?>)
+                        cleanParent(this, res, parent, hc, lev, startgen, trie);
                 }
+                return res;
             }
         } else if (m instanceof TombNode<K,V>) {
-            clean(parent, trie, lev - 5);
+            clean(parent, trie, lev - trie.getBranchingFactor().bits());
             return Optional.empty();
         } else if (m instanceof ListNode) {
             ListNode<K, V> ln = (ListNode<K, V>) m;
-            if (v == null) {
-                @SuppressWarnings("unchecked")
-                Optional<V> optv = (Optional<V>) Optional.ofNullable(ln.get(k));
-                ListNode<K, V> nn = (ListNode<K, V>) ln.removed(k);
-                if (compareAndSetWithFinalize(ln, nn, trie)) {
-                    return optv;
+            V lv = ln.get(k);
+            if (lv != null && (v == null || lv.equals(v))) {
+                if (compareAndSetWithFinalize(ln, ln.removed(k, trie), trie)) {
+                    return Optional.of(lv);
                 } else {
-                    return Optional.empty();
+                    return null;
                 }
             } else {
-                @SuppressWarnings("unchecked")
-                Optional<V> optv = (Optional<V>) Optional.ofNullable(ln.get(k));
-                if (optv.isPresent() && optv.get().equals(v)) {
-                    ListNode<K, V> nn = (ListNode<K, V>) ln.removed(k);
-                    if (compareAndSetWithFinalize(ln, nn, trie)) {
-                        return optv;
-                    } else {
-                        return Optional.empty();
-                    }
-                } else {
-                    return Optional.empty();
-                }
+                return Optional.empty();
             }
         }
         return Optional.empty();
     }
 
-    private void cleanParent(IndirectionNode<K, V> self, Optional<V> res, IndirectionNode<K, V> parent, int hc, int lev, Generation startgen, ConcurrentTrie<K, V> ct) {
+    private void cleanParent(IndirectionNode<K, V> self, Optional<V> res, IndirectionNode<K, V> parent, long hc, int lev, Generation startgen, ConcurrentTrie<K, V> ct) {
         if (res.isPresent() && parent != null) { // never tomb at root
             MainNode<K, V> n = readCommittedMainNode(ct);
             if (n instanceof TombNode<K,V>) {
                 TombNode<K, V> tn = (TombNode<K, V>) n;
-                cleanParentRecursive(parent, hc, lev - 5, tn, startgen, ct);
+                cleanParentRecursive(parent, hc, lev - ct.getBranchingFactor().bits(), tn, startgen, ct);
             }
         }
     }
 
-    private void cleanParentRecursive(IndirectionNode<K, V> parent, int hc, int lev, Object nonlive, Generation startgen, ConcurrentTrie<K, V> ct) {
+    private void cleanParentRecursive(IndirectionNode<K, V> parent, long hc, int lev, Object nonlive, Generation startgen, ConcurrentTrie<K, V> ct) {
         MainNode<K, V> pm = parent.readCommittedMainNode(ct);
         if (pm instanceof CompressedNode) {
             CompressedNode<K, V> cn = (CompressedNode<K, V>) pm;
-            int idx = (hc >>> lev) & 0x1f;
-            int bmp = cn.bitmap;
-            int flag = 1 << idx;
-            if ((bmp & flag) == 0)
+            long flag = 1L << ct.getBranchingFactor().index(hc, lev);
+            if ((cn.nodeMap & flag) == 0)
                 // Nothing to remove. Return.
                 return;
             // Work on cleaning up.
-            int pos = Integer.bitCount(bmp & (flag - 1));
-            BasicNode sub = cn.array[pos];
-            if (sub == this) {
+            if (cn.nodeAt(cn.nodeIndex(flag)) == this) {
                 if (nonlive instanceof TombNode<?,?>) {
                     TombNode<K, V> tombNode = (TombNode<K, V>) nonlive;
-                    MainNode<K, V> ncn = (MainNode<K, V>) cn.updatedAt(pos, tombNode.copyUntombed(), gen).toContracted(lev - 5);
+                    MainNode<K, V> ncn = cn.nodeToEntry(flag, tombNode.getKey(), tombNode.getValue(), gen).toContracted(lev, ct);
                     if (!parent.compareAndSetWithFinalize(cn, ncn, ct)) {
                         if (ct.RDCSS_READ_ROOT(false).gen == startgen)
                             cleanParentRecursive(parent, hc, lev, nonlive, startgen, ct);
@@ -453,8 +499,182 @@ public final class IndirectionNode<K,V> extends BasicNode {
     private void clean(IndirectionNode<K,V> nd, ConcurrentTrie<K,V> ct, int lev) {
         MainNode<K,V> m = nd.readCommittedMainNode(ct);
         if (m instanceof CompressedNode<?,?>) {
-            nd.compareAndSetWithFinalize(m, (MainNode<K, V>) ((CompressedNode<K,V>) m).toCompressed(ct, lev, gen), ct);
+            nd.compareAndSetWithFinalize(m, ((CompressedNode<K,V>) m).toCompressed(ct, lev, gen), ct);
+        }
+    }
+
+    /**
+     * Contracts the subtree below this node bottom-up, using the same steps as {@code clean}.
+     * A compressed node below the root that holds a single key-value pair is entombed, and the
+     * parent then resurrects that tomb through {@link CompressedNode#toCompressed}. Children that
+     * belong to an older generation are not descended into, since they are shared with a snapshot.
+     *
+     * @param lev         the level of this node in the trie
+     * @param parent      the parent node, or null for the root
+     * @param startGen    the generation of the root the walk started from
+     * @param trie        the concurrent trie
+     * @param resurrected counts the tombs resurrected into their parent
+     * @param contracted  counts the nodes contracted into tombs
+     * @param failed      counts the steps that lost their GCAS to a concurrent writer
+     */
+    public final void recCompact(int lev, IndirectionNode<K, V> parent, Generation startGen, ConcurrentTrie<K, V> trie,
+                                 LongAdder resurrected, LongAdder contracted, LongAdder failed) {
+        MainNode<K, V> m = readCommittedMainNode(trie);
+        if (!(m instanceof CompressedNode)) return;
+
+        CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+        int tombs = 0;
+        for (int i = 0; i < cn.nodeArity(); i++) {
+            IndirectionNode<K, V> in = cn.nodeAt(i);
+            if (in.gen == startGen) {
+                in.recCompact(lev + trie.getBranchingFactor().bits(), this, startGen, trie, resurrected, contracted, failed);
+            }
+            if (in.readCommittedMainNode(trie) instanceof TombNode) tombs++;
+        }
+
+        if (tombs > 0) {
+            // Resurrect the tombed children, which may in turn leave a single entry to contract.
+            MainNode<K, V> ncn = cn.toCompressed(trie, lev, gen);
+            if (compareAndSetWithFinalize(cn, ncn, trie)) {
+                resurrected.add(tombs);
+                if (ncn instanceof TombNode) contracted.increment();
+            } else {
+                failed.increment();
+            }
+        } else if (parent != null && cn.nodeMap == 0 && cn.dataArity() == 1) {
+            // Entomb the single entry, the parent resurrects it once this call returns.
+            if (compareAndSetWithFinalize(cn, cn.toContracted(lev, trie), trie)) {
+                contracted.increment();
+            } else {
+                failed.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes the entries below this node that match the predicate. The children are pruned
+     * first, then this node replaces its compressed node with a single GCAS by one without the
+     * matching entries, resurrecting or dropping tombs on the way. A node below the root that
+     * loses all its entries becomes a tomb of one of them, for its parent to drop. If the GCAS
+     * fails because the node changed concurrently, the whole subtree is pruned again, as a
+     * writer cleaning a tomb may have moved entries into it. The children of the root are
+     * pruned in parallel.
+     *
+     * @param predicate the entries to remove
+     * @param lev       the level of this node in the trie
+     * @param startGen  the generation of the root the walk started from
+     * @param trie      the concurrent trie
+     * @param removed   counts the removed entries
+     * @return false if the trie moved on to another generation, in which case the caller starts
+     *         over from the new root
+     */
+    public final boolean recRemoveIf(BiPredicate<? super K, ? super V> predicate, int lev, Generation startGen, ConcurrentTrie<K, V> trie, LongAdder removed) {
+        while (true) {
+            MainNode<K, V> m = readCommittedMainNode(trie);
+            if (m instanceof CompressedNode) {
+                CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+                if (cn.needsRenewal(startGen)) {
+                    if (!compareAndSetWithFinalize(cn, cn.renewed(startGen, trie), trie)
+                            && trie.RDCSS_READ_ROOT(false).gen != startGen) {
+                        return false;
+                    }
+                    continue;
+                }
+                int bits = trie.getBranchingFactor().bits();
+                IntStream children = IntStream.range(0, cn.nodeArity());
+                if (lev == 0) children = children.parallel();
+                if (!children.allMatch(i -> cn.nodeAt(i).recRemoveIf(predicate, lev + bits, startGen, trie, removed))) {
+                    return false;
+                }
+                int outcome = pruneEntries(predicate, lev, startGen, trie, removed);
+                if (outcome != PRUNE_AGAIN) return outcome == PRUNED;
+            } else if (m instanceof ListNode) {
+                return pruneList((ListNode<K, V>) m, predicate, startGen, trie, removed);
+            } else {
+                // A tomb is pruned by the parent.
+                return true;
+            }
+        }
+    }
+
+    private boolean pruneList(ListNode<K, V> ln, BiPredicate<? super K, ? super V> predicate, Generation startGen, ConcurrentTrie<K, V> trie, LongAdder removed) {
+        while (true) {
+            Map<K, V> kept = new HashMap<>();
+            for (Map.Entry<K, V> e : ln.listMap.entrySet()) {
+                if (!predicate.test(e.getKey(), e.getValue())) kept.put(e.getKey(), e.getValue());
+            }
+            int n = ln.listMap.size() - kept.size();
+            if (n == 0) return true;
+            MainNode<K, V> nm;
+            if (kept.size() > 1) {
+                nm = new ListNode<>(kept);
+            } else {
+                // Entomb the last entry, kept or not: the parent resurrects the tomb, or drops
+                // it if it matches, in its own GCAS. A compressed node must never appear at
+                // the level of list nodes, not even an empty one for a moment, as a snapshot
+                // taken in between would keep it.
+                Map.Entry<K, V> e = (kept.isEmpty() ? ln.listMap : kept).entrySet().iterator().next();
+                nm = new TombNode<>(e.getKey(), e.getValue(), trie.hash(e.getKey()));
+                if (kept.isEmpty()) n--;
+            }
+            if (compareAndSetWithFinalize(ln, nm, trie)) {
+                removed.add(n);
+                return true;
+            }
+            if (trie.RDCSS_READ_ROOT(false).gen != startGen) return false;
+            MainNode<K, V> m = readCommittedMainNode(trie);
+            if (!(m instanceof ListNode)) return true;
+            ln = (ListNode<K, V>) m;
+        }
+    }
+
+    /**
+     * Replaces the compressed node of this node, once, by one without the matching entries.
+     *
+     * @return {@link #PRUNED} if the node holds no matching entry any more, {@link #PRUNE_AGAIN}
+     *         if it changed concurrently, or {@link #NEW_GENERATION} if the trie moved on to
+     *         another generation
+     */
+    private int pruneEntries(BiPredicate<? super K, ? super V> predicate, int lev, Generation startGen, ConcurrentTrie<K, V> trie, LongAdder removed) {
+        MainNode<K, V> m = readCommittedMainNode(trie);
+        if (!(m instanceof CompressedNode)) return PRUNED;
+        CompressedNode<K, V> cn = (CompressedNode<K, V>) m;
+        if (cn.needsRenewal(startGen)) return PRUNE_AGAIN;
+        CompressedNode<K, V> pruned = cn.pruned(predicate, trie, gen);
+        if (pruned == cn) return PRUNED;
+        // Every tomb below the node is either dropped or resurrected as an entry.
+        int before = cn.dataArity();
+        for (int i = 0; i < cn.nodeArity(); i++) {
+            if (cn.nodeAt(i).readCommittedMainNode(trie) instanceof TombNode) before++;
+        }
+        MainNode<K, V> nm = pruned.toContracted(lev, trie);
+        int kept = pruned.dataArity();
+        if (lev > 0 && pruned.content.length == 0) {
+            // Entomb one of the removed entries rather than leave an empty node: writers could
+            // insert into an empty node after the parent decided to drop it, while a tomb is
+            // final and makes them clean the parent first. The parent drops the tomb, and
+            // counts its entry, when it is pruned in turn.
+            nm = entombFirst(cn, trie);
+            kept = 1;
+        }
+        if (compareAndSetWithFinalize(cn, nm, trie)) {
+            removed.add(before - kept);
+            return PRUNED;
+        }
+        return trie.RDCSS_READ_ROOT(false).gen == startGen ? PRUNE_AGAIN : NEW_GENERATION;
+    }
+
+    /** Returns a tomb of the first entry of the node, held in place or by a tombed child. */
+    private TombNode<K, V> entombFirst(CompressedNode<K, V> cn, ConcurrentTrie<K, V> trie) {
+        if (cn.dataArity() > 0) return new TombNode<>(cn.keyAt(0), cn.valueAt(0), trie.hash(cn.keyAt(0)));
+        for (int i = 0; i < cn.nodeArity(); i++) {
+            MainNode<K, V> child = cn.nodeAt(i).readCommittedMainNode(trie);
+            if (child instanceof TombNode) {
+                TombNode<K, V> tn = (TombNode<K, V>) child;
+                return new TombNode<>(tn.getKey(), tn.getValue(), tn.getHash());
+            }
         }
+        throw new IllegalStateException("A pruned node emptied without holding an entry");
     }
 
     final boolean isNullInode(ConcurrentTrie<K,V> ct) {
@@ -485,7 +705,7 @@ public final class IndirectionNode<K,V> extends BasicNode {
 
     static <K,V> IndirectionNode<K,V> newRootNode() {
         Generation gen = new Generation();
-        CompressedNode<K,V> cn = new CompressedNode<>(0, new BasicNode[0], gen);
+        CompressedNode<K,V> cn = CompressedNode.empty(gen);
         return new IndirectionNode<>(cn, gen);
     }
 
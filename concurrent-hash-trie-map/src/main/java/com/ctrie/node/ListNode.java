@@ -1,6 +1,6 @@
 package com.ctrie.node;
 
-import com.ctrie.ConcurrentTrieUtil;
+import com.ctrie.ConcurrentTrie;
 
 import java.util.HashMap;
 import java.util.Iterator;
@@ -37,8 +37,9 @@ public final class ListNode<K, V> extends MainNode<K, V> {
      * @return a new ListNode with the key-value pair inserted
      */
     public ListNode<K, V> inserted(K key, V value) {
-        listMap.put(key, value);
-        return new ListNode<>(listMap);
+        Map<K, V> updatedMap = new HashMap<>(listMap);
+        updatedMap.put(key, value);
+        return new ListNode<>(updatedMap);
     }
 
     /**
@@ -51,19 +52,20 @@ public final class ListNode<K, V> extends MainNode<K, V> {
      * @return a new ListNode with the key-value pair inserted
      */
     public ListNode<K, V> inserted(K key1, V value1, K key2, V value2) {
-        ListNode<K, V> listNode = new ListNode<>(new HashMap<>());
-        listMap.put(key1, value1);
-        listMap.put(key2, value2);
-        return new ListNode<>(listMap);
+        Map<K, V> updatedMap = new HashMap<>(listMap);
+        updatedMap.put(key1, value1);
+        updatedMap.put(key2, value2);
+        return new ListNode<>(updatedMap);
     }
 
     /**
      * Removes a key from this node.
      *
      * @param key the key to remove
+     * @param ct  the concurrent trie, for the hash of the remaining key
      * @return a new ListNode with the key removed, or a tombed node if only one element remains
      */
-    public MainNode<K, V> removed(K key) {
+    public MainNode<K, V> removed(K key, ConcurrentTrie<K, V> ct) {
         Map<K, V> updatedMap = new HashMap<>(listMap);
         updatedMap.remove(key);
 
@@ -73,7 +75,7 @@ public final class ListNode<K, V> extends MainNode<K, V> {
             Iterator<Map.Entry<K, V>> iterator = updatedMap.entrySet().iterator();
             if (iterator.hasNext()) {
                 Map.Entry<K, V> entry = iterator.next();
-                return new TombNode<>(entry.getKey(), entry.getValue(), ConcurrentTrieUtil.computeHash(entry.getKey()));
+                return new TombNode<>(entry.getKey(), entry.getValue(), ct.hash(entry.getKey()));
             } else {
                 // This case should ideally not occur since we check for size > 1 before
                 throw new IllegalStateException("Updated map is unexpectedly empty.");
@@ -1,6 +1,7 @@
 package com.ctrie.node;
 
-import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 /**
  * The base class for nodes that hold actual data or other nodes in the concurrent trie.
@@ -11,18 +12,35 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  */
 public abstract class MainNode<K,V> extends BasicNode {
 
-    @SuppressWarnings("rawtypes")
-    // static updater to update value of "prev".
-    public static final AtomicReferenceFieldUpdater<MainNode, MainNode> updater = AtomicReferenceFieldUpdater.newUpdater(MainNode.class, MainNode.class, "prev");
-    public volatile MainNode<K, V> prev = null;
+    private static final VarHandle PREV;
+
+    static {
+        try {
+            PREV = MethodHandles.lookup().findVarHandle(MainNode.class, "prev", MainNode.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Left at its default rather than initialized to null, which would cost a volatile write per node.
+    public volatile MainNode<K, V> prev;
 
     //public abstract int cachedSize(Object ct);
 
     public boolean CAS_PREV(MainNode<K, V> oldVal, MainNode<K, V> newVal) {
-        return updater.compareAndSet(this, oldVal, newVal);
+        return PREV.compareAndSet(this, oldVal, newVal);
     }
 
+    /**
+     * Sets the previous node before a GCAS. A release write suffices, as the compare-and-set of
+     * the main node that follows publishes the node, and the write must only not move after it.
+     */
     public void WRITE_PREV(MainNode<K, V> nval) {
-        updater.set(this, nval);
+        PREV.setRelease(this, nval);
+    }
+
+    /** Reads the previous node with acquire semantics, for readers that only need to see a committed node. */
+    MainNode<K, V> readPrevAcquire() {
+        return (MainNode<K, V>) PREV.getAcquire(this);
     }
 }
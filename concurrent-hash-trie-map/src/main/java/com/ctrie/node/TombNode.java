@@ -14,16 +14,16 @@ import java.util.Map;
 public final class TombNode<K, V> extends MainNode<K, V> implements KeyValueNode<K, V> {
     private final K key;
     private final V value;
-    private final int hash;
+    private final long hash;
 
     /**
      * Constructs a TombNode with the given key, value, and hash.
      *
      * @param key   the key stored in this node
      * @param value the value stored in this node
-     * @param hash  the hash code of the key
+     * @param hash  the hash of the key under the strategy of the trie
      */
-    public TombNode(K key, V value, int hash) {
+    public TombNode(K key, V value, long hash) {
         this.key = key;
         this.value = value;
         this.hash = hash;
@@ -47,16 +47,6 @@ public final class TombNode<K, V> extends MainNode<K, V> implements KeyValueNode
         return new TombNode<>(key, value, hash);
     }
 
-    /**
-     * Creates an untombed copy of this node.
-     * This is used to revert a tombed node back to its original state.
-     *
-     * @return a new SingletonNode with the same key, value, and hash
-     */
-    public SingletonNode<K, V> copyUntombed() {
-        return new SingletonNode<>(key, value, hash);
-    }
-
     @Override
     public Map.Entry<K, V> getKeyValuePair() {
         return new AbstractMap.SimpleEntry<>(key, value);
@@ -72,7 +62,7 @@ public final class TombNode<K, V> extends MainNode<K, V> implements KeyValueNode
         return value;
     }
 
-    public int getHash() {
+    public long getHash() {
         return hash;
     }
 
@@ -82,6 +72,6 @@ public final class TombNode<K, V> extends MainNode<K, V> implements KeyValueNode
 
     @Override
     public String toString(int level) {
-        return " ".repeat(level) + "TombNode(" + key + ", " + value + ", " + Integer.toHexString(hash) + ", !)";
+        return " ".repeat(level) + "TombNode(" + key + ", " + value + ", " + Long.toHexString(hash) + ", !)";
     }
 }
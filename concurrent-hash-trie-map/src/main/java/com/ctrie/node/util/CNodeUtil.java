@@ -1,12 +1,12 @@
 package com.ctrie.node.util;
 
-import com.ctrie.node.BasicNode;
+import com.ctrie.BranchingFactor;
+import com.ctrie.ConcurrentTrie;
 import com.ctrie.node.CompressedNode;
 import com.ctrie.node.Generation;
 import com.ctrie.node.IndirectionNode;
 import com.ctrie.node.ListNode;
 import com.ctrie.node.MainNode;
-import com.ctrie.node.SingletonNode;
 
 import java.util.Map;
 
@@ -15,58 +15,54 @@ import java.util.Map;
  */
 public final class CNodeUtil {
 
-    // Maximum level in the trie. This value ensures that we don't exceed the maximum bit length of an integer hash code.
-    private static final int MAX_LEVEL = 35;
-
-    // Bit mask used for extracting 5 bits from a hash code, allowing us to use these bits as an index.
-    private static final int BIT_MASK = 0x1f; // 0x1f is 31 in decimal, which is 11111 in binary.
-
     private CNodeUtil() {
         // Prevent instantiation
     }
 
     /**
-     * Creates a dual-node structure from two singleton nodes.
+     * Creates a dual-node structure from two entries.
      *
-     * This method combines two singleton nodes into a more complex node structure, ensuring
+     * This method combines two entries into a more complex node structure, ensuring
      * that they fit into the correct position in the trie based on their hash codes.
      *
      * @param <K>        the type of keys
      * @param <V>        the type of values
-     * @param nodeX      the first singleton node
-     * @param hashX      the hash code of the first node
-     * @param nodeY      the second singleton node
-     * @param hashY      the hash code of the second node
+     * @param keyX       the key of the first entry
+     * @param valueX     the value of the first entry
+     * @param hashX      the hash of the first key
+     * @param keyY       the key of the second entry
+     * @param valueY     the value of the second entry
+     * @param hashY      the hash of the second key
      * @param level      the current level in the trie
+     * @param trie       the trie, for its branching factor and hash width
      * @param generation the generation object
      * @return a new MainNode representing the combined structure
      */
-    public static <K, V> MainNode<K, V> createDualNode(SingletonNode<K, V> nodeX, int hashX, SingletonNode<K, V> nodeY, int hashY, int level, Generation generation) {
+    public static <K, V> MainNode<K, V> createDualNode(K keyX, V valueX, long hashX, K keyY, V valueY, long hashY, int level, ConcurrentTrie<K, V> trie, Generation generation) {
+        BranchingFactor branching = trie.getBranchingFactor();
         // Check if we are within the maximum allowed level of the trie.
-        if (level < MAX_LEVEL) {
-            // Extract 5 bits from the hash code to determine the position within the current level.
-            int indexX = (hashX >>> level) & BIT_MASK;
-            int indexY = (hashY >>> level) & BIT_MASK;
+        if (level < trie.maxLevel()) {
+            // Extract the bits of the current level from the hash code to determine the position.
+            int indexX = branching.index(hashX, level);
+            int indexY = branching.index(hashY, level);
 
-            // Create a bitmap with positions of both nodes.
-            int bitmap = (1 << indexX) | (1 << indexY);
-
-            // Check if both nodes should be placed in the same position.
+            // Check if both entries should be placed in the same position.
             if (indexX == indexY) {
-                // Both nodes fall in the same slot, so we need to create an internal node (INode).
+                // Both entries fall in the same slot, so we need to create an internal node (INode).
                 IndirectionNode<K, V> subINode = new IndirectionNode<>(generation);
-                subINode.mainNode = createDualNode(nodeX, hashX, nodeY, hashY, level + 5, generation);
-                return new CompressedNode<>(bitmap, new BasicNode[]{subINode}, generation);
+                subINode.mainNode = createDualNode(keyX, valueX, hashX, keyY, valueY, hashY, level + branching.bits(), trie, generation);
+                return new CompressedNode<>(0, 1L << indexX, new Object[]{subINode}, generation);
             } else {
-                // Nodes fall in different slots, so we create a CNode that contains both nodes.
-                BasicNode[] nodesArray = (indexX < indexY)
-                        ? new BasicNode[]{nodeX, nodeY}
-                        : new BasicNode[]{nodeY, nodeX};
-                return new CompressedNode<>(bitmap, nodesArray, generation);
+                // Entries fall in different slots, so we create a CNode that holds both inline.
+                long dataMap = (1L << indexX) | (1L << indexY);
+                Object[] content = (indexX < indexY)
+                        ? new Object[]{keyX, valueX, keyY, valueY}
+                        : new Object[]{keyY, valueY, keyX, valueX};
+                return new CompressedNode<>(dataMap, 0, content, generation);
             }
         } else {
             // If the level exceeds the maximum, we convert the structure to an LNode.
-            Map<K,V> values = Map.of(nodeX.getKey(), nodeX.getValue(), nodeY.getKey(), nodeY.getValue());
+            Map<K,V> values = Map.of(keyX, valueX, keyY, valueY);
             return new ListNode<>(values);
         }
     }
@@ -80,22 +76,20 @@ public final class CNodeUtil {
      *
      * We start at level 0:
      *
-     * Step 1: Extract 5 bits from the hash code.
+     * Step 1: Extract 5 bits from the hash code (with the default branching factor).
      * Level 0 (bits 0-4):
      * hashX: 0b10011 (binary) = 19 (decimal)
      * hashY: 0b10010 (binary) = 18 (decimal)
      *
-     * Step 2: Create bitmap.
-     * Bitmap: (1 << 19) | (1 << 18) = 0b1100000000000000000 (binary) = 786432 (decimal)
-     *
-     * Step 3: Check positions.
-     * indexX and indexY are different, so we create a CNode with both nodes.
+     * Step 2: Check positions.
+     * indexX and indexY are different, so we create a CNode holding both entries inline.
+     * Data map: (1 << 19) | (1 << 18) = 0b1100000000000000000 (binary) = 786432 (decimal)
      *
      * Now, suppose both hash codes fall into the same slot at level 0:
      * hashX: 0b10000 (binary) = 16 (decimal)
      * hashY: 0b10000 (binary) = 16 (decimal)
      *
-     * Bitmap: (1 << 16) = 0b10000000000000000 (binary) = 65536 (decimal)
+     * Node map: (1 << 16) = 0b10000000000000000 (binary) = 65536 (decimal)
      *
      * Since indexX == indexY, we create an internal node (INode) and recurse deeper.
      */
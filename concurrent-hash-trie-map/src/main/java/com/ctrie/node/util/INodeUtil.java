@@ -2,7 +2,6 @@ package com.ctrie.node.util;
 
 import com.ctrie.node.CompressedNode;
 import com.ctrie.node.Generation;
-import com.ctrie.node.BasicNode;
 import com.ctrie.node.IndirectionNode;
 
 /**
@@ -32,8 +31,8 @@ public final class INodeUtil {
         // Initialize a new generation
         Generation generation = new Generation();
 
-        // Create an empty CNode with a bitmap of 0 and an empty array of BasicNodes
-        CompressedNode<K, V> emptyCNode = new CompressedNode<>(0, new BasicNode[0], generation);
+        // Create an empty CNode with empty bitmaps and no content
+        CompressedNode<K, V> emptyCNode = CompressedNode.empty(generation);
 
         // Wrap the CNode in an INode and return it as the root node
         return new IndirectionNode<>(emptyCNode, generation);
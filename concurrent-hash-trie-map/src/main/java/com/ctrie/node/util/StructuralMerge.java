@@ -0,0 +1,320 @@
+package com.ctrie.node.util;
+
+import com.ctrie.BranchingFactor;
+import com.ctrie.ConcurrentTrie;
+import com.ctrie.node.CompressedNode;
+import com.ctrie.node.Generation;
+import com.ctrie.node.IndirectionNode;
+import com.ctrie.node.ListNode;
+import com.ctrie.node.MainNode;
+import com.ctrie.node.TombNode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Combines two read-only tries level by level into the root of a new trie.
+ *
+ * <p>Both tries place a key at the same position, so the merge walks the two structures side by
+ * side and only descends where both have something at a position. A subtree that only one side
+ * has, or that both sides share, is linked into the result as it is instead of being copied.
+ * Sets built from snapshots of the same trie therefore share everything that did not change
+ * between the snapshots.</p>
+ *
+ * <p>Linked subtrees keep their old generation, so a trie built on the result renews them before
+ * writing below them, and the inputs are never modified. Where both sides hold the same key the
+ * resolver computes the value from both values, or the value of the left side is kept if there
+ * is no resolver. With a resolver, subtrees both sides share are descended into as well, since
+ * every key in them has a value on both sides.</p>
+ *
+ * <p>The positions of the root hold disjoint parts of the key space, so a parallel merge
+ * combines them in separate tasks.</p>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public final class StructuralMerge<K, V> {
+
+    /**
+     * The set operations the merge can compute.
+     */
+    public enum Operation {
+        /** Keys present on either side. */
+        UNION,
+        /** Keys present on both sides. */
+        INTERSECTION,
+        /** Keys present on the left side but not on the right side. */
+        DIFFERENCE
+    }
+
+    private final ConcurrentTrie<K, V> leftTrie;
+    private final ConcurrentTrie<K, V> rightTrie;
+    private final Operation op;
+    private final Generation gen;
+    private final BiFunction<? super V, ? super V, ? extends V> resolver;
+    private final BranchingFactor branching;
+
+    private StructuralMerge(ConcurrentTrie<K, V> leftTrie, ConcurrentTrie<K, V> rightTrie, Operation op, BiFunction<? super V, ? super V, ? extends V> resolver, Generation gen) {
+        this.leftTrie = leftTrie;
+        this.rightTrie = rightTrie;
+        this.op = op;
+        this.resolver = resolver;
+        this.gen = gen;
+        this.branching = leftTrie.getBranchingFactor();
+    }
+
+    /**
+     * Combines two read-only tries.
+     *
+     * @param left  the left input, which should be a read-only snapshot
+     * @param right the right input, which should be a read-only snapshot
+     * @param op    the operation to compute
+     * @param gen   the generation of the trie the result becomes the root of
+     * @return the root compressed node of the result
+     * @throws IllegalArgumentException if the inputs have different branching factors or hash
+     *                                  strategies
+     */
+    public static <K, V> CompressedNode<K, V> combine(ConcurrentTrie<K, V> left, ConcurrentTrie<K, V> right, Operation op, Generation gen) {
+        return combine(left, right, op, null, false, gen);
+    }
+
+    /**
+     * Combines two read-only tries, resolving the keys both hold.
+     *
+     * @param left     the left input, which should be a read-only snapshot
+     * @param right    the right input, which should be a read-only snapshot
+     * @param op       the operation to compute
+     * @param resolver computes the value of a key both sides hold from its left and right value,
+     *                 or drops the key by returning null; if null, the left value is kept
+     * @param parallel whether to merge the positions of the root in parallel
+     * @param gen      the generation of the trie the result becomes the root of
+     * @return the root compressed node of the result
+     * @throws IllegalArgumentException if the inputs have different branching factors or hash
+     *                                  strategies
+     */
+    public static <K, V> CompressedNode<K, V> combine(ConcurrentTrie<K, V> left, ConcurrentTrie<K, V> right, Operation op,
+                                                      BiFunction<? super V, ? super V, ? extends V> resolver, boolean parallel, Generation gen) {
+        if (left.getBranchingFactor() != right.getBranchingFactor())
+            throw new IllegalArgumentException("Cannot combine tries with different branching factors");
+        if (left.getHashStrategy() != right.getHashStrategy())
+            throw new IllegalArgumentException("Cannot combine tries with different hash strategies");
+        StructuralMerge<K, V> merge = new StructuralMerge<>(left, right, op, resolver, gen);
+        CompressedNode<K, V> l = (CompressedNode<K, V>) left.RDCSS_READ_ROOT(false).readCommittedMainNode(left);
+        CompressedNode<K, V> r = (CompressedNode<K, V>) right.RDCSS_READ_ROOT(false).readCommittedMainNode(right);
+        // A root without indirection nodes holds a few dozen keys at most.
+        if (parallel && ((l.nodeMap | r.nodeMap) != 0)) return merge.mergeRootInParallel(l, r);
+        return merge.mergeCompressed(l, r, 0);
+    }
+
+    private CompressedNode<K, V> mergeRootInParallel(CompressedNode<K, V> l, CompressedNode<K, V> r) {
+        long bits = l.dataMap | l.nodeMap | r.dataMap | r.nodeMap;
+        long[] flags = new long[Long.bitCount(bits)];
+        for (int i = 0; bits != 0; bits &= bits - 1) {
+            flags[i++] = Long.lowestOneBit(bits);
+        }
+        List<Builder<K, V>> slots = Arrays.stream(flags).parallel().mapToObj(flag -> {
+            Builder<K, V> slot = new Builder<>();
+            mergeSlot(l, r, flag, branching.bits(), slot);
+            return slot;
+        }).collect(Collectors.toList());
+        Builder<K, V> out = new Builder<>();
+        for (Builder<K, V> slot : slots) {
+            out.addAll(slot);
+        }
+        return out.build(gen);
+    }
+
+    private CompressedNode<K, V> mergeCompressed(CompressedNode<K, V> l, CompressedNode<K, V> r, int lev) {
+        Builder<K, V> out = new Builder<>();
+        for (long bits = l.dataMap | l.nodeMap | r.dataMap | r.nodeMap; bits != 0; bits &= bits - 1) {
+            mergeSlot(l, r, Long.lowestOneBit(bits), lev + branching.bits(), out);
+        }
+        return out.build(gen);
+    }
+
+    /**
+     * Merges what two compressed nodes hold at the position of the flag and adds the result to
+     * the builder. Indirection nodes at the position hold main nodes of the given level.
+     */
+    private void mergeSlot(CompressedNode<K, V> l, CompressedNode<K, V> r, long flag, int lev, Builder<K, V> out) {
+        boolean leftHas = ((l.dataMap | l.nodeMap) & flag) != 0;
+        boolean rightHas = ((r.dataMap | r.nodeMap) & flag) != 0;
+        if (!leftHas) {
+            if (op == Operation.UNION) out.copy(r, flag);
+            return;
+        }
+        if (!rightHas) {
+            if (op != Operation.INTERSECTION) out.copy(l, flag);
+            return;
+        }
+
+        IndirectionNode<K, V> ln = (l.nodeMap & flag) != 0 ? l.nodeAt(l.nodeIndex(flag)) : null;
+        IndirectionNode<K, V> rn = (r.nodeMap & flag) != 0 ? r.nodeAt(r.nodeIndex(flag)) : null;
+        MainNode<K, V> lm = ln == null ? null : ln.readCommittedMainNode(leftTrie);
+        MainNode<K, V> rm = rn == null ? null : rn.readCommittedMainNode(rightTrie);
+        if (ln != null && rn != null && (ln == rn || lm == rm) && (resolver == null || op == Operation.DIFFERENCE)) {
+            if (op != Operation.DIFFERENCE) out.node(flag, ln);
+            return;
+        }
+
+        // An entry and a tomb both stand for a single key, anything else is a subtree.
+        K lk = null;
+        V lv = null;
+        if (ln == null) {
+            lk = l.keyAt(l.dataIndex(flag));
+            lv = l.valueAt(l.dataIndex(flag));
+        } else if (lm instanceof TombNode) {
+            lk = ((TombNode<K, V>) lm).getKey();
+            lv = ((TombNode<K, V>) lm).getValue();
+        }
+        K rk = null;
+        V rv = null;
+        if (rn == null) {
+            rk = r.keyAt(r.dataIndex(flag));
+            rv = r.valueAt(r.dataIndex(flag));
+        } else if (rm instanceof TombNode) {
+            rk = ((TombNode<K, V>) rm).getKey();
+            rv = ((TombNode<K, V>) rm).getValue();
+        }
+
+        if (lk != null && rk != null) {
+            if (lk.equals(rk)) {
+                V v = op == Operation.DIFFERENCE ? null : resolve(lv, rv);
+                if (v != null) out.entry(flag, lk, v);
+            } else if (op == Operation.UNION) {
+                long lh = leftTrie.hash(lk);
+                long rh = leftTrie.hash(rk);
+                out.node(flag, inode(CNodeUtil.createDualNode(lk, lv, lh, rk, rv, rh, lev, leftTrie, gen)));
+            } else if (op == Operation.DIFFERENCE) {
+                out.entry(flag, lk, lv);
+            }
+            return;
+        }
+
+        if (lev >= leftTrie.maxLevel()) {
+            mergeCollisions(flag, ln, lk, lv, lk != null ? Map.of(lk, lv) : ((ListNode<K, V>) lm).listMap,
+                    rk != null ? Map.of(rk, rv) : ((ListNode<K, V>) rm).listMap, out);
+            return;
+        }
+
+        CompressedNode<K, V> lc = lk != null ? singleton(lk, lv, lev) : (CompressedNode<K, V>) lm;
+        CompressedNode<K, V> rc = rk != null ? singleton(rk, rv, lev) : (CompressedNode<K, V>) rm;
+        CompressedNode<K, V> merged = mergeCompressed(lc, rc, lev);
+        if (lk == null && sameContent(merged, lc)) {
+            out.node(flag, ln);
+        } else if (rk == null && sameContent(merged, rc)) {
+            out.node(flag, rn);
+        } else if (merged.nodeMap == 0 && merged.content.length == 2) {
+            out.entry(flag, merged.keyAt(0), merged.valueAt(0));
+        } else if (merged.content.length > 0) {
+            out.node(flag, new IndirectionNode<>(merged, gen));
+        }
+    }
+
+    private void mergeCollisions(long flag, IndirectionNode<K, V> ln, K lk, V lv, Map<K, V> left, Map<K, V> right, Builder<K, V> out) {
+        Map<K, V> result = new HashMap<>();
+        boolean unchanged = lk == null;
+        for (Map.Entry<K, V> e : left.entrySet()) {
+            boolean both = right.containsKey(e.getKey());
+            if (op == Operation.UNION || (op == Operation.INTERSECTION) == both) {
+                V v = both ? resolve(e.getValue(), right.get(e.getKey())) : e.getValue();
+                if (v != null) result.put(e.getKey(), v);
+                unchanged &= v == e.getValue();
+            } else {
+                unchanged = false;
+            }
+        }
+        if (op == Operation.UNION) {
+            for (Map.Entry<K, V> e : right.entrySet()) {
+                if (!left.containsKey(e.getKey())) result.put(e.getKey(), e.getValue());
+            }
+        }
+        if (unchanged && result.size() == left.size()) {
+            out.node(flag, ln);
+        } else if (result.size() == 1) {
+            Map.Entry<K, V> e = result.entrySet().iterator().next();
+            out.entry(flag, e.getKey(), e.getValue());
+        } else if (result.size() > 1) {
+            out.node(flag, inode(new ListNode<>(result)));
+        }
+    }
+
+    private V resolve(V left, V right) {
+        return resolver == null ? left : resolver.apply(left, right);
+    }
+
+    private CompressedNode<K, V> singleton(K key, V value, int lev) {
+        long flag = 1L << branching.index(leftTrie.hash(key), lev);
+        return new CompressedNode<>(flag, 0, new Object[]{key, value}, gen);
+    }
+
+    private static boolean sameContent(CompressedNode<?, ?> a, CompressedNode<?, ?> b) {
+        if (a.dataMap != b.dataMap || a.nodeMap != b.nodeMap) return false;
+        for (int i = 0; i < a.content.length; i++) {
+            if (a.content[i] != b.content[i]) return false;
+        }
+        return true;
+    }
+
+    private IndirectionNode<K, V> inode(MainNode<K, V> main) {
+        IndirectionNode<K, V> in = new IndirectionNode<>(gen);
+        in.mainNode = main;
+        return in;
+    }
+
+    /**
+     * Collects the entries and indirection nodes of a compressed node in the order of their
+     * positions.
+     */
+    private static final class Builder<K, V> {
+        private final Object[] entries = new Object[128];
+        private final Object[] nodes = new Object[64];
+        private long dataMap;
+        private long nodeMap;
+        private int entryCount;
+        private int nodeCount;
+
+        void entry(long flag, K key, V value) {
+            dataMap |= flag;
+            entries[2 * entryCount] = key;
+            entries[2 * entryCount + 1] = value;
+            entryCount++;
+        }
+
+        void node(long flag, IndirectionNode<K, V> node) {
+            nodeMap |= flag;
+            nodes[nodeCount++] = node;
+        }
+
+        void addAll(Builder<K, V> other) {
+            System.arraycopy(other.entries, 0, entries, 2 * entryCount, 2 * other.entryCount);
+            System.arraycopy(other.nodes, 0, nodes, nodeCount, other.nodeCount);
+            dataMap |= other.dataMap;
+            nodeMap |= other.nodeMap;
+            entryCount += other.entryCount;
+            nodeCount += other.nodeCount;
+        }
+
+        void copy(CompressedNode<K, V> cn, long flag) {
+            if ((cn.dataMap & flag) != 0) {
+                int idx = cn.dataIndex(flag);
+                entry(flag, cn.keyAt(idx), cn.valueAt(idx));
+            } else {
+                node(flag, cn.nodeAt(cn.nodeIndex(flag)));
+            }
+        }
+
+        CompressedNode<K, V> build(Generation gen) {
+            Object[] content = new Object[2 * entryCount + nodeCount];
+            System.arraycopy(entries, 0, content, 0, 2 * entryCount);
+            for (int i = 0; i < nodeCount; i++) {
+                content[content.length - 1 - i] = nodes[i];
+            }
+            return new CompressedNode<>(dataMap, nodeMap, content, gen);
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package com.ctrie;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Plain-Java benchmarks for {@link ConcurrentTrie}, run with the scenario name as argument:
+ *
+ * <pre>
+ *     java com.ctrie.ConcurrentTrieBenchmark snapshot-latency
+ * </pre>
+ *
+ * <p>The numbers are indicative only. They include a short warm-up, but are no substitute for a
+ * JMH run on the target machine.</p>
+ */
+public class ConcurrentTrieBenchmark {
+
+    private static final int SIZE = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        String scenario = args.length > 0 ? args[0] : "all";
+        boolean all = scenario.equals("all");
+        if (all || scenario.equals("snapshot-latency")) snapshotLatency();
+        if (all || scenario.equals("transactions")) transactions();
+        if (all || scenario.equals("layout")) layout();
+        if (all || scenario.equals("misses")) misses();
+        if (all || scenario.equals("frozen")) frozen();
+        if (all || scenario.equals("mapped")) mapped();
+        if (all || scenario.equals("merge")) merge();
+        if (all || scenario.equals("purge")) purge();
+        if (all || scenario.equals("hot-keys")) hotKeys();
+        if (all || scenario.equals("counters")) counters();
+        if (all || scenario.equals("index")) index();
+    }
+
+    /**
+     * Measures the latency of single puts while another thread takes a read-only snapshot every
+     * 20ms, and reports the writes issued right after a snapshot separately from the others.
+     */
+    static void snapshotLatency() throws InterruptedException {
+        System.out.println("snapshot-latency: put latency (us) with a snapshot every 20ms, " + SIZE + " keys");
+        System.out.printf("%-12s %10s %10s %10s %10s %10s%n", "mode", "p50", "p99", "p99 after", "p99.9 after", "max after");
+        for (SnapshotRenewal mode : SnapshotRenewal.values()) {
+            for (int round = 0; round < 2; round++) {
+                ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>(mode);
+                for (int i = 0; i < SIZE; i++) {
+                    trie.put(i, i);
+                }
+                long[][] result = measureWritesAroundSnapshots(trie, 2_000);
+                if (round == 0) continue; // warm-up
+                long[] steady = result[0];
+                long[] after = result[1];
+                System.out.printf("%-12s %10.1f %10.1f %10.1f %10.1f %10.1f%n", mode,
+                        percentile(steady, 0.50) / 1e3, percentile(steady, 0.99) / 1e3,
+                        percentile(after, 0.99) / 1e3, percentile(after, 0.999) / 1e3,
+                        percentile(after, 1.0) / 1e3);
+            }
+        }
+    }
+
+    private static long[][] measureWritesAroundSnapshots(ConcurrentTrie<Integer, Integer> trie, long millis) throws InterruptedException {
+        final int afterWindow = 256;
+        int[] snapshots = new int[1];
+        Thread snapshotter = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                trie.readOnlySnapshot();
+                synchronized (snapshots) {
+                    snapshots[0]++;
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+
+        LongBuffer steady = new LongBuffer();
+        LongBuffer after = new LongBuffer();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long end = System.currentTimeMillis() + millis;
+        int seen = 0;
+        int remainingAfter = 0;
+        while (System.currentTimeMillis() < end) {
+            int current;
+            synchronized (snapshots) {
+                current = snapshots[0];
+            }
+            if (current != seen) {
+                seen = current;
+                remainingAfter = afterWindow;
+            }
+            int k = random.nextInt(SIZE);
+            long t0 = System.nanoTime();
+            trie.put(k, k);
+            long latency = System.nanoTime() - t0;
+            if (remainingAfter > 0) {
+                after.add(latency);
+                remainingAfter--;
+            } else {
+                steady.add(latency);
+            }
+        }
+        snapshotter.interrupt();
+        snapshotter.join();
+        return new long[][] { steady.sorted(), after.sorted() };
+    }
+
+    /**
+     * Moves one unit between two random accounts, either in a {@link TrieTransaction} or under a
+     * lock shared by all threads, and reports the throughput and the attempts per committed
+     * transaction as a measure of the conflict rate.
+     */
+    static void transactions() throws InterruptedException {
+        System.out.println("transactions: transfers/s between 1024 accounts, transaction vs. external lock");
+        System.out.printf("%-8s %14s %14s %18s%n", "threads", "transaction", "lock", "attempts/commit");
+        int accounts = 1024;
+        for (int threads : new int[] { 1, 2, 4, 8 }) {
+            ConcurrentTrie<Integer, Long> txTrie = new ConcurrentTrie<>();
+            ConcurrentTrie<Integer, Long> lockTrie = new ConcurrentTrie<>();
+            for (int i = 0; i < accounts; i++) {
+                txTrie.put(i, 1_000L);
+                lockTrie.put(i, 1_000L);
+            }
+            LongAdder attempts = new LongAdder();
+            long txOps = runFor(threads, 1_000, random -> {
+                int from = random.nextInt(accounts);
+                int to = random.nextInt(accounts);
+                txTrie.transact(tx -> {
+                    attempts.increment();
+                    tx.put(from, tx.get(from) - 1);
+                    return tx.put(to, tx.get(to) + 1);
+                });
+            });
+            ReentrantLock lock = new ReentrantLock();
+            long lockOps = runFor(threads, 1_000, random -> {
+                int from = random.nextInt(accounts);
+                int to = random.nextInt(accounts);
+                lock.lock();
+                try {
+                    lockTrie.put(from, lockTrie.get(from) - 1);
+                    lockTrie.put(to, lockTrie.get(to) + 1);
+                } finally {
+                    lock.unlock();
+                }
+            });
+            System.out.printf("%-8d %14d %14d %18.2f%n", threads, txOps, lockOps, attempts.sum() / (double) txOps);
+        }
+    }
+
+    /**
+     * Reports, for each branching factor, the estimated node bytes per entry, keys and values
+     * excluded, the single-thread throughput of lookups for present keys, and the throughput of
+     * updates, which copy a compressed node on every write.
+     */
+    static void layout() {
+        System.out.println("layout: node bytes/entry, lookups/s and updates/s, " + SIZE + " random keys");
+        System.out.printf("%-12s %14s %14s %14s%n", "fan-out", "bytes/entry", "lookups/s", "updates/s");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer[] keys = new Integer[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = random.nextInt();
+        }
+        long sink = 0;
+        for (BranchingFactor branching : BranchingFactor.values()) {
+            ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>(branching);
+            for (int i = 0; i < SIZE; i++) {
+                trie.put(keys[i], i);
+            }
+            SnapshotFootprint footprint = FootprintEstimator.estimate(trie.readOnlySnapshot(), trie);
+            long lookups = 0;
+            long updates = 0;
+            for (int round = 0; round < 5; round++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < 10_000_000; i++) {
+                    sink += trie.get(keys[random.nextInt(SIZE)]);
+                }
+                lookups = Math.max(lookups, (long) (10_000_000 / ((System.nanoTime() - t0) / 1e9)));
+                t0 = System.nanoTime();
+                for (int i = 0; i < 2_000_000; i++) {
+                    trie.put(keys[random.nextInt(SIZE)], i);
+                }
+                updates = Math.max(updates, (long) (2_000_000 / ((System.nanoTime() - t0) / 1e9)));
+            }
+            System.out.printf("%-12s %14.1f %14d %14d%n", branching, footprint.getTotalBytes() / (double) SIZE, lookups, updates);
+        }
+        if (sink == 42) System.out.println();
+    }
+
+    /**
+     * Compares lookups of present and absent keys, and runs the 80% miss mix of a negative
+     * cache through {@code get}, {@code getOrDefault} and {@code find}.
+     */
+    static void misses() {
+        System.out.println("misses: lookup cost (ns/op), " + SIZE + " keys");
+        System.out.printf("%-16s %10s%n", "lookup", "ns/op");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer[] present = new Integer[SIZE];
+        Integer[] absent = new Integer[SIZE];
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        for (int i = 0; i < SIZE; i++) {
+            present[i] = random.nextInt();
+            trie.put(present[i], i);
+        }
+        for (int i = 0; i < SIZE; i++) {
+            do {
+                absent[i] = random.nextInt();
+            } while (trie.containsKey(absent[i]));
+        }
+        Integer[] mixed = new Integer[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            mixed[i] = random.nextInt(5) == 0 ? present[i] : absent[i];
+        }
+        long sink = 0;
+        for (int round = 0; round < 3; round++) {
+            boolean report = round == 2;
+            sink += timeLookups("get hit", present, report, k -> trie.get(k));
+            sink += timeLookups("get miss", absent, report, k -> trie.get(k));
+            sink += timeLookups("get 80% miss", mixed, report, k -> trie.get(k));
+            sink += timeLookups("getOrDefault", mixed, report, k -> trie.getOrDefault(k, -1));
+            sink += timeLookups("find", mixed, report, k -> trie.find(k));
+        }
+        if (sink == 42) System.out.println();
+    }
+
+    private static long timeLookups(String name, Integer[] keys, boolean report, Function<Integer, Integer> lookup) {
+        long found = 0;
+        int ops = 10_000_000;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            if (lookup.apply(keys[i % keys.length]) != null) found++;
+        }
+        long elapsed = System.nanoTime() - t0;
+        if (report) System.out.printf("%-16s %10.1f%n", name, elapsed / (double) ops);
+        return found;
+    }
+
+    /**
+     * Compares lookups and footprint of a live trie, a read-only snapshot of it and the frozen
+     * trie compiled from that snapshot.
+     */
+    static void frozen() {
+        System.out.println("frozen: bytes/entry and lookups/s, " + SIZE + " random keys");
+        System.out.printf("%-12s %14s %14s%n", "map", "bytes/entry", "lookups/s");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer[] keys = new Integer[SIZE];
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = random.nextInt();
+            trie.put(keys[i], i);
+        }
+        ConcurrentTrie<Integer, Integer> snapshot = trie.readOnlySnapshot();
+        FrozenTrie<Integer, Integer> frozen = trie.freeze();
+        double trieBytes = FootprintEstimator.estimate(snapshot, trie).getTotalBytes() / (double) SIZE;
+        double frozenBytes = FootprintEstimator.estimate(frozen) / (double) SIZE;
+        long sink = 0;
+        long[] lookups = new long[3];
+        for (int round = 0; round < 5; round++) {
+            for (int m = 0; m < 3; m++) {
+                Map<Integer, Integer> map = m == 0 ? trie : m == 1 ? snapshot : frozen;
+                long t0 = System.nanoTime();
+                for (int i = 0; i < 10_000_000; i++) {
+                    sink += map.get(keys[random.nextInt(SIZE)]);
+                }
+                lookups[m] = Math.max(lookups[m], (long) (10_000_000 / ((System.nanoTime() - t0) / 1e9)));
+            }
+        }
+        System.out.printf("%-12s %14.1f %14d%n", "live", trieBytes, lookups[0]);
+        System.out.printf("%-12s %14.1f %14d%n", "snapshot", trieBytes, lookups[1]);
+        System.out.printf("%-12s %14.1f %14d%n", "frozen", frozenBytes, lookups[2]);
+        if (sink == 42) System.out.println();
+    }
+
+    /**
+     * Writes a trie to a file and measures the time to open it and the lookups served from the
+     * mapped file.
+     */
+    static void mapped() throws IOException {
+        System.out.println("mapped: open time and lookups/s from a mapped file, " + SIZE + " random keys");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Integer[] keys = new Integer[SIZE];
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = random.nextInt();
+            trie.put(keys[i], i);
+        }
+        Path file = Files.createTempFile("trie", ".bin");
+        try {
+            MappedTrie.write(trie, file, TrieCodec.ints(), TrieCodec.ints());
+            long t0 = System.nanoTime();
+            MappedTrie<Integer, Integer> mapped = MappedTrie.open(file, TrieCodec.ints(), TrieCodec.ints());
+            long openNanos = System.nanoTime() - t0;
+            long sink = 0;
+            long lookups = 0;
+            for (int round = 0; round < 5; round++) {
+                t0 = System.nanoTime();
+                for (int i = 0; i < 5_000_000; i++) {
+                    sink += mapped.get(keys[random.nextInt(SIZE)]);
+                }
+                lookups = Math.max(lookups, (long) (5_000_000 / ((System.nanoTime() - t0) / 1e9)));
+            }
+            System.out.printf("%-12s %14s %14s%n", "file bytes", "open (us)", "lookups/s");
+            System.out.printf("%-12d %14.1f %14d%n", Files.size(file), openNanos / 1e3, lookups);
+            if (sink == 42) System.out.println();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Combines two shards of random keys that overlap in 1% of their keys, once by inserting the
+     * entries of one shard into a snapshot of the other and once with a structural merge. The
+     * shards either mix keys of all hashes or are split by hash, as when shards are assigned
+     * by the hash of a key, in which case they share no position of the root.
+     */
+    static void merge() {
+        System.out.println("merge: time (ms) to combine two shards of " + SIZE / 2 + " random keys, 1% overlap");
+        System.out.printf("%-12s %10s %10s%n", "shards", "reinsert", "structural");
+        for (boolean byHash : new boolean[]{false, true}) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            ConcurrentTrie<Integer, Integer> a = new ConcurrentTrie<>();
+            ConcurrentTrie<Integer, Integer> b = new ConcurrentTrie<>();
+            while (a.summarize(TrieMonoid.count()) < SIZE / 2) {
+                int k = random.nextInt();
+                boolean toA = !byHash || (a.hash(k) & 16) == 0;
+                if (toA) {
+                    a.put(k, 1);
+                } else {
+                    b.put(k, 1);
+                }
+                if (!byHash) b.put(random.nextInt(100) == 0 ? k : random.nextInt(), 1);
+            }
+            long reinsert = Long.MAX_VALUE;
+            long structural = Long.MAX_VALUE;
+            long sink = 0;
+            for (int round = 0; round < 5; round++) {
+                long t0 = System.nanoTime();
+                ConcurrentTrie<Integer, Integer> c = a.snapshot();
+                for (Iterator<Map.Entry<Integer, Integer>> it = b.readOnlyIterator(); it.hasNext(); ) {
+                    Map.Entry<Integer, Integer> e = it.next();
+                    Integer old = c.putIfAbsent(e.getKey(), e.getValue());
+                    if (old != null) c.put(e.getKey(), old + e.getValue());
+                }
+                reinsert = Math.min(reinsert, System.nanoTime() - t0);
+                sink += c.find(0) == null ? 0 : 1;
+                t0 = System.nanoTime();
+                ConcurrentTrie<Integer, Integer> m = ConcurrentTrie.merge(a, b, Integer::sum);
+                structural = Math.min(structural, System.nanoTime() - t0);
+                sink += m.find(0) == null ? 0 : 1;
+            }
+            System.out.printf("%-12s %10.1f %10.1f%n", byHash ? "by hash" : "mixed", reinsert / 1e6, structural / 1e6);
+            if (sink == 42) System.out.println();
+        }
+    }
+
+    /**
+     * Removes the half of the entries belonging to one tenant, once key by key after a scan and
+     * once with {@code removeIf}.
+     */
+    static void purge() {
+        System.out.println("purge: time (ms) to remove " + SIZE / 2 + " of " + SIZE + " keys");
+        System.out.printf("%-12s %10s%n", "method", "ms");
+        long perKey = Long.MAX_VALUE;
+        long bulk = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+            for (int i = 0; i < SIZE; i++) {
+                trie.put(i, i % 2);
+            }
+            long t0 = System.nanoTime();
+            for (Iterator<Map.Entry<Integer, Integer>> it = trie.readOnlyIterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Integer> e = it.next();
+                if (e.getValue() == 1) trie.remove(e.getKey());
+            }
+            perKey = Math.min(perKey, System.nanoTime() - t0);
+
+            trie = new ConcurrentTrie<>();
+            for (int i = 0; i < SIZE; i++) {
+                trie.put(i, i % 2);
+            }
+            t0 = System.nanoTime();
+            trie.removeIf((k, v) -> v == 1);
+            bulk = Math.min(bulk, System.nanoTime() - t0);
+        }
+        System.out.printf("%-12s %10.1f%n", "per key", perKey / 1e6);
+        System.out.printf("%-12s %10.1f%n", "removeIf", bulk / 1e6);
+    }
+
+    /**
+     * Measures puts on keys drawn from a skewed distribution, where the first few keys take
+     * most of the writes, at rising skew.
+     */
+    static void hotKeys() throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int keys = 100_000;
+        System.out.println("hot-keys: puts per second on " + threads + " threads over " + keys + " keys");
+        System.out.printf("%-8s %14s%n", "skew", "ops/s");
+        for (double skew : new double[] {0.0, 0.8, 0.99, 1.2}) {
+            double[] cumulative = new double[keys];
+            double sum = 0;
+            for (int i = 0; i < keys; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+            double total = sum;
+            ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+            for (int i = 0; i < keys; i++) {
+                trie.put(i, 0);
+            }
+            long ops = runFor(threads, 2_000, random -> {
+                int idx = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+                int key = idx < 0 ? -idx - 1 : idx;
+                trie.put(Math.min(key, keys - 1), random.nextInt());
+            });
+            System.out.printf("%-8.2f %14d%n", skew, ops);
+        }
+    }
+
+    /** Measures increments of 1000 counters, with a replace loop on the trie and with a counter map. */
+    static void counters() throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int keys = 1000;
+        System.out.println("counters: increments per second on " + threads + " threads over " + keys + " keys");
+        System.out.printf("%-12s %14s%n", "method", "ops/s");
+        ConcurrentTrie<Integer, Long> trie = new ConcurrentTrie<>();
+        for (int i = 0; i < keys; i++) {
+            trie.put(i, 0L);
+        }
+        long replace = runFor(threads, 2_000, random -> {
+            int key = random.nextInt(keys);
+            Long old;
+            do {
+                old = trie.get(key);
+            } while (!trie.replace(key, old, old + 1));
+        });
+        TrieCounterMap<Integer> counters = new TrieCounterMap<>();
+        long cells = runFor(threads, 2_000, random -> counters.increment(random.nextInt(keys)));
+        System.out.printf("%-12s %14d%n", "replace", replace);
+        System.out.printf("%-12s %14d%n", "counter map", cells);
+    }
+
+    /** Finds the keys of one of 1000 attributes, once by scanning a snapshot and once through an index. */
+    static void index() {
+        int size = SIZE / 4;
+        System.out.println("index: time (us) to find the keys of one of 1000 attributes, " + size + " keys");
+        System.out.printf("%-12s %10s%n", "method", "us");
+        IndexedTrie<Integer, Integer, Integer> indexed = new IndexedTrie<>(v -> v % 1000);
+        for (int i = 0; i < size; i++) {
+            indexed.put(i, i);
+        }
+        long scan = Long.MAX_VALUE;
+        long query = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < 10; round++) {
+            int attr = round * 97;
+            long t0 = System.nanoTime();
+            for (Iterator<Map.Entry<Integer, Integer>> it = indexed.primary().readOnlyIterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Integer> e = it.next();
+                if (e.getValue() % 1000 == attr) sink++;
+            }
+            scan = Math.min(scan, System.nanoTime() - t0);
+            t0 = System.nanoTime();
+            sink += indexed.keysWith(attr).size();
+            query = Math.min(query, System.nanoTime() - t0);
+        }
+        System.out.printf("%-12s %10.1f%n", "scan", scan / 1e3);
+        System.out.printf("%-12s %10.1f%n", "index", query / 1e3);
+        if (sink == 42) System.out.println();
+    }
+
+    /** Runs the operation on the given number of threads for a while and returns the ops per second. */
+    private static long runFor(int threads, long millis, Consumer<ThreadLocalRandom> operation) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        long end = System.currentTimeMillis() + millis;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < end) {
+                    operation.accept(random);
+                    ops.increment();
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return ops.sum() * 1_000 / millis;
+    }
+
+    static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return Double.NaN;
+        int idx = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, idx)];
+    }
+
+    private static final class LongBuffer {
+        private long[] values = new long[1 << 16];
+        private int size;
+
+        void add(long v) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+
+        long[] sorted() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
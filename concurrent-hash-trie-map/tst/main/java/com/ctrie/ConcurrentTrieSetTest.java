@@ -0,0 +1,121 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for ConcurrentTrieSet.
+ */
+public class ConcurrentTrieSetTest {
+
+    private ConcurrentTrieSet<Integer> set;
+
+    @BeforeEach
+    public void setUp() {
+        set = new ConcurrentTrieSet<>();
+    }
+
+    @Test
+    public void testAddContainsRemove() {
+        assertTrue(set.add(1));
+        assertFalse(set.add(1));
+        assertTrue(set.add(2));
+        assertTrue(set.contains(1));
+        assertFalse(set.contains(3));
+
+        assertTrue(set.remove(1));
+        assertFalse(set.remove(1));
+        assertFalse(set.contains(1));
+        assertEquals(Set.of(2), new HashSet<>(set));
+    }
+
+    @Test
+    public void testSnapshotIsIsolated() {
+        for (int i = 0; i < 100; i++) set.add(i);
+        ConcurrentTrieSet<Integer> snapshot = set.readOnlySnapshot();
+        set.remove(5);
+        set.add(500);
+
+        assertTrue(snapshot.contains(5));
+        assertFalse(snapshot.contains(500));
+        assertEquals(100, snapshot.size());
+        assertEquals(100, set.size());
+    }
+
+    @Test
+    public void testSetAlgebra() {
+        Random random = new Random(42);
+        Set<Integer> left = new HashSet<>();
+        Set<Integer> right = new HashSet<>();
+        ConcurrentTrieSet<Integer> other = new ConcurrentTrieSet<>();
+        for (int i = 0; i < 5000; i++) {
+            int k = random.nextInt(8000);
+            set.add(k);
+            left.add(k);
+        }
+        for (int i = 0; i < 5000; i++) {
+            int k = random.nextInt(8000);
+            other.add(k);
+            right.add(k);
+        }
+
+        Set<Integer> union = new HashSet<>(left);
+        union.addAll(right);
+        Set<Integer> intersection = new HashSet<>(left);
+        intersection.retainAll(right);
+        Set<Integer> difference = new HashSet<>(left);
+        difference.removeAll(right);
+
+        assertEquals(union, new HashSet<>(set.union(other)));
+        assertEquals(intersection, new HashSet<>(set.intersection(other)));
+        assertEquals(difference, new HashSet<>(set.difference(other)));
+        assertEquals(left, new HashSet<>(set));
+        assertEquals(right, new HashSet<>(other));
+    }
+
+    @Test
+    public void testAlgebraOverSnapshotsAndCollisions() {
+        ConcurrentTrieSet<Colliding> colliding = new ConcurrentTrieSet<>();
+        for (int i = 0; i < 200; i++) colliding.add(new Colliding(i));
+        ConcurrentTrieSet<Colliding> before = colliding.snapshot();
+        colliding.remove(new Colliding(3));
+        colliding.add(new Colliding(1000));
+
+        ConcurrentTrieSet<Colliding> added = colliding.difference(before);
+        ConcurrentTrieSet<Colliding> removed = before.difference(colliding);
+        assertEquals(Set.of(new Colliding(1000)), new HashSet<>(added));
+        assertEquals(Set.of(new Colliding(3)), new HashSet<>(removed));
+        assertEquals(199, colliding.intersection(before).size());
+        assertEquals(201, colliding.union(before).size());
+
+        ConcurrentTrieSet<Colliding> union = colliding.union(before);
+        assertTrue(union.add(new Colliding(2000)));
+        assertTrue(union.remove(new Colliding(7)));
+        assertTrue(colliding.contains(new Colliding(7)));
+        assertTrue(before.contains(new Colliding(7)));
+    }
+
+    private static final class Colliding {
+        private final int id;
+
+        Colliding(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Colliding && ((Colliding) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return id % 16;
+        }
+    }
+}
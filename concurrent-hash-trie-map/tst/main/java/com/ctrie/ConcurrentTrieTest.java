@@ -1,10 +1,17 @@
 package com.ctrie;
 
+import com.ctrie.node.util.INodeUtil;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -33,9 +40,10 @@ public class ConcurrentTrieTest {
     }
 
     private void testNotPresent(Integer key) {
-        try {
-            trie.get(key);
-        } catch (NoSuchElementException ignored) {}
+        assertNull(trie.get(key));
+        assertNull(trie.find(key));
+        assertEquals("none", trie.getOrDefault(key, "none"));
+        assertThrows(NoSuchElementException.class, () -> trie.lookup(key));
     }
 
     @Test
@@ -88,6 +96,480 @@ public class ConcurrentTrieTest {
         }
     }
 
+    @Test
+    public void testCompactKeepsLiveEntries() {
+        // Each pair 2i, 2i + 1 shares a hash, so it sits in a list node at the bottom of a chain
+        // of single-child nodes. Removing the odd key leaves a tomb there that no cleanup reaches.
+        ConcurrentTrie<Long, String> trie = new ConcurrentTrie<>(SnapshotRenewal.FULL, ConcurrentTrie.DEFAULT_RENEWAL_DEPTH, BranchingFactor.FANOUT_32, k -> k / 2);
+        for (long k = 0; k < 200; k++) {
+            trie.put(k, "value" + k);
+        }
+        for (long k = 1; k < 200; k += 2) {
+            trie.remove(k);
+        }
+        int depth = depth(trie);
+
+        CompactionStats stats = trie.compact();
+        assertEquals(1, stats.getPasses());
+        assertTrue(stats.getTombsResurrected() > 0);
+        assertTrue(stats.getNodesContracted() > 0);
+        assertTrue(depth(trie) < depth);
+
+        for (long k = 0; k < 200; k++) {
+            assertEquals(k % 2 == 0, trie.containsKey(k));
+        }
+        assertEquals(100, toMap(trie).size());
+    }
+
+    /** Returns the level of the deepest indirection node, read off the indentation of {@code string()}. */
+    private static int depth(ConcurrentTrie<?, ?> trie) {
+        int depth = 0;
+        for (String line : trie.string().split("\n")) {
+            int indent = line.indexOf("INode");
+            if (indent >= 0) depth = Math.max(depth, indent);
+        }
+        return depth;
+    }
+
+    @Test
+    public void testSnapshotFootprintAndClose() {
+        for (int i = 0; i < 1000; i++) {
+            trie.put(i, "value" + i);
+        }
+
+        ConcurrentTrie<Integer, String> snapshot = trie.readOnlySnapshot();
+        assertEquals(1, trie.liveSnapshots().size());
+        SnapshotInfo<Integer, String> info = trie.liveSnapshots().get(0);
+        assertSame(snapshot, info.getSnapshot());
+        assertSame(snapshot.getGeneration(), info.getGeneration());
+
+        SnapshotFootprint before = info.footprint();
+        assertTrue(before.getSharedBytes() > before.getUniqueBytes());
+
+        for (int i = 0; i < 1000; i++) {
+            trie.put(i, "other" + i);
+        }
+        SnapshotFootprint after = info.footprint();
+        assertEquals(before.getTotalBytes(), after.getTotalBytes());
+        assertTrue(after.getUniqueBytes() > before.getUniqueBytes());
+
+        snapshot.close();
+        assertFalse(info.isLive());
+        assertTrue(trie.liveSnapshots().isEmpty());
+        assertThrows(IllegalStateException.class, () -> snapshot.get(1));
+    }
+
+    @Test
+    public void testTransactionCommitsAllWrites() {
+        trie.put(1, "one");
+
+        String moved = trie.transact(tx -> {
+            String value = tx.remove(1);
+            tx.put(2, value);
+            return value;
+        });
+
+        assertEquals("one", moved);
+        assertFalse(trie.containsKey(1));
+        assertEquals("one", trie.get(2));
+    }
+
+    @Test
+    public void testTransactionFailsAfterConcurrentWrite() {
+        trie.put(1, "one");
+
+        TrieTransaction<Integer, String> tx = trie.beginTransaction();
+        tx.put(2, "two");
+        assertEquals("two", tx.get(2));
+        trie.put(3, "three");
+
+        assertFalse(tx.commit());
+        assertFalse(trie.containsKey(2));
+        assertEquals("three", trie.get(3));
+        assertThrows(IllegalStateException.class, () -> tx.put(4, "four"));
+    }
+
+    @Test
+    public void testWideBranchingFactor() {
+        ConcurrentTrie<Integer, String> wide = new ConcurrentTrie<>(BranchingFactor.FANOUT_64);
+        for (int i = 0; i < 10000; i++) {
+            wide.put(i * 64, "v" + i);
+        }
+        ConcurrentTrie<Integer, String> snapshot = wide.readOnlySnapshot();
+        for (int i = 0; i < 10000; i += 2) {
+            assertEquals("v" + i, wide.remove(i * 64));
+        }
+
+        assertFalse(wide.containsKey(0));
+        assertEquals("v1", wide.get(64));
+        assertEquals("v0", snapshot.get(0));
+        int count = 0;
+        for (Iterator<Map.Entry<Integer, String>> it = snapshot.readOnlyIterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(10000, count);
+    }
+
+    @Test
+    public void testLongHashesSeparateCollidingKeys() {
+        // The hashCode of (i << 32 | i) is 0 for every i.
+        ConcurrentTrie<Long, Integer> standard = new ConcurrentTrie<>();
+        ConcurrentTrie<Long, Integer> wide = new ConcurrentTrie<>(HashStrategy.longs());
+        for (int i = 0; i < 1000; i++) {
+            long key = (long) i << 32 | i;
+            standard.put(key, i);
+            wide.put(key, i);
+        }
+        assertTrue(standard.string().contains("ListNode"));
+        assertFalse(wide.string().contains("ListNode"));
+
+        ConcurrentTrie<Long, Integer> snapshot = wide.readOnlySnapshot();
+        for (int i = 0; i < 1000; i += 2) {
+            assertEquals(Integer.valueOf(i), wide.remove((long) i << 32 | i));
+        }
+        assertFalse(wide.containsKey(0L));
+        assertEquals(Integer.valueOf(1), wide.get(1L << 32 | 1));
+        assertEquals(Integer.valueOf(2), snapshot.get(2L << 32 | 2));
+        int count = 0;
+        for (Iterator<Map.Entry<Long, Integer>> it = snapshot.readOnlyIterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(1000, count);
+    }
+
+    @Test
+    public void testReadOnlyLookupsSeeTheSnapshot() {
+        ConcurrentTrie<Long, Integer> live = new ConcurrentTrie<>();
+        for (int i = 0; i < 5000; i++) {
+            live.put((long) i, i);
+        }
+        for (int i = 1; i < 50; i++) {
+            live.put((long) i << 32 | i, -i);
+        }
+        ConcurrentTrie<Long, Integer> snapshot = live.readOnlySnapshot();
+        for (int i = 0; i < 5000; i += 3) {
+            live.remove((long) i);
+        }
+        for (int i = 1; i < 50; i += 2) {
+            live.put((long) i << 32 | i, 0);
+        }
+        live.put(-1L, -1);
+
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(Integer.valueOf(i), snapshot.get((long) i));
+            assertEquals(i % 3 == 0 ? null : Integer.valueOf(i), live.get((long) i));
+        }
+        for (int i = 1; i < 50; i++) {
+            assertEquals(Integer.valueOf(-i), snapshot.get((long) i << 32 | i));
+        }
+        assertNull(snapshot.get(-1L));
+        assertNull(snapshot.get(50L << 32 | 50));
+        assertFalse(snapshot.containsKey(5000L));
+        snapshot.close();
+        assertThrows(IllegalStateException.class, () -> snapshot.get(1L));
+    }
+
+    @Test
+    public void testSnapshotIsolationUnderEachRenewal() {
+        for (SnapshotRenewal renewal : SnapshotRenewal.values()) {
+            ConcurrentTrie<Integer, String> trie = new ConcurrentTrie<>(renewal);
+            for (int i = 0; i < 2000; i++) {
+                trie.put(i, "v" + i);
+            }
+            ConcurrentTrie<Integer, String> readOnly = trie.readOnlySnapshot();
+            ConcurrentTrie<Integer, String> writable = trie.snapshot();
+            // One write per path renews it; the siblings of each renewed node stay behind until
+            // another operation reaches them.
+            trie.put(7, "seven");
+            trie.remove(8);
+            trie.put(5000, "new");
+            writable.put(8, "eight");
+            for (int i = 0; i < 2000; i += 3) {
+                trie.put(i, "w" + i);
+            }
+
+            for (int i = 0; i < 2000; i++) {
+                assertEquals("v" + i, readOnly.get(i), renewal + " snapshot of " + i);
+            }
+            assertNull(readOnly.get(5000));
+            assertEquals("v7", writable.get(7));
+            assertEquals("eight", writable.get(8));
+            assertNull(writable.get(5000));
+            assertNull(trie.get(8));
+            assertEquals("new", trie.get(5000));
+            for (int i = 0; i < 2000; i++) {
+                if (i == 8) continue;
+                String expected = i % 3 == 0 ? "w" + i : i == 7 ? "seven" : "v" + i;
+                assertEquals(expected, trie.get(i), renewal + " live value of " + i);
+            }
+            assertEquals(2000, toMap(trie).size());
+            assertEquals(2000, toMap(readOnly).size());
+            assertEquals(2000, toMap(writable).size());
+        }
+    }
+
+    @Test
+    public void testIteratorsShareSnapshot() {
+        trie.put(1, "one");
+        ConcurrentTrie<Integer, String> first = trie.sharedSnapshot();
+        trie.get(1);
+        trie.readOnlyIterator();
+        trie.iterator();
+        assertSame(first, trie.sharedSnapshot());
+        assertEquals(1, trie.liveSnapshots().size());
+
+        trie.put(2, "two");
+        ConcurrentTrie<Integer, String> second = trie.sharedSnapshot();
+        assertNotSame(first, second);
+        assertEquals("two", second.get(2));
+
+        trie.setSnapshotStaleness(Duration.ofHours(1));
+        trie.put(3, "three");
+        assertSame(second, trie.sharedSnapshot());
+        assertNull(trie.sharedSnapshot().get(3));
+        assertEquals("three", trie.get(3));
+    }
+
+    @Test
+    public void testSharedSnapshotSurvivesRenewalButNotWrites() {
+        ConcurrentTrie<Integer, String> trie = new ConcurrentTrie<>();
+        for (int i = 0; i < 1000; i++) {
+            trie.put(i, "v" + i);
+        }
+        ConcurrentTrie<Integer, String> first = trie.sharedSnapshot();
+        // Lookups below the root renew the nodes on their paths, which hold the same entries.
+        for (int i = 0; i < 1000; i += 100) {
+            assertEquals("v" + i, trie.get(i));
+        }
+        assertSame(first, trie.sharedSnapshot());
+
+        trie.put(500, "changed");
+        ConcurrentTrie<Integer, String> second = trie.sharedSnapshot();
+        assertNotSame(first, second);
+        assertEquals("changed", second.get(500));
+        trie.remove(999);
+        assertNull(trie.sharedSnapshot().get(999));
+        trie.remove(999);
+        trie.putIfAbsent(1, "other");
+        assertSame(trie.sharedSnapshot(), trie.sharedSnapshot());
+    }
+
+    @Test
+    public void testContentDigestAndDivergentKeys() {
+        ConcurrentTrie<Integer, String> replica = new ConcurrentTrie<>();
+        for (int i = 0; i < 5000; i++) {
+            trie.put(i, "v" + i);
+            replica.put(4999 - i, "v" + (4999 - i));
+        }
+        for (int i = 5000; i < 6000; i++) {
+            replica.put(i, "extra");
+            replica.remove(i);
+        }
+        assertTrue(trie.contentEquals(replica));
+        assertTrue(trie.divergentKeys(replica).isEmpty());
+
+        replica.put(17, "changed");
+        replica.remove(300);
+        replica.put(7000, "added");
+        assertFalse(trie.contentEquals(replica));
+        assertEquals(Set.of(17, 300, 7000), trie.divergentKeys(replica));
+        assertEquals(Set.of(17, 300, 7000), replica.divergentKeys(trie));
+
+        trie.put(17, "changed");
+        trie.remove(300);
+        trie.put(7000, "added");
+        assertEquals(trie.contentDigest(), replica.contentDigest());
+    }
+
+    @Test
+    public void testContentEqualsAcrossHashStrategies() {
+        ConcurrentTrie<Integer, String> other = new ConcurrentTrie<>(SnapshotRenewal.FULL, ConcurrentTrie.DEFAULT_RENEWAL_DEPTH, BranchingFactor.FANOUT_64, key -> key * 31L);
+        for (int i = 0; i < 1000; i++) {
+            trie.put(i, "v" + i);
+            other.put(i, "v" + i);
+        }
+        assertTrue(trie.contentEquals(other));
+        assertTrue(other.contentEquals(trie));
+        assertThrows(IllegalArgumentException.class, () -> trie.divergentKeys(other));
+
+        other.put(1000, "extra");
+        assertFalse(trie.contentEquals(other));
+        other.remove(1000);
+        other.put(5, "changed");
+        assertFalse(other.contentEquals(trie));
+    }
+
+    @Test
+    public void testMergeResolvesOverlappingKeys() {
+        ConcurrentTrie<Integer, Integer> a = new ConcurrentTrie<>();
+        ConcurrentTrie<Integer, Integer> b = new ConcurrentTrie<>();
+        for (int i = 0; i < 5000; i++) {
+            a.put(i, 1);
+            b.put(i + 2500, 2);
+        }
+        ConcurrentTrie<Integer, Integer> merged = ConcurrentTrie.merge(a, b, Integer::sum);
+        for (int i = 0; i < 7500; i++) {
+            assertEquals(Integer.valueOf(i < 2500 ? 1 : i < 5000 ? 3 : 2), merged.get(i), "key " + i);
+        }
+        assertEquals(Long.valueOf(7500), merged.summarize(TrieMonoid.count()));
+        assertEquals(Integer.valueOf(1), a.get(4999));
+        assertNull(a.get(5000));
+
+        merged.put(-1, -1);
+        assertNull(b.get(-1));
+        ConcurrentTrie<Integer, Integer> doubled = ConcurrentTrie.merge(b, b.readOnlySnapshot(), Integer::sum);
+        assertEquals(Integer.valueOf(4), doubled.get(2500));
+        ConcurrentTrie<Integer, Integer> disjoint = ConcurrentTrie.merge(a, b, (x, y) -> null);
+        assertEquals(Long.valueOf(5000), disjoint.summarize(TrieMonoid.count()));
+        assertNull(disjoint.get(2500));
+        assertEquals(Integer.valueOf(1), disjoint.get(2499));
+        assertEquals(Integer.valueOf(2), disjoint.get(5000));
+    }
+
+    @Test
+    public void testWriteCombinerMatchesDirectInserts() {
+        ConcurrentTrie<String, Integer> trie = new ConcurrentTrie<>();
+        WriteCombiner<String, Integer> combiner = new WriteCombiner<>(trie);
+        long hc = trie.hash("k");
+        assertEquals(Optional.empty(), combiner.insert("k", hc, 1, INodeUtil.KEY_PRESENT));
+        assertNull(trie.get("k"));
+        assertEquals(Optional.empty(), combiner.insert("k", hc, 1, INodeUtil.KEY_ABSENT));
+        assertEquals(Optional.of(1), combiner.insert("k", hc, 2, INodeUtil.KEY_ABSENT));
+        assertEquals(Optional.of(1), combiner.insert("k", hc, 3, null));
+        assertEquals(Optional.empty(), combiner.insert("k", hc, 4, 1));
+        assertEquals(Optional.of(3), combiner.insert("k", hc, 5, 3));
+        assertEquals(Optional.of(5), combiner.insert("k", hc, 6, INodeUtil.KEY_PRESENT));
+        assertEquals(Integer.valueOf(6), trie.get("k"));
+        assertEquals(Optional.empty(), combiner.insert("other", trie.hash("other"), 7, null));
+        assertEquals(Integer.valueOf(7), trie.get("other"));
+    }
+
+    @Test
+    public void testRemoveIfPrunesMatchingEntries() {
+        ConcurrentTrie<Integer, Integer> numbers = new ConcurrentTrie<>();
+        for (int i = 0; i < 100000; i++) {
+            numbers.put(i, i % 10);
+        }
+        ConcurrentTrie<Integer, Integer> before = numbers.readOnlySnapshot();
+        assertEquals(90000, numbers.removeIf((k, v) -> v != 3));
+        assertEquals(0, numbers.removeIf((k, v) -> v != 3));
+        assertEquals(Long.valueOf(10000), numbers.summarize(TrieMonoid.count()));
+        assertEquals(Integer.valueOf(3), numbers.get(13));
+        assertNull(numbers.get(14));
+        assertEquals(Integer.valueOf(4), before.get(14));
+        assertEquals(Long.valueOf(100000), before.summarize(TrieMonoid.count()));
+
+        assertEquals(9999, numbers.removeIf((k, v) -> k != 99993));
+        assertEquals(Integer.valueOf(3), numbers.get(99993));
+        assertEquals(1, numbers.removeIf((k, v) -> true));
+        assertTrue(numbers.isEmpty());
+        numbers.put(1, 1);
+        assertEquals(Integer.valueOf(1), numbers.get(1));
+
+        // Keys colliding in all hash bits share list nodes.
+        ConcurrentTrie<Integer, Integer> colliding = new ConcurrentTrie<>(k -> k % 7);
+        for (int i = 0; i < 700; i++) {
+            colliding.put(i, i);
+        }
+        assertEquals(685, colliding.removeIf((k, v) -> v % 7 != 0 || v >= 100));
+        assertEquals(Long.valueOf(15), colliding.summarize(TrieMonoid.count()));
+        assertEquals(Integer.valueOf(7), colliding.get(7));
+        assertNull(colliding.get(8));
+        assertEquals(15, colliding.removeIf((k, v) -> true));
+        assertNull(colliding.get(7));
+    }
+
+    @Test
+    public void testRemoveIfEmptyingAListNodeKeepsSnapshotsValid() {
+        // A and B collide in a list node, whose parent at level 60 holds D. The snapshots are
+        // taken while the parent is pruned, after the list node was.
+        HashStrategy<String> hashing = key -> key.equals("D") ? 1L << 60 : key.equals("A") || key.equals("B") ? 0 : key.hashCode();
+        ConcurrentTrie<String, Integer> trie = new ConcurrentTrie<>(SnapshotRenewal.FULL, ConcurrentTrie.DEFAULT_RENEWAL_DEPTH, BranchingFactor.FANOUT_32, hashing);
+        trie.put("A", 1);
+        trie.put("B", 2);
+        trie.put("D", 4);
+        ConcurrentTrie<String, Integer>[] snapshots = new ConcurrentTrie[2];
+        assertEquals(2, trie.removeIf((k, v) -> {
+            if (k.equals("D") && snapshots[0] == null) {
+                snapshots[0] = trie.readOnlySnapshot();
+                snapshots[1] = trie.snapshot();
+            }
+            return !k.equals("D");
+        }));
+        assertEquals(Map.of("D", 4), toMap(trie));
+
+        ConcurrentTrie<String, Integer> readOnly = snapshots[0];
+        Map<String, Integer> seen = toMap(readOnly);
+        assertTrue(seen.containsKey("D"));
+        assertEquals(seen, toMap(ConcurrentTrie.merge(readOnly, trie, (a, b) -> a)));
+        ConcurrentTrie<String, Integer> writable = snapshots[1];
+        writable.put("A", 10);
+        writable.put("C", 3);
+        Map<String, Integer> written = toMap(writable);
+        assertEquals(Integer.valueOf(10), written.get("A"));
+        assertEquals(Integer.valueOf(3), written.get("C"));
+        assertEquals(Integer.valueOf(4), written.get("D"));
+    }
+
+    @Test
+    public void testRemoveIfKeepsInsertIntoEmptiedNode() {
+        // 0, 32 and 64 share a node below slot 0 of the root, and 1 sits in the root. The
+        // predicate inserts 96 into that node while the root is pruned, after the node was.
+        ConcurrentTrie<Long, String> trie = new ConcurrentTrie<>(SnapshotRenewal.FULL, ConcurrentTrie.DEFAULT_RENEWAL_DEPTH, BranchingFactor.FANOUT_32, k -> k);
+        for (long k : new long[] {0, 32, 64, 1}) {
+            trie.put(k, "v" + k);
+        }
+        boolean[] inserted = new boolean[1];
+        long removed = trie.removeIf((k, v) -> {
+            if (k == 1 && !inserted[0]) {
+                inserted[0] = true;
+                trie.put(96L, "v96");
+                assertTrue(trie.containsKey(96L));
+            }
+            return k == 0 || k == 32 || k == 64;
+        });
+        assertTrue(inserted[0]);
+        assertEquals(3, removed);
+        assertEquals(Map.of(1L, "v1", 96L, "v96"), toMap(trie));
+    }
+
+    private static <K, V> Map<K, V> toMap(ConcurrentTrie<K, V> trie) {
+        Map<K, V> map = new java.util.HashMap<>();
+        for (Iterator<Map.Entry<K, V>> it = trie.readOnlyIterator(); it.hasNext(); ) {
+            Map.Entry<K, V> e = it.next();
+            map.put(e.getKey(), e.getValue());
+        }
+        return map;
+    }
+
+    @Test
+    public void testSummariesReuseUnchangedSubtrees() {
+        ConcurrentTrie<Integer, Integer> numbers = new ConcurrentTrie<>();
+        assertEquals(Long.valueOf(0), numbers.summarize(TrieMonoid.count()));
+        assertNull(numbers.summarize(TrieMonoid.<Integer>max()));
+        for (int i = 1; i <= 10000; i++) {
+            numbers.put(i, i);
+        }
+        LongAdder lifted = new LongAdder();
+        TrieMonoid<Integer, Long> sum = TrieMonoid.longSum(v -> {
+            lifted.increment();
+            return v;
+        });
+        assertEquals(Long.valueOf(50005000), numbers.summarize(sum));
+        assertEquals(10000, lifted.sum());
+        assertEquals(Long.valueOf(10000), numbers.summarize(TrieMonoid.count()));
+        assertEquals(Integer.valueOf(1), numbers.summarize(TrieMonoid.<Integer>min()));
+        assertEquals(Integer.valueOf(10000), numbers.summarize(TrieMonoid.<Integer>max()));
+
+        numbers.put(5, 20000);
+        numbers.remove(10000);
+        lifted.reset();
+        assertEquals(Long.valueOf(50005000 - 5 + 20000 - 10000), numbers.summarize(sum));
+        assertTrue(lifted.sum() < 200, "re-summarized " + lifted.sum() + " values");
+        assertEquals(Integer.valueOf(20000), numbers.summarize(TrieMonoid.<Integer>max()));
+        assertEquals(Long.valueOf(9999), numbers.summarize(TrieMonoid.count()));
+    }
+
     @Test
     public void testComplexOperations() {
         trie.put(1, "one");
@@ -0,0 +1,74 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for FrozenTrie.
+ */
+public class FrozenTrieTest {
+
+    @Test
+    public void testFreezeMatchesSnapshot() {
+        ConcurrentTrie<Integer, String> trie = new ConcurrentTrie<>();
+        Map<Integer, String> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            trie.put(i * 7, "v" + i);
+            expected.put(i * 7, "v" + i);
+        }
+        for (int i = 0; i < 20000; i += 3) {
+            trie.remove(i * 7);
+            expected.remove(i * 7);
+        }
+
+        FrozenTrie<Integer, String> frozen = trie.freeze();
+        trie.put(1, "later");
+
+        assertEquals(expected.size(), frozen.size());
+        assertEquals(expected, new HashMap<>(frozen));
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(expected.get(i * 7), frozen.get(i * 7));
+        }
+        assertNull(frozen.get(1));
+        assertEquals("none", frozen.getOrDefault(0, "none"));
+        assertTrue(trie.liveSnapshots().isEmpty());
+        assertThrows(UnsupportedOperationException.class, () -> frozen.put(1, "x"));
+    }
+
+    @Test
+    public void testFreezeWithCollidingHashes() {
+        // Every key hashes to the same bucket, which becomes a list node at the last level.
+        ConcurrentTrie<String, Integer> trie = new ConcurrentTrie<>(k -> k.length() % 2);
+        for (int i = 0; i < 100; i++) {
+            trie.put("key" + i, i);
+        }
+        trie.remove("key0");
+
+        FrozenTrie<String, Integer> frozen = trie.freeze();
+        assertEquals(99, frozen.size());
+        assertNull(frozen.get("key0"));
+        for (int i = 1; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), frozen.get("key" + i));
+        }
+        assertNull(frozen.get("missing"));
+    }
+
+    @Test
+    public void testFreezeEmptyAndWide() {
+        assertTrue(new ConcurrentTrie<Integer, Integer>().freeze().isEmpty());
+
+        ConcurrentTrie<Long, Long> wide = new ConcurrentTrie<>(SnapshotRenewal.FULL, ConcurrentTrie.DEFAULT_RENEWAL_DEPTH, BranchingFactor.FANOUT_64, HashStrategy.longs());
+        for (long i = 0; i < 5000; i++) {
+            wide.put(i << 32 | i, i);
+        }
+        FrozenTrie<Long, Long> frozen = wide.readOnlySnapshot().freeze();
+        assertEquals(5000, frozen.size());
+        for (long i = 0; i < 5000; i++) {
+            assertEquals(Long.valueOf(i), frozen.get(i << 32 | i));
+        }
+    }
+}
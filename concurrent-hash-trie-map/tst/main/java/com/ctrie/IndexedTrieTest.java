@@ -0,0 +1,124 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for IndexedTrie.
+ */
+public class IndexedTrieTest {
+
+    @Test
+    public void testQueriesFollowWrites() {
+        // Index users by the first letter of their name.
+        IndexedTrie<Integer, String, Character> users = new IndexedTrie<>(name -> name.isEmpty() ? null : name.charAt(0));
+        users.put(1, "alice");
+        users.put(2, "adam");
+        users.put(3, "bob");
+        users.put(4, "");
+        assertEquals(Set.of(1, 2), users.keysWith('a'));
+        assertEquals(Set.of(3), users.keysWith('b'));
+        assertTrue(users.keysWith('z').isEmpty());
+
+        users.put(2, "beth");
+        assertEquals("alice", users.putIfAbsent(1, "carol"));
+        assertNull(users.replace(9, "zed"));
+        assertTrue(users.replace(3, "bob", "brian"));
+        assertFalse(users.replace(3, "bob", "carl"));
+        assertEquals(Set.of(1), users.keysWith('a'));
+        assertEquals(Map.of(2, "beth", 3, "brian"), users.entriesWith('b'));
+
+        assertEquals("alice", users.remove(1));
+        assertFalse(users.remove(3, "bob"));
+        assertTrue(users.remove(2, "beth"));
+        assertTrue(users.keysWith('a').isEmpty());
+        assertEquals(Set.of(3), users.keysWith('b'));
+        users.put(4, "anna");
+        assertEquals(Set.of(4), users.keysWith('a'));
+    }
+
+    @Test
+    public void testManyAttributesShareSubtrees() {
+        IndexedTrie<Integer, Integer, Integer> numbers = new IndexedTrie<>(n -> n % 1000);
+        for (int i = 0; i < 100000; i++) {
+            numbers.put(i, i);
+        }
+        for (int r = 0; r < 1000; r += 37) {
+            Set<Integer> expected = new HashSet<>();
+            for (int i = r; i < 100000; i += 1000) {
+                expected.add(i);
+            }
+            assertEquals(expected, numbers.keysWith(r));
+        }
+        assertTrue(numbers.keysWith(1000).isEmpty());
+    }
+
+    @Test
+    public void testSnapshotsMatchTheirIndex() throws Exception {
+        IndexedTrie<Integer, Integer, Integer> trie = new IndexedTrie<>(v -> v % 8);
+        int keys = 2000;
+        for (int k = 0; k < keys; k++) {
+            trie.put(k, k);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            writers.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 50000; i++) {
+                    int k = random.nextInt(keys);
+                    if (random.nextInt(10) == 0) trie.remove(k);
+                    else trie.put(k, random.nextInt(1000));
+                }
+            }));
+        }
+        Future<Integer> checker = pool.submit(() -> {
+            int checked = 0;
+            while (running.get()) {
+                try (IndexedTrie<Integer, Integer, Integer> snapshot = trie.snapshot()) {
+                    int indexed = 0;
+                    for (int attr = 0; attr < 8; attr++) {
+                        for (Integer k : snapshot.keysWith(attr)) {
+                            Integer v = snapshot.get(k);
+                            assertTrue(v != null && v % 8 == attr, "key " + k + " indexed under " + attr + " holds " + v);
+                            indexed++;
+                        }
+                    }
+                    int size = 0;
+                    for (Iterator<Map.Entry<Integer, Integer>> it = snapshot.primary().readOnlyIterator(); it.hasNext(); it.next()) {
+                        size++;
+                    }
+                    assertEquals(size, indexed);
+                }
+                checked++;
+            }
+            return checked;
+        });
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        running.set(false);
+        assertTrue(checker.get() > 0);
+        pool.shutdown();
+
+        for (int k = 0; k < keys; k++) {
+            Integer v = trie.get(k);
+            if (v != null) assertTrue(trie.keysWith(v % 8).contains(k));
+        }
+        assertThrows(IllegalStateException.class, () -> trie.snapshot().put(1, 1));
+    }
+}
@@ -0,0 +1,73 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for MappedTrie.
+ */
+public class MappedTrieTest {
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        ConcurrentTrie<String, Long> trie = new ConcurrentTrie<>();
+        Map<String, Long> expected = new HashMap<>();
+        for (long i = 0; i < 20000; i++) {
+            trie.put("key" + i, i);
+            expected.put("key" + i, i);
+        }
+        trie.remove("key7");
+        expected.remove("key7");
+
+        Path file = Files.createTempFile("trie", ".bin");
+        try {
+            MappedTrie.write(trie, file, TrieCodec.utf8(), TrieCodec.longs());
+            try (MappedTrie<String, Long> mapped = MappedTrie.open(file, TrieCodec.utf8(), TrieCodec.longs())) {
+                assertEquals(expected.size(), mapped.size());
+                assertEquals(expected.size(), mapped.mappingCount());
+                for (long i = 0; i < 20000; i++) {
+                    assertEquals(expected.get("key" + i), mapped.get("key" + i));
+                }
+                assertNull(mapped.get("missing"));
+                assertEquals(Long.valueOf(-1), mapped.getOrDefault("key7", -1L));
+                assertEquals(expected, new HashMap<>(mapped));
+                assertThrows(UnsupportedOperationException.class, () -> mapped.put("x", 1L));
+                mapped.close();
+                assertThrows(IllegalStateException.class, () -> mapped.get("key1"));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testCollisionsAcrossChunks() throws IOException {
+        // Map the file in 64-byte chunks, so that most nodes and entries span two chunks.
+        HashStrategy<String> weak = k -> k.length();
+        ConcurrentTrie<String, String> trie = new ConcurrentTrie<>(weak);
+        for (int i = 0; i < 500; i++) {
+            trie.put("k" + i, i % 2 == 0 ? "" : "value" + i);
+        }
+
+        Path file = Files.createTempFile("trie", ".bin");
+        try {
+            MappedTrie.write(trie, file, TrieCodec.utf8(), TrieCodec.utf8());
+            MappedTrie<String, String> mapped = MappedTrie.open(file, TrieCodec.utf8(), TrieCodec.utf8(), weak, 6);
+            assertEquals(500, mapped.size());
+            for (int i = 0; i < 500; i++) {
+                assertEquals(i % 2 == 0 ? "" : "value" + i, mapped.get("k" + i));
+            }
+            assertNull(mapped.get("k500"));
+            assertThrows(IllegalArgumentException.class, () -> MappedTrie.open(file, TrieCodec.utf8(), TrieCodec.utf8()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
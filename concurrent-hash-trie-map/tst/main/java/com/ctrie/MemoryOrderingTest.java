@@ -0,0 +1,148 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Litmus tests for the memory ordering of the trie, in the manner of jcstress: each test races a
+ * few actors many times and checks that no forbidden outcome shows up. They guard the acquire
+ * and release accesses on the lookup path and the volatile handshake between GCAS and RDCSS.
+ */
+public class MemoryOrderingTest {
+
+    /** A value with plain fields, so that only a proper publication shows them initialized. */
+    private static final class Payload {
+        int a;
+        int b;
+
+        Payload(int v) {
+            a = v;
+            b = v;
+        }
+    }
+
+    @Test
+    public void testLookupsSeeInitializedValues() throws Exception {
+        ConcurrentTrie<Integer, Payload> trie = new ConcurrentTrie<>();
+        int rounds = 20000;
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        Future<?> writer = pool.submit(() -> {
+            for (int i = 1; i <= rounds; i++) {
+                trie.put(i % 64, new Payload(i));
+            }
+        });
+        Future<?> reader = pool.submit(() -> {
+            while (!writer.isDone()) {
+                for (int k = 0; k < 64; k++) {
+                    Payload p = trie.get(k);
+                    if (p != null) {
+                        assertTrue(p.a != 0 && p.a == p.b, "saw a payload before its fields: " + p.a + ", " + p.b);
+                    }
+                }
+            }
+        });
+        writer.get();
+        reader.get();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testLookupsRespectWriteOrder() throws Exception {
+        // Message passing: the writer updates x before y, so a reader that sees y = i must then
+        // see x >= i, even when the two keys live in different nodes.
+        ConcurrentTrie<String, Integer> trie = new ConcurrentTrie<>();
+        trie.put("x", 0);
+        trie.put("y", 0);
+        for (int i = 0; i < 1000; i++) {
+            trie.put("filler-" + i, i);
+        }
+        int rounds = 50000;
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        Future<?> writer = pool.submit(() -> {
+            for (int i = 1; i <= rounds; i++) {
+                trie.put("x", i);
+                trie.put("y", i);
+                if (i % 1000 == 0) trie.readOnlySnapshot();
+            }
+        });
+        List<Future<?>> readers = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            readers.add(pool.submit(() -> {
+                while (!writer.isDone()) {
+                    int y = trie.get("y");
+                    int x = trie.get("x");
+                    assertTrue(x >= y, "saw y = " + y + " but x = " + x);
+                }
+            }));
+        }
+        writer.get();
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSnapshotsLoseNoWrites() throws Exception {
+        // A write that commits while a snapshot switches the root must end up either in both the
+        // snapshot and the trie, or in the trie alone; and snapshots taken one after another
+        // must see growing sets of keys.
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        int writers = 3;
+        int perWriter = 20000;
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(writers + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int base = w * perWriter;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < perWriter; i++) {
+                    trie.put(base + i, i);
+                }
+            }));
+        }
+        Future<Integer> snapshots = pool.submit(() -> {
+            Set<Integer> previous = new HashSet<>();
+            int taken = 0;
+            while (writing.get()) {
+                try (ConcurrentTrie<Integer, Integer> snapshot = trie.readOnlySnapshot()) {
+                    Set<Integer> keys = keys(snapshot);
+                    assertTrue(keys.containsAll(previous), "a later snapshot lost keys of an earlier one");
+                    previous = keys;
+                }
+                taken++;
+            }
+            return taken;
+        });
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        writing.set(false);
+        assertTrue(snapshots.get() > 0);
+        pool.shutdown();
+        assertEquals(writers * perWriter, keys(trie).size());
+        for (int k = 0; k < writers * perWriter; k++) {
+            assertEquals(Integer.valueOf(k % perWriter), trie.get(k));
+        }
+    }
+
+    private static Set<Integer> keys(ConcurrentTrie<Integer, Integer> trie) {
+        Set<Integer> keys = new HashSet<>();
+        for (Iterator<Map.Entry<Integer, Integer>> it = trie.readOnlyIterator(); it.hasNext(); ) {
+            keys.add(it.next().getKey());
+        }
+        return keys;
+    }
+}
@@ -8,11 +8,11 @@ import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MultithreadingTests {
 
@@ -120,9 +120,7 @@ public class MultithreadingTests {
 
         for (int i = 0; i < numThreads; i++) {
             for (int j = 0; j < numOperationsPerThread; j++) {
-                try {
-                    trie.get("key-" + i + "-" + j);
-                } catch (NoSuchElementException ignored) {}
+                trie.get("key-" + i + "-" + j);
             }
         }
     }
@@ -210,4 +208,119 @@ public class MultithreadingTests {
 
         executorService.shutdown();
     }
+
+    @Test
+    void testRemoveIfDuringWrites() throws InterruptedException, ExecutionException {
+        int numThreads = 4;
+        int numOperationsPerThread = 5000;
+        for (int j = 0; j < 50000; j++) {
+            trie.put("purge-" + j, -1);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            final int threadId = i;
+            futures.add(executorService.submit(() -> {
+                for (int j = 0; j < numOperationsPerThread; j++) {
+                    trie.put("key-" + threadId + "-" + j, threadId * 10000 + j);
+                    if (j % 100 == 0) trie.readOnlySnapshot();
+                }
+            }));
+        }
+        Future<Long> purge = executorService.submit(() -> trie.removeIf((k, v) -> v < 0));
+
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        assertEquals(Long.valueOf(50000), purge.get());
+        executorService.shutdown();
+
+        for (int j = 0; j < 50000; j++) {
+            assertTrue(trie.find("purge-" + j) == null);
+        }
+        for (int i = 0; i < numThreads; i++) {
+            for (int j = 0; j < numOperationsPerThread; j++) {
+                assertEquals(Integer.valueOf(i * 10000 + j), trie.get("key-" + i + "-" + j));
+            }
+        }
+    }
+
+    @Test
+    void testHotKeyCountersUnderSnapshots() throws InterruptedException, ExecutionException {
+        int numThreads = 8;
+        int numOperationsPerThread = 5000;
+        String[] hot = {"hot-0", "hot-1", "hot-2", "hot-3"};
+        for (String key : hot) {
+            trie.put(key, 0);
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            final int threadId = i;
+            futures.add(executorService.submit(() -> {
+                for (int j = 0; j < numOperationsPerThread; j++) {
+                    String key = hot[(threadId + j) % hot.length];
+                    Integer old;
+                    do {
+                        old = trie.get(key);
+                    } while (!trie.replace(key, old, old + 1));
+                    // Snapshots fail the writes in flight, which sends them to the combiners.
+                    if (j % 500 == 0) trie.readOnlySnapshot();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+
+        int total = 0;
+        for (String key : hot) {
+            total += trie.get(key);
+        }
+        assertEquals(numThreads * numOperationsPerThread, total);
+    }
+
+    @Test
+    void testNoPutLostToConcurrentSnapshots() throws InterruptedException, ExecutionException {
+        // A writer whose renewal of a node loses a race with another writer must start over
+        // rather than report its insert as done.
+        int numThreads = 4;
+        int numInsertionsPerThread = 20000;
+        for (SnapshotRenewal renewal : SnapshotRenewal.values()) {
+            ConcurrentTrie<String, Integer> trie = new ConcurrentTrie<>(renewal);
+            ExecutorService executorService = Executors.newFixedThreadPool(numThreads + 1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                final int threadId = i;
+                futures.add(executorService.submit(() -> {
+                    for (int j = 0; j < numInsertionsPerThread; j++) {
+                        assertEquals(null, trie.putIfAbsent("key-" + threadId + "-" + j, j));
+                    }
+                }));
+            }
+            AtomicBoolean done = new AtomicBoolean();
+            Future<?> snapshots = executorService.submit(() -> {
+                while (!done.get()) {
+                    trie.readOnlySnapshot().close();
+                    trie.snapshot().close();
+                    Thread.yield();
+                }
+            });
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            done.set(true);
+            snapshots.get();
+            executorService.shutdown();
+
+            for (int i = 0; i < numThreads; i++) {
+                for (int j = 0; j < numInsertionsPerThread; j++) {
+                    assertEquals(Integer.valueOf(j), trie.get("key-" + i + "-" + j), renewal + " lost key-" + i + "-" + j);
+                }
+            }
+        }
+    }
 }
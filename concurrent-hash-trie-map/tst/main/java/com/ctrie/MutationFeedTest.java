@@ -0,0 +1,225 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for MutationFeed.
+ */
+public class MutationFeedTest {
+
+    /** Collects the delivered mutations. The tests request batches through its subscription. */
+    private static final class Recorder implements Flow.Subscriber<List<TrieMutation<Integer, Integer>>> {
+        final List<TrieMutation<Integer, Integer>> mutations = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        Flow.Subscription subscription;
+        int batches;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public synchronized void onNext(List<TrieMutation<Integer, Integer>> batch) {
+            assertTrue(batch.size() <= MutationFeed.MAX_BATCH);
+            batches++;
+            mutations.addAll(batch);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void testDeliversCommittedWritesWithBackpressure() {
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        MutationFeed<Integer, Integer> feed = trie.mutationFeed(4, 1024, Runnable::run);
+        assertSame(feed, trie.mutationFeed());
+        Recorder recorder = new Recorder();
+        feed.subscribe(recorder);
+
+        trie.put(1, 10);
+        trie.put(1, 11);
+        trie.putIfAbsent(1, 12);
+        trie.replace(1, 99, 13);
+        trie.remove(2);
+        trie.remove(1);
+        trie.update(2, 20);
+        assertTrue(recorder.mutations.isEmpty());
+
+        recorder.subscription.request(1);
+        assertEquals(1, recorder.batches);
+        List<TrieMutation<Integer, Integer>> ms = recorder.mutations;
+        assertEquals(4, ms.size());
+        List<TrieMutation<Integer, Integer>> ofOne = new ArrayList<>();
+        for (TrieMutation<Integer, Integer> m : ms) {
+            if (m.key() == 1) ofOne.add(m);
+        }
+        assertEquals(3, ofOne.size());
+        assertEquals(TrieMutation.Type.PUT, ofOne.get(0).type());
+        assertNull(ofOne.get(0).oldValue());
+        assertEquals(Integer.valueOf(11), ofOne.get(1).newValue());
+        assertEquals(Integer.valueOf(10), ofOne.get(1).oldValue());
+        assertEquals(TrieMutation.Type.REMOVE, ofOne.get(2).type());
+        assertEquals(Integer.valueOf(11), ofOne.get(2).oldValue());
+        for (int i = 1; i < ofOne.size(); i++) {
+            assertEquals(ofOne.get(i - 1).sequence() + 1, ofOne.get(i).sequence());
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            trie.put(i, i);
+        }
+        recorder.subscription.request(2);
+        assertEquals(3, recorder.batches);
+        assertEquals(4 + 2 * MutationFeed.MAX_BATCH, recorder.mutations.size());
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertEquals(1004, recorder.mutations.size());
+
+        trie.clear();
+        assertEquals(1004 + feed.stripeCount(), recorder.mutations.size());
+        assertEquals(TrieMutation.Type.CLEAR, recorder.mutations.get(recorder.mutations.size() - 1).type());
+
+        feed.close();
+        assertEquals(0, recorder.done.getCount());
+        assertNull(recorder.error);
+        trie.put(5, 5);
+        assertEquals(1004 + feed.stripeCount(), recorder.mutations.size());
+    }
+
+    @Test
+    public void testTransactionsAppendTheirWrites() {
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        trie.put(1, 1);
+        MutationFeed<Integer, Integer> feed = trie.mutationFeed(2, 64, Runnable::run);
+        Recorder recorder = new Recorder();
+        feed.subscribe(recorder);
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        trie.transact(tx -> tx.put(2, tx.remove(1)));
+        TrieTransaction<Integer, Integer> aborted = trie.beginTransaction();
+        aborted.put(3, 3);
+        aborted.abort();
+
+        assertEquals(2, recorder.mutations.size());
+        Map<Integer, TrieMutation.Type> types = new HashMap<>();
+        for (TrieMutation<Integer, Integer> m : recorder.mutations) {
+            types.put(m.key(), m.type());
+        }
+        assertEquals(TrieMutation.Type.REMOVE, types.get(1));
+        assertEquals(TrieMutation.Type.PUT, types.get(2));
+    }
+
+    @Test
+    public void testResumeFromSnapshot() throws InterruptedException {
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        MutationFeed<Integer, Integer> feed = trie.mutationFeed();
+        int threads = 4;
+        int perThread = 5000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch started = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int base = t * perThread;
+            pool.execute(() -> {
+                started.countDown();
+                for (int i = 0; i < perThread; i++) {
+                    trie.put(base + i, i);
+                    if (i % 3 == 0) trie.remove(base + i / 2);
+                }
+            });
+        }
+        started.await();
+        Recorder recorder = new Recorder();
+        Map<Integer, Integer> replica;
+        try (ConcurrentTrie<Integer, Integer> snapshot = feed.snapshotAndSubscribe(recorder)) {
+            replica = toMap(snapshot);
+        }
+        recorder.subscription.request(Long.MAX_VALUE);
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        feed.close();
+        assertTrue(recorder.done.await(30, TimeUnit.SECONDS));
+        assertNull(recorder.error);
+
+        synchronized (recorder) {
+            for (TrieMutation<Integer, Integer> m : recorder.mutations) {
+                if (m.type() == TrieMutation.Type.PUT) replica.put(m.key(), m.newValue());
+                else replica.remove(m.key());
+            }
+        }
+        assertEquals(toMap(trie), replica);
+    }
+
+    @Test
+    public void testClearRemovesTheKeysOfItsStripe() {
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        MutationFeed<Integer, Integer> feed = trie.mutationFeed(4, 1024, Runnable::run);
+        Recorder recorder = new Recorder();
+        feed.subscribe(recorder);
+        for (int i = 0; i < 100; i++) {
+            trie.put(i, i);
+        }
+        trie.clear();
+        for (int i = 50; i < 150; i++) {
+            trie.put(i, -i);
+        }
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        // Batches interleave the stripes, so a clear must not touch the keys of other stripes.
+        Map<Integer, Integer> replica = new HashMap<>();
+        for (TrieMutation<Integer, Integer> m : recorder.mutations) {
+            if (m.type() == TrieMutation.Type.CLEAR) {
+                replica.keySet().removeIf(k -> feed.stripeOf(k) == m.stripe());
+            } else {
+                assertEquals(feed.stripeOf(m.key()), m.stripe());
+                replica.put(m.key(), m.newValue());
+            }
+        }
+        assertEquals(toMap(trie), replica);
+    }
+
+    private static Map<Integer, Integer> toMap(ConcurrentTrie<Integer, Integer> trie) {
+        Map<Integer, Integer> map = new HashMap<>();
+        for (Iterator<Map.Entry<Integer, Integer>> it = trie.readOnlyIterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Integer> e = it.next();
+            map.put(e.getKey(), e.getValue());
+        }
+        return map;
+    }
+
+    @Test
+    public void testSlowSubscriberFails() {
+        ConcurrentTrie<Integer, Integer> trie = new ConcurrentTrie<>();
+        MutationFeed<Integer, Integer> feed = trie.mutationFeed(1, 16, Runnable::run);
+        Recorder recorder = new Recorder();
+        feed.subscribe(recorder);
+        for (int i = 0; i < 17; i++) {
+            trie.put(i, i);
+        }
+        recorder.subscription.request(1);
+        assertTrue(recorder.error instanceof IllegalStateException);
+        assertTrue(recorder.mutations.isEmpty());
+        assertThrows(IllegalStateException.class, () -> trie.readOnlySnapshot().mutationFeed());
+    }
+}
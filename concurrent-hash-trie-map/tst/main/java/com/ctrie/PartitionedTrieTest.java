@@ -0,0 +1,100 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for PartitionedTrie.
+ */
+public class PartitionedTrieTest {
+
+    @Test
+    public void testOperations() {
+        PartitionedTrie<Integer, String> trie = new PartitionedTrie<>(16);
+        for (int i = 0; i < 10000; i++) {
+            assertNull(trie.put(i, "v" + i));
+        }
+        assertEquals("v5", trie.put(5, "five"));
+        assertEquals("five", trie.putIfAbsent(5, "x"));
+        assertTrue(trie.replace(6, "v6", "six"));
+        assertEquals("v7", trie.remove(7));
+        assertFalse(trie.remove(8, "wrong"));
+
+        assertEquals(9999, trie.size());
+        assertEquals("five", trie.get(5));
+        assertEquals("six", trie.get(6));
+        assertNull(trie.get(7));
+        assertEquals("none", trie.getOrDefault(7, "none"));
+
+        LongAdder visited = new LongAdder();
+        trie.parallelForEach((k, v) -> visited.increment());
+        assertEquals(9999, visited.sum());
+
+        trie.clear();
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    public void testKeysSpreadAcrossPartitions() {
+        PartitionedTrie<Integer, String> trie = new PartitionedTrie<>(16);
+        int[] counts = new int[trie.partitionCount()];
+        for (int i = 0; i < 10000; i++) {
+            counts[trie.partitionOf(i)]++;
+        }
+        // 625 keys per partition on average.
+        for (int count : counts) {
+            assertTrue(count > 400 && count < 850, "partition holds " + count + " keys");
+        }
+    }
+
+    @Test
+    public void testSnapshotIsolation() {
+        PartitionedTrie<Integer, Integer> trie = new PartitionedTrie<>(8, SnapshotRenewal.FULL, BranchingFactor.FANOUT_64, HashStrategy.standard());
+        for (int i = 0; i < 1000; i++) {
+            trie.put(i, i);
+        }
+        PartitionedTrie<Integer, Integer> readOnly = trie.readOnlySnapshot();
+        PartitionedTrie<Integer, Integer> writable = trie.snapshot();
+        trie.remove(1);
+        writable.put(1, -1);
+
+        assertNull(trie.get(1));
+        assertEquals(Integer.valueOf(1), readOnly.get(1));
+        assertEquals(Integer.valueOf(-1), writable.get(1));
+        assertEquals(1000, readOnly.size());
+        assertThrows(IllegalStateException.class, () -> readOnly.put(2, 2));
+    }
+
+    @Test
+    public void testSnapshotsAreConsistentAcrossPartitions() throws InterruptedException {
+        // A single writer adds the keys in order, so every snapshot must hold a prefix of them.
+        PartitionedTrie<Integer, Integer> trie = new PartitionedTrie<>(32);
+        int keys = 20000;
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < keys; i++) {
+                trie.put(i, i);
+            }
+        });
+        writer.start();
+        List<PartitionedTrie<Integer, Integer>> snapshots = new ArrayList<>();
+        while (writer.isAlive()) {
+            snapshots.add(trie.readOnlySnapshot());
+        }
+        writer.join();
+        snapshots.add(trie.readOnlySnapshot());
+
+        for (PartitionedTrie<Integer, Integer> snapshot : snapshots) {
+            int size = snapshot.size();
+            for (int i = 0; i < size; i++) {
+                assertEquals(Integer.valueOf(i), snapshot.get(i));
+            }
+            assertNull(snapshot.get(size));
+        }
+        assertEquals(keys, snapshots.get(snapshots.size() - 1).size());
+    }
+}
@@ -0,0 +1,96 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for TrieCounterMap.
+ */
+public class TrieCounterMapTest {
+
+    @Test
+    public void testCountsAndSnapshots() {
+        TrieCounterMap<String> counters = new TrieCounterMap<>(HashStrategy.strings());
+        counters.increment("a");
+        counters.increment("a");
+        counters.add("b", 5);
+        counters.add("c", 1);
+        counters.add("c", -1);
+        assertEquals(2, counters.get("a"));
+        assertEquals(5, counters.get("b"));
+        assertEquals(0, counters.get("c"));
+        assertEquals(0, counters.get("missing"));
+
+        ConcurrentTrie<String, Long> first = counters.snapshot();
+        assertEquals(Long.valueOf(2), first.get("a"));
+        assertEquals(Long.valueOf(5), first.get("b"));
+        assertNull(first.get("c"));
+
+        counters.increment("a");
+        counters.add("b", 2);
+        ConcurrentTrie<String, Long> second = counters.snapshot();
+        counters.increment("a");
+        ConcurrentTrie<String, Long> third = counters.snapshot();
+        assertEquals(Long.valueOf(2), first.get("a"));
+        assertEquals(Long.valueOf(3), second.get("a"));
+        assertEquals(Long.valueOf(7), second.get("b"));
+        assertEquals(Long.valueOf(4), third.get("a"));
+        assertEquals(Long.valueOf(7), third.get("b"));
+
+        assertEquals(7, counters.remove("b"));
+        assertEquals(0, counters.get("b"));
+        counters.increment("b");
+        assertEquals(Long.valueOf(1), counters.snapshot().get("b"));
+    }
+
+    @Test
+    public void testSnapshotsAreConsistentAcrossKeys() throws Exception {
+        TrieCounterMap<Integer> counters = new TrieCounterMap<>();
+        int threads = 4;
+        int rounds = 20000;
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            writers.add(pool.submit(() -> {
+                // Every increment of 1 finishes before the matching increment of 2 starts, so a
+                // consistent snapshot never counts more of 2 than of 1.
+                for (int i = 0; i < rounds; i++) {
+                    counters.increment(1);
+                    counters.increment(2);
+                }
+            }));
+        }
+        Future<Integer> reader = pool.submit(() -> {
+            int snapshots = 0;
+            while (running.get()) {
+                ConcurrentTrie<Integer, Long> sums = counters.snapshot();
+                long ones = sums.getOrDefault(1, 0L);
+                long twos = sums.getOrDefault(2, 0L);
+                assertTrue(twos <= ones, "snapshot counted " + twos + " twos but only " + ones + " ones");
+                assertTrue(ones - twos <= threads, "snapshot counted " + ones + " ones but only " + twos + " twos");
+                snapshots++;
+            }
+            return snapshots;
+        });
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        running.set(false);
+        assertTrue(reader.get() > 0);
+        pool.shutdown();
+
+        ConcurrentTrie<Integer, Long> sums = counters.snapshot();
+        assertEquals(Long.valueOf((long) threads * rounds), sums.get(1));
+        assertEquals(Long.valueOf((long) threads * rounds), sums.get(2));
+        assertEquals((long) threads * rounds, counters.get(1));
+    }
+}
@@ -0,0 +1,162 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for TrieLoadingCache.
+ */
+public class TrieLoadingCacheTest {
+
+    /** Runs the submitted tasks only when asked to, so that the tests control when loads happen. */
+    private static final class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            for (Runnable task; (task = tasks.poll()) != null; ) {
+                task.run();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        TrieLoadingCache<Integer, String> cache = new TrieLoadingCache<>(key -> {
+            loads.incrementAndGet();
+            release.await();
+            return "v" + key;
+        });
+        int threads = 32;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch started = new CountDownLatch(threads);
+        List<Future<String>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(pool.submit(() -> {
+                started.countDown();
+                return cache.get(7);
+            }));
+        }
+        started.await();
+        release.countDown();
+        for (Future<String> result : results) {
+            assertEquals("v7", result.get());
+        }
+        pool.shutdown();
+        assertEquals(1, loads.get());
+        assertEquals("v7", cache.getIfPresent(7));
+    }
+
+    @Test
+    public void testQueuedMissesLoadInOneBatch() {
+        List<Set<Integer>> batches = new ArrayList<>();
+        TrieLoadingCache.Loader<Integer, Integer> loader = new TrieLoadingCache.Loader<Integer, Integer>() {
+            @Override
+            public Integer load(Integer key) {
+                batches.add(Set.of(key));
+                return key == 3 ? null : key * 2;
+            }
+
+            @Override
+            public Map<Integer, Integer> loadAll(Set<Integer> keys) {
+                batches.add(Set.copyOf(keys));
+                Map<Integer, Integer> values = new HashMap<>();
+                for (Integer key : keys) {
+                    if (key != 3) values.put(key, key * 2);
+                }
+                return values;
+            }
+        };
+        ManualExecutor executor = new ManualExecutor();
+        TrieLoadingCache<Integer, Integer> cache = new TrieLoadingCache<>(loader, executor, 2, Duration.ZERO);
+
+        CompletableFuture<Integer> one = cache.getAsync(1);
+        CompletableFuture<Integer> two = cache.getAsync(2);
+        CompletableFuture<Integer> three = cache.getAsync(3);
+        assertSame(one, cache.getAsync(1));
+        assertFalse(one.isDone());
+        executor.runAll();
+        assertEquals(List.of(Set.of(1, 2), Set.of(3)), batches);
+        assertEquals(Integer.valueOf(2), one.join());
+        assertEquals(Integer.valueOf(4), two.join());
+        assertNull(three.join());
+        assertNull(cache.getIfPresent(3));
+
+        batches.clear();
+        CompletableFuture<Map<Integer, Integer>> all = cache.getAllAsync(List.of(1, 4, 5, 3, 4));
+        executor.runAll();
+        assertEquals(Set.of(Set.of(4, 5), Set.of(3)), Set.copyOf(batches));
+        assertEquals(Map.of(1, 2, 4, 8, 5, 10), all.join());
+    }
+
+    @Test
+    public void testFailedLoadsAreEvicted() {
+        AtomicInteger attempts = new AtomicInteger();
+        TrieLoadingCache<String, String> cache = new TrieLoadingCache<>(key -> {
+            if (attempts.incrementAndGet() == 1) throw new IllegalStateException("unavailable");
+            return key.toUpperCase();
+        }, Runnable::run, TrieLoadingCache.DEFAULT_BATCH_SIZE, Duration.ZERO);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> cache.get("a"));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+        assertNull(cache.getIfPresent("a"));
+        assertEquals("A", cache.get("a"));
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    public void testRefreshAheadServesOldValue() {
+        AtomicInteger version = new AtomicInteger();
+        ManualExecutor executor = new ManualExecutor();
+        TrieLoadingCache<String, Integer> cache = new TrieLoadingCache<>(key -> {
+            int v = version.incrementAndGet();
+            if (v == 3) throw new IllegalStateException("unavailable");
+            return v;
+        }, executor, TrieLoadingCache.DEFAULT_BATCH_SIZE, Duration.ofNanos(1));
+
+        CompletableFuture<Integer> first = cache.getAsync("k");
+        executor.runAll();
+        assertEquals(Integer.valueOf(1), first.join());
+
+        assertEquals(Integer.valueOf(1), cache.get("k"));
+        assertEquals(1, executor.tasks.size());
+        assertEquals(Integer.valueOf(1), cache.get("k"));
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(Integer.valueOf(2), cache.get("k"));
+
+        executor.runAll();
+        assertEquals(Integer.valueOf(2), cache.get("k"));
+        executor.runAll();
+        assertEquals(Integer.valueOf(4), cache.get("k"));
+
+        cache.put("k", 10);
+        executor.runAll();
+        assertEquals(Integer.valueOf(10), cache.getIfPresent("k"));
+        cache.invalidate("k");
+        assertNull(cache.getIfPresent("k"));
+    }
+}
@@ -0,0 +1,117 @@
+package com.ctrie;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for VersionedTrie.
+ */
+public class VersionedTrieTest {
+
+    private ConcurrentTrie<String, Integer> trie;
+    private ManualClock clock;
+    private VersionedTrie<String, Integer> versions;
+
+    @BeforeEach
+    public void setUp() {
+        trie = new ConcurrentTrie<>();
+        clock = new ManualClock(Instant.parse("2024-01-01T00:00:00Z"));
+        versions = new VersionedTrie<>(trie, clock, Duration.ofSeconds(1), Duration.ofSeconds(3), false);
+    }
+
+    @Test
+    public void testGetAsOf() {
+        Instant start = clock.instant();
+        trie.put("a", 1);
+        clock.advance(Duration.ofSeconds(1));
+        versions.takeVersion();
+        trie.put("a", 2);
+        trie.put("b", 1);
+        clock.advance(Duration.ofSeconds(1));
+        versions.takeVersion();
+
+        assertNull(versions.getAsOf("a", start));
+        assertEquals(Integer.valueOf(1), versions.getAsOf("a", start.plusSeconds(1)));
+        assertEquals(Integer.valueOf(1), versions.getAsOf("a", start.plusMillis(1500)));
+        assertNull(versions.getAsOf("b", start.plusMillis(1500)));
+        assertEquals(Integer.valueOf(2), versions.getAsOf("a", start.plusSeconds(2)));
+        assertEquals(Integer.valueOf(1), versions.getAsOf("b", start.plusSeconds(5)));
+        assertThrows(IllegalArgumentException.class, () -> versions.getAsOf("a", start.minusSeconds(1)));
+    }
+
+    @Test
+    public void testOldVersionsAgeOut() {
+        Instant start = clock.instant();
+        for (int i = 0; i < 10; i++) {
+            trie.put("a", i);
+            clock.advance(Duration.ofSeconds(1));
+            versions.takeVersion();
+        }
+
+        assertEquals(4, versions.versionInstants().size());
+        assertEquals(start.plusSeconds(7), versions.versionInstants().get(0));
+        assertEquals(Integer.valueOf(6), versions.getAsOf("a", start.plusSeconds(7)));
+        assertThrows(IllegalArgumentException.class, () -> versions.getAsOf("a", start.plusSeconds(6)));
+        assertEquals(4, trie.liveSnapshots().size());
+
+        versions.close();
+        assertTrue(trie.liveSnapshots().isEmpty());
+    }
+
+    @Test
+    public void testVersionsAgeOutByTime() {
+        Instant start = clock.instant();
+        // Versions taken more often than the interval are all kept for the whole retention.
+        for (int i = 0; i < 10; i++) {
+            trie.put("a", i);
+            versions.takeVersion();
+        }
+        assertEquals(11, versions.versionInstants().size());
+        assertEquals(Integer.valueOf(9), versions.getAsOf("a", start));
+
+        clock.advance(Duration.ofSeconds(3));
+        versions.takeVersion();
+        assertEquals(12, versions.versionInstants().size());
+        clock.advance(Duration.ofMillis(1));
+        versions.takeVersion();
+        assertEquals(List.of(start.plusSeconds(3), start.plusMillis(3001)), versions.versionInstants());
+        assertThrows(IllegalArgumentException.class, () -> versions.getAsOf("a", start));
+        assertEquals(2, trie.liveSnapshots().size());
+    }
+
+    private static final class ManualClock extends Clock {
+        private Instant now;
+
+        ManualClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}